@@ -18,8 +18,32 @@ VOCABULARY_LIST_FILE_NAME=vocabulary_file_list.txt
 
 lang_dirs=`ls -d $RULES_MAIN_DIR/*`
 
+## The order of the list is a priority order (when several vocabulary files
+## match a token, the first one in the list wins), so it is kept as is:
+## files which no longer exist are removed, and new files are appended at
+## the end (with the lowest priority).
 for dir in $lang_dirs 
 do
-	ls "$dir/$VOC_DIR_NAME" > "$dir/$VOCABULARY_LIST_FILE_NAME"
-	echo "$dir/$VOCABULARY_LIST_FILE_NAME written"
+	list_file="$dir/$VOCABULARY_LIST_FILE_NAME"
+	new_list=""
+	if [ -f "$list_file" ]
+	then
+		while read -r voc_file
+		do
+			if [ -n "$voc_file" ] && [ -f "$dir/$VOC_DIR_NAME/$voc_file" ]
+			then
+				new_list="$new_list$voc_file"$'\n'
+			fi
+		done < "$list_file"
+	fi
+	for voc_file in `ls "$dir/$VOC_DIR_NAME"`
+	do
+		if ! grep -qxF "$voc_file" <<< "$new_list"
+		then
+			new_list="$new_list$voc_file"$'\n'
+			echo "WARN: $voc_file added at the end of $list_file (lowest priority)"
+		fi
+	done
+	printf "%s" "$new_list" > "$list_file"
+	echo "$list_file written"
 done
@@ -6,7 +6,9 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.util.Calendar;
 import java.util.HashMap;
@@ -50,6 +52,20 @@ public class DCTExtractor {
      * @throws DCTExtractorException
      */
     public DCTExtractor(File wapitiBinaryFile) throws DCTExtractorException {
+        this();
+        if (wapitiBinaryFile.isFile()) {
+            this.wapitiBinaryFile = wapitiBinaryFile;
+        } else {
+            throw new RuntimeException("Wapiti binary path " + wapitiBinaryFile.getAbsolutePath() + " does not exist!");
+        }
+    }
+
+    /**
+     * Extractor without Wapiti binary: the sequence labeler of the configuration
+     * must not need it (the default in-process labeler does not).
+     * @throws DCTExtractorException
+     */
+    public DCTExtractor() throws DCTExtractorException {
         InputStream stream = this.getClass().getClassLoader().getResourceAsStream(CONFIG_FILE_PATH_IN_PROJECT);
 
         this.properties = new Properties();
@@ -58,21 +74,35 @@ public class DCTExtractor {
         } catch (IOException e) {
             throw new RuntimeException("Couln't load configuration file " + CONFIG_FILE_PATH_IN_PROJECT + ": " + e.getMessage());
         }
-        if (wapitiBinaryFile.isFile()) {
-            this.wapitiBinaryFile = wapitiBinaryFile;
-        } else {
-            throw new RuntimeException("Wapiti binary path " + wapitiBinaryFile.getAbsolutePath() + " does not exist!");
-        }
-        // Wapiti model file name (copy in temporary file)
+        // The binary is given to the constructor, not taken from the configuration
+        this.properties.remove(LocalDCTExtractor.WAPITI_BINARY_PATH);
+        this.wapitiBinaryFile = null;
+        // Wapiti model file name (copy in temporary file if the resource is not a file)
         String wapitiModelFileName = this.properties.getProperty(LocalDCTExtractor.WAPITI_MODEL_FILE);
         if (wapitiModelFileName == null) {
             throw new RuntimeException("Parameter " + LocalDCTExtractor.WAPITI_MODEL_FILE + " must be set in file " + CONFIG_FILE_PATH_IN_PROJECT);
         }
         
-        InputStream wapitiModelStream = this.getClass().getClassLoader().getResourceAsStream(wapitiModelFileName);
-        if (wapitiModelStream == null) {
+        URL wapitiModelURL = this.getClass().getClassLoader().getResource(wapitiModelFileName);
+        if (wapitiModelURL == null) {
             throw new RuntimeException("Could not find Wapiti model file " + wapitiModelFileName);
         }
+        if (wapitiModelURL.getProtocol().equals("file")) {
+            // Use the model file directly (binary models are then memory-mapped)
+            try {
+                this.wapitiModelFile = new File(wapitiModelURL.toURI());
+            } catch (URISyntaxException e) {
+                throw new DCTExtractorException(e);
+            }
+            this.extractors = new HashMap<Locale, LocalDCTExtractor>();
+            return;
+        }
+        InputStream wapitiModelStream;
+        try {
+            wapitiModelStream = wapitiModelURL.openStream();
+        } catch (IOException e) {
+            throw new DCTExtractorException(e);
+        }
         
         try {
             this.wapitiModelFile = File.createTempFile("wapiti-model-", ".bin");
@@ -111,6 +141,46 @@ public class DCTExtractor {
      * @throws DCTExtractorException
      */
     public PageInfo getPageInfos(InputStream stream, URL url, Locale locale, Calendar downloadDate) throws DCTExtractorException {
+        try {
+            return this.getExtractor(url, locale).getPageInfos(stream, "testfile", url, downloadDate, this.wapitiModelFile.getAbsolutePath(), wapitiBinaryFile);
+        } catch (InterruptedException e) {
+            throw new DCTExtractorException(e);
+        } catch (IOException e) {
+            throw new DCTExtractorException(e);
+        } catch (FeatureException e) {
+            throw new DCTExtractorException(e);
+        }
+    }    
+
+    /**
+     * Get PageInfo from a page held in memory
+     * @param page the page content
+     * @param url the corresponding URL
+     * @param locale the page origin or language 
+     * @param downloadDate the date of download
+     * @return a PageInfo object contaning estimated title and DCT
+     * @throws DCTExtractorException
+     */
+    public PageInfo getPageInfos(byte[] page, URL url, Locale locale, Calendar downloadDate) throws DCTExtractorException {
+        try {
+            return this.getExtractor(url, locale).getPageInfos(ByteBuffer.wrap(page), "testfile", url, downloadDate, this.wapitiModelFile.getAbsolutePath(), wapitiBinaryFile);
+        } catch (InterruptedException e) {
+            throw new DCTExtractorException(e);
+        } catch (IOException e) {
+            throw new DCTExtractorException(e);
+        } catch (FeatureException e) {
+            throw new DCTExtractorException(e);
+        }
+    }    
+
+    /**
+     * Get the extractor of a locale
+     * @param url the URL of the page
+     * @param locale the page origin or language 
+     * @return the extractor
+     * @throws DCTExtractorException
+     */
+    private LocalDCTExtractor getExtractor(URL url, Locale locale) throws DCTExtractorException {
         /******************
          * English Locale patch
          ******************/
@@ -118,39 +188,27 @@ public class DCTExtractor {
         // then we keep two extractors (US + UK)
         // and try to choose from the URL
         if (locale == Locale.ENGLISH) {
-            Locale specificLocale;
             if (url == null) {
-                specificLocale = Locale.US;
+                locale = Locale.US;
             } else {
                 // Change locale if US and if the URL is different from .us, .com, .org, .net
                 // what about .ca, .nz ? Don't know their format
                 String host = url.getHost();
                 if (host.endsWith(".us") || host.endsWith(".com") || host.endsWith(".org") || host.endsWith(".tv") || host.endsWith(".net")) {
-                    specificLocale = Locale.US;
+                    locale = Locale.US;
             	} else if (host.endsWith(".ru")) {
-            		specificLocale = LanguageTools.getLocaleFromString("ru");
+            		locale = LanguageTools.getLocaleFromString("ru");
             	}
                 else {
-                    specificLocale = Locale.UK;
+                    locale = Locale.UK;
                 }
             }
-            return getPageInfos(stream, url, specificLocale, downloadDate);
         }
-        else {
-            try {
-                LocalDCTExtractor extractor = this.extractors.get(locale);
-                if (extractor == null) {
-                    extractor = new LocalDCTExtractor(locale, properties, true, false);
-                    extractors.put(locale, extractor);
-                }	
-                return extractor.getPageInfos(stream, "testfile", url, downloadDate, this.wapitiModelFile.getAbsolutePath(), wapitiBinaryFile);
-            } catch (InterruptedException e) {
-                throw new DCTExtractorException(e);
-            } catch (IOException e) {
-                throw new DCTExtractorException(e);
-            } catch (FeatureException e) {
-                throw new DCTExtractorException(e);
-            }
-        }        
-    }    
+        LocalDCTExtractor extractor = this.extractors.get(locale);
+        if (extractor == null) {
+            extractor = new LocalDCTExtractor(locale, properties, true, false);
+            extractors.put(locale, extractor);
+        }	
+        return extractor;
+    }
 }
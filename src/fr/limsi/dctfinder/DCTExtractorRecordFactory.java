@@ -9,7 +9,10 @@ import fr.limsi.tools.classification.crf.SeparationRecord;
 import org.apache.commons.lang3.StringEscapeUtils;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
@@ -154,8 +157,6 @@ public class DCTExtractorRecordFactory extends CRFRecordFactory {
 	private static final String WA_END_TAG = "WA_End";
 	private static final String TITLE_TAG = "title";
 	// For evaluation only :
-	private static final String WA_TYPE_ATTR_NAME = "type";
-	private static final String WA_SUBTYPES_ATTR_NAME = "subtypes";
 	private static Pattern WA_SUBTYPE_PATTERN;
 	private static SimpleDateFormat WA_DATE_FORMAT;
 	private static final String WA_TITLE_ATTR_VALUE = "title";
@@ -185,6 +186,25 @@ public class DCTExtractorRecordFactory extends CRFRecordFactory {
 		TAGS_TO_SKIP.add("img");
 	}
 
+	/*********************
+	 * Elements to skip whose content cannot contain tags (raw text):
+	 * the content is skipped directly up to their own closing tag.
+	 * The other ones are parsed until the closing tag of an element to skip
+	 * (or the end of the list of an option, whose closing tag may be omitted).
+	 *********************/
+	private static final HashSet<String> RAW_TEXT_ELEMS_TO_SKIP = new HashSet<String>();
+
+	static {
+		RAW_TEXT_ELEMS_TO_SKIP.add("script");
+		RAW_TEXT_ELEMS_TO_SKIP.add("noscript");
+		RAW_TEXT_ELEMS_TO_SKIP.add("style");
+	}
+
+	// Same as TAGS_TO_SKIP, ELEMS_TO_SKIP and RAW_TEXT_ELEMS_TO_SKIP, by tag identifier (see HtmlTags)
+	private static final boolean[] TAG_IDS_TO_SKIP = HtmlTags.getFlags(TAGS_TO_SKIP);
+	private static final boolean[] ELEM_IDS_TO_SKIP = HtmlTags.getFlags(ELEMS_TO_SKIP);
+	private static final boolean[] RAW_TEXT_ELEM_IDS_TO_SKIP = HtmlTags.getFlags(RAW_TEXT_ELEMS_TO_SKIP);
+
 	/********************
 	 * General infos
 	 ********************/	
@@ -193,6 +213,10 @@ public class DCTExtractorRecordFactory extends CRFRecordFactory {
 
 	// Currently parsing an element to skip
 	private boolean inSkipElem;
+	// Name of the element to skip (lower case)
+	private String skipElemName;
+	// Identifier of the element to skip (see HtmlTags)
+	private int skipElemId;
 	// Current text
 	private String runningText;
 	// Current word number
@@ -201,7 +225,10 @@ public class DCTExtractorRecordFactory extends CRFRecordFactory {
 	private int wordNumberInTag;
 	// Charset
 	private static final Charset DEFAULT_CHARSET = Charset.forName("UTF-8");
-	private Charset charset;
+	// Decoding of the parsed page
+	private transient PageDecoder pageDecoder;
+	// Attributes of the parsed tag
+	private transient TagAttributes tagAttributes;
 	// Pattern for HTML Charset declaration inside meta:content attribute
 	private static final Pattern charsetPattern = Pattern.compile("charset=([^\" ]+)");
 
@@ -225,7 +252,9 @@ public class DCTExtractorRecordFactory extends CRFRecordFactory {
 	// in a WA-annotated date
 	private int elemNumberInWATag;
 	// All patterns for vocabulary matching
-	private HashMap<String, HashMap<Pattern, String>> regexes;
+	private VocabularyMatcher vocabularyMatcher;
+	// Cache of the vocabulary classes of tokens (null if disabled)
+	private transient TokenClassCache tokenClassCache;
 	// All patterns for finding date-related tags
 	private ArrayList<Pattern> timeTagRelatedPatterns;
 	// The maximum number of non-date-related element in a tag
@@ -245,6 +274,9 @@ public class DCTExtractorRecordFactory extends CRFRecordFactory {
 	private int lastTriggerPosition;
 	private int lastAntiTriggerPosition;
 	private static final int MAX_READ_BYTES = 100000;
+	// Size of the chunks read from input streams
+	private static final int READ_BUFFER_SIZE = 16384;
+	private byte[] readBuffer = new byte[READ_BUFFER_SIZE];
 
 
 	/********************
@@ -312,6 +344,15 @@ public class DCTExtractorRecordFactory extends CRFRecordFactory {
 	public DCTExtractorRecordFactory(Locale locale, HashMap<String, HashMap<Pattern, String>> rules,
 			ArrayList<Pattern> titleTagRelatedPatterns, ArrayList<Pattern> titleTagRelatedAntiPatterns, ArrayList<Pattern> timeTagRelatedPatterns,
 			Properties properties, boolean evalMode, boolean verbose) throws DCTExtractorException, IOException, FeatureException {
+		this(locale, new VocabularyMatcher(rules), titleTagRelatedPatterns, titleTagRelatedAntiPatterns, timeTagRelatedPatterns, properties, evalMode, verbose);
+	}
+
+	/**
+	 * @param vocabularyMatcher the matcher of the vocabulary (see {@link RuleBundle})
+	 */
+	DCTExtractorRecordFactory(Locale locale, VocabularyMatcher vocabularyMatcher,
+			ArrayList<Pattern> titleTagRelatedPatterns, ArrayList<Pattern> titleTagRelatedAntiPatterns, ArrayList<Pattern> timeTagRelatedPatterns,
+			Properties properties, boolean evalMode, boolean verbose) throws DCTExtractorException, IOException, FeatureException {
 		super(relation, true);
 
 		this.evalMode = evalMode;
@@ -330,7 +371,14 @@ public class DCTExtractorRecordFactory extends CRFRecordFactory {
 		// Regexes
 		//		this.regexes = new HashMap<String, ArrayList<Pattern>>();
 		//		this.regexes = new HashMap<String, HashMap<Pattern, String>>();
-		this.regexes = rules;
+		this.vocabularyMatcher = vocabularyMatcher;
+		if (this.verbose) {
+			System.out.println("Vocabulary: " + this.vocabularyMatcher.getLiteralNumber() + " literals, " + this.vocabularyMatcher.getRegexNumber() + " regexes ("
+					+ this.vocabularyMatcher.getFilteredPatternNumber() + " prefiltered by token signature)");
+			if (!this.vocabularyMatcher.isCombined()) {
+				System.out.println("WARN: vocabulary patterns cannot be combined, they will be matched one by one");
+			}
+		}
 		this.lastTagsWordNumber = new LinkedList<Integer>();
 		this.dateElementPositions = new ArrayList<Integer>();
 
@@ -515,35 +563,31 @@ public class DCTExtractorRecordFactory extends CRFRecordFactory {
 	}
 
 
-	private boolean isTagTimeRelated(String tagName, HashMap<String, String> attributes) {
+	private boolean isTagTimeRelated(String tagName, TagAttributes attributes) {
 		// Regexes
 		for (Pattern regex : this.timeTagRelatedPatterns) {
 			if (regex.matcher(tagName).matches()) {
 				return true;
 			}
-			if (attributes != null) {
-				for (String attName : attributes.values()) {
-					if (regex.matcher(attName).matches()) {
-						return true;
-					}				
-				}
+			if (attributes != null && attributes.matchesAnyValue(regex)) {
+				return true;
 			}
 		}
 		return false;
 	}
 
-	private String isTagTitle(String tagName, HashMap<String, String> attributes) {
+	private String isTagTitle(String tagName, TagAttributes attributes) {
 		// Regexes
 		String value;
 		for (Pattern regex : this.titleTagRelatedAntiPatterns) {
 			if (attributes != null) {
 				// id
-				value = attributes.get("id");
+				value = attributes.get(TagAttributes.ID);
 				if (value != null && regex.matcher(value).matches()) {
 					return null;
 				}				
 				// class
-				value = attributes.get("class");
+				value = attributes.get(TagAttributes.CLASS);
 				if (value != null && regex.matcher(value).matches()) {
 					return null;
 				}				
@@ -552,12 +596,12 @@ public class DCTExtractorRecordFactory extends CRFRecordFactory {
 		for (Pattern regex : this.titleTagRelatedPatterns) {
 			if (attributes != null) {
 				// id
-				value = attributes.get("id");
+				value = attributes.get(TagAttributes.ID);
 				if (value != null && regex.matcher(value).matches()) {
 					return value;
 				}				
 				// class
-				value = attributes.get("class");
+				value = attributes.get(TagAttributes.CLASS);
 				if (value != null && regex.matcher(value).matches()) {
 					return value;
 				}				
@@ -567,28 +611,25 @@ public class DCTExtractorRecordFactory extends CRFRecordFactory {
 	}
 
 
-	private void setCharset(HashMap<String, String> attributes){
-		String contentAttributeValue = attributes.get("content");
+	private void setCharset(TagAttributes attributes){
+		String contentAttributeValue = attributes.get(TagAttributes.CONTENT);
 		if (contentAttributeValue != null) {
 			Matcher matcher = charsetPattern.matcher(contentAttributeValue);
 			if (matcher.find()) {
-				try {
-					this.charset = Charset.forName(matcher.group(1));
-					if (this.verbose) {
-						System.out.println("Charset detected: " + this.charset.displayName());
-					}
-				} catch (Exception e) {
+				Charset charset = PageDecoder.forDeclaredName(matcher.group(1));
+				if (charset == null) {
 					if (this.verbose) {
-						System.out.println("WARN: Charset detected: " + matcher.group(1) + " unknown (keep default charset " + DEFAULT_CHARSET.displayName());
+						System.out.println("WARN: Charset detected: " + matcher.group(1) + " unknown (keep charset " + this.pageDecoder.getCharset().displayName() + ")");
 					}
-					this.charset = DEFAULT_CHARSET;
+				} else if (this.pageDecoder.setCharset(charset) && this.verbose) {
+					System.out.println("Charset detected: " + charset.displayName());
 				}
 			}
 		}
 	}
 
 
-	private Record getRecordFromEntry(String entry, String text, byte type, HashMap<String, String> attributes) throws FeatureException, DCTExtractorException {
+	private Record getRecordFromEntry(String entry, String text, byte type, TagAttributes attributes) throws FeatureException, DCTExtractorException {
 		String classValue = CRFRecordFactory.CLASS_OUT;
 		//		boolean openingTag = false;
 		//		boolean closingTag = false;
@@ -601,6 +642,7 @@ public class DCTExtractorRecordFactory extends CRFRecordFactory {
 		byte priority;
 		String tagCandidate;
 		int distance;
+		int tagId = type == TYPE_TEXT ? HtmlTags.UNKNOWN : HtmlTags.getId(entry);
 		switch (type) {
 		case TYPE_TEXT:
 			//			entry = entry.trim().replaceAll("\n", " ");
@@ -618,14 +660,10 @@ public class DCTExtractorRecordFactory extends CRFRecordFactory {
 				this.evalTitle += text;
 			}
 			// Regexes
-			for (Entry<String, HashMap<Pattern, String>> vocEntry : this.regexes.entrySet()) {
-				for (Pattern regex : vocEntry.getValue().keySet()) {
-					if (regex.matcher(entry).matches()) {
-						//						System.out.println("entry : " + entry + " - pattern : "  + regex.toString());
-						vocType = vocEntry.getKey();
-						break;
-					}
-				}
+			if (this.tokenClassCache != null) {
+				vocType = this.tokenClassCache.getVocabularyClass(entry, this.vocabularyMatcher);
+			} else {
+				vocType = this.vocabularyMatcher.match(entry);
 			}
 			if (vocType == null) {
 				vocType = "TEXT";
@@ -651,13 +689,17 @@ public class DCTExtractorRecordFactory extends CRFRecordFactory {
 			//			if (entry.equals("h5")) {
 			//				System.out.println();
 			//			}
+			// An option without closing tag ends with the next group
+			if (this.inSkipElem && this.skipElemId == HtmlTags.OPTION && tagId == HtmlTags.OPTGROUP) {
+				this.inSkipElem = false;
+			}
 			if (entry.equals(WA_START_TAG)) {
 				// For evaluation only
 				if (this.evalMode) {
-					if (attributes.get(WA_TYPE_ATTR_NAME).startsWith(DATE_ELEM)) {
+					if (attributes.get(TagAttributes.TYPE).startsWith(DATE_ELEM)) {
 						this.inWADateTag = true;
-						if (attributes.get(WA_TYPE_ATTR_NAME).equals(DATE_ELEM)) {
-							String dateValue = attributes.get(WA_SUBTYPES_ATTR_NAME);
+						if (attributes.get(TagAttributes.TYPE).equals(DATE_ELEM)) {
+							String dateValue = attributes.get(TagAttributes.SUBTYPES);
 							try {
 								Matcher matcher = WA_SUBTYPE_PATTERN.matcher(dateValue);
 								if (matcher.matches()) {
@@ -671,14 +713,14 @@ public class DCTExtractorRecordFactory extends CRFRecordFactory {
 							}
 						}
 					}
-					else if (attributes.get(WA_TYPE_ATTR_NAME).equals(WA_TITLE_ATTR_VALUE)) {						
+					else if (attributes.get(TagAttributes.TYPE).equals(WA_TITLE_ATTR_VALUE)) {						
 						this.inWATitleTag = true;
 						this.evalTitle = "";;
 					}					
 				}
 				// For training/testing
 				else {
-					if (attributes.get(WA_TYPE_ATTR_NAME).startsWith(DATE_ELEM)) {
+					if (attributes.get(TagAttributes.TYPE).startsWith(DATE_ELEM)) {
 						this.inWADateTag = true;
 					}
 				}
@@ -691,10 +733,12 @@ public class DCTExtractorRecordFactory extends CRFRecordFactory {
 				return null;
 				//			} else if (entry.equalsIgnoreCase(TITLE_TAG)) {
 				//				this.inTitle = true;
-			} else if (TAGS_TO_SKIP.contains(entry.toLowerCase())) {
+			} else if (tagId != HtmlTags.UNKNOWN && TAG_IDS_TO_SKIP[tagId]) {
 				return null;
-			} else if (ELEMS_TO_SKIP.contains(entry.toLowerCase())) {
+			} else if (tagId != HtmlTags.UNKNOWN && ELEM_IDS_TO_SKIP[tagId]) {
 				this.inSkipElem = true;
+				this.skipElemName = HtmlTags.getLowerCaseName(tagId);
+				this.skipElemId = tagId;
 				return null;
 			} else if (this.inSkipElem) {
 				return null;
@@ -740,7 +784,7 @@ public class DCTExtractorRecordFactory extends CRFRecordFactory {
 					}
 				}
 				// Encoding declaration
-				else if (entry.equalsIgnoreCase("meta")) {
+				else if (tagId == HtmlTags.META) {
 					setCharset(attributes);
 				}
 			}
@@ -755,16 +799,20 @@ public class DCTExtractorRecordFactory extends CRFRecordFactory {
 			break;
 		case TYPE_CLOSING_TAG:
 			boolean elemContainsTitle = false;
+			// An option without closing tag ends with its group or list
+			if (this.inSkipElem && this.skipElemId == HtmlTags.OPTION && (tagId == HtmlTags.OPTGROUP || tagId == HtmlTags.SELECT)) {
+				this.inSkipElem = false;
+			}
 			if (entry.equals(WA_START_TAG)) {
 				return null;
 			} else if (entry.equals(WA_END_TAG)) {
 				return null;		 
-			} else if (entry.equalsIgnoreCase(TITLE_TAG)) {
+			} else if (tagId == HtmlTags.TITLE) {
 				this.docTitle += this.runningText;
 				this.runningText = "";
-			} else if (TAGS_TO_SKIP.contains(entry.toLowerCase())) {
+			} else if (tagId != HtmlTags.UNKNOWN && TAG_IDS_TO_SKIP[tagId]) {
 				return null;
-			} else if (ELEMS_TO_SKIP.contains(entry.toLowerCase())) {
+			} else if (tagId != HtmlTags.UNKNOWN && ELEM_IDS_TO_SKIP[tagId]) {
 				this.inSkipElem = false;
 				return null;
 			} else if (this.inSkipElem) {
@@ -781,7 +829,7 @@ public class DCTExtractorRecordFactory extends CRFRecordFactory {
 					this.candidateTitles[INCLUDED_IN_DOC_TITLE_PRIORITY_LEVEL].put("-", new TextPosition(this.runningText, this.wordNumber));
 				} 
 			} // Encoding declaration
-			else if (entry.equalsIgnoreCase("meta")) {
+			else if (tagId == HtmlTags.META) {
 				setCharset(attributes);
 			}
 
@@ -927,7 +975,7 @@ public class DCTExtractorRecordFactory extends CRFRecordFactory {
 			if (this.verbose) {
 				System.out.println("Parse file " + (fileNumber++) + " / " + files.length + ": " + file.getAbsolutePath());
 			}
-			PageInfo pageInfo = this.getPageInfos(new FileInputStream(file), file.getAbsolutePath(), train);
+			PageInfo pageInfo = this.getPageInfos(file, file.getAbsolutePath(), train);
 			if (this.evalMode) {
 				this.hypPageInfos.put(file, pageInfo);
 			}
@@ -938,8 +986,85 @@ public class DCTExtractorRecordFactory extends CRFRecordFactory {
 	}
 
 
-	@SuppressWarnings("unchecked")
+	/**
+	 * Parse an HTML page and extract its records.
+	 * The stream is read by chunks, and closed (even if parsing fails).
+	 * @param inputStream the page
+	 * @param fileName the name of the page file
+	 * @param train training mode
+	 * @return the page infos, with the records
+	 * @throws FeatureException
+	 * @throws DCTExtractorException
+	 * @throws IOException
+	 */
 	public PageInfo getPageInfos(InputStream inputStream, String fileName, boolean train) throws FeatureException, DCTExtractorException, IOException {
+		ByteBuffer window = ByteBuffer.wrap(this.readBuffer);
+		window.limit(0);
+		try {
+			return this.getPageInfos(window, inputStream, fileName, train);
+		} finally {
+			inputStream.close();
+		}
+	}
+
+	/**
+	 * Parse an HTML file and extract its records. The file is memory-mapped
+	 * (only the bytes that are parsed, see MAX_READ_BYTES) and closed once mapped.
+	 * @param file the page file
+	 * @param fileName the name of the page file
+	 * @param train training mode
+	 * @return the page infos, with the records
+	 * @throws FeatureException
+	 * @throws DCTExtractorException
+	 * @throws IOException
+	 */
+	public PageInfo getPageInfos(File file, String fileName, boolean train) throws FeatureException, DCTExtractorException, IOException {
+		ByteBuffer page;
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			page = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), MAX_READ_BYTES));
+		} finally {
+			channel.close();
+		}
+		return this.getPageInfos(page, null, fileName, train);
+	}
+
+	/**
+	 * Parse an HTML page held in memory and extract its records.
+	 * @param page the page content (the position of the buffer is not modified)
+	 * @param fileName the name of the page file
+	 * @param train training mode
+	 * @return the page infos, with the records
+	 * @throws FeatureException
+	 * @throws DCTExtractorException
+	 * @throws IOException
+	 */
+	public PageInfo getPageInfos(ByteBuffer page, String fileName, boolean train) throws FeatureException, DCTExtractorException, IOException {
+		return this.getPageInfos(page.duplicate(), null, fileName, train);
+	}
+
+	/**
+	 * Parse an HTML page held in memory and extract its records.
+	 * @param page the page content
+	 * @param fileName the name of the page file
+	 * @param train training mode
+	 * @return the page infos, with the records
+	 * @throws FeatureException
+	 * @throws DCTExtractorException
+	 * @throws IOException
+	 */
+	public PageInfo getPageInfos(byte[] page, String fileName, boolean train) throws FeatureException, DCTExtractorException, IOException {
+		return this.getPageInfos(ByteBuffer.wrap(page), null, fileName, train);
+	}
+
+	/**
+	 * Parse an HTML page and extract its records. Bytes are read from a window,
+	 * refilled from a stream (if any), and decoded incrementally (see {@link PageDecoder}).
+	 * @param window the bytes of the page (or the first bytes read from the stream)
+	 * @param inputStream the stream refilling the window (array-backed), or null (it is not closed)
+	 */
+	@SuppressWarnings("unchecked")
+	private PageInfo getPageInfos(ByteBuffer window, InputStream inputStream, String fileName, boolean train) throws FeatureException, DCTExtractorException, IOException {
 		// Result
 		PageInfo pageInfo;
 		RecordList records = new RecordList(this);
@@ -949,17 +1074,23 @@ public class DCTExtractorRecordFactory extends CRFRecordFactory {
 		 ********************/
 		// parsed character (integer and char values)
 		int readCharInt;
+		// character following the closing tag name of a skipped element
+		int skipEndCharInt = -1;
 		//        char readChar;
 		// Current entry
 		//        String entry = "";
-		byte[] entry = new byte[MAX_ENTRY_LENGTH];
+		char[] entry = new char[MAX_ENTRY_LENGTH];
 		int entryLength = 0;
 		String entryStr;
 		// Current HTML tag name
 		String tagName = null;
-		// Current HTML attribute name
-		String attName = null; 
-		HashMap<String, String> tagAttributes = new HashMap<String, String>();
+		// Index of the current HTML attribute (see TagAttributes)
+		int attIndex = TagAttributes.NONE;
+		if (this.tagAttributes == null) {
+			this.tagAttributes = new TagAttributes();
+		}
+		TagAttributes tagAttributes = this.tagAttributes;
+		tagAttributes.clear();
 		// in a HTML tag
 		boolean inTag = false;
 		// in a closing HTML tag
@@ -977,7 +1108,7 @@ public class DCTExtractorRecordFactory extends CRFRecordFactory {
 		// ending a comment
 		int outOfCommentCharacters = 0;
 		// Characters that may be kept or not in the output
-		byte[] keptInCase = new byte[MAX_KEPT_IN_CASE_LENGH];
+		char[] keptInCase = new char[MAX_KEPT_IN_CASE_LENGH];
 		int keptInCaseLength = 0;
 		// Current HTML entity content
 		String entityContent = "";
@@ -1015,7 +1146,9 @@ public class DCTExtractorRecordFactory extends CRFRecordFactory {
 		this.dateElementPositions.clear();
 		this.lastTriggerPosition = -1;
 		this.lastAntiTriggerPosition = -1;
-		this.charset = DEFAULT_CHARSET;
+		if (this.pageDecoder == null) {
+			this.pageDecoder = new PageDecoder(DEFAULT_CHARSET);
+		}
 
 		// Evaluation infos
 		if (this.evalMode) {
@@ -1024,12 +1157,10 @@ public class DCTExtractorRecordFactory extends CRFRecordFactory {
 			this.evalDCTString = "";
 		}
 		try {
-			int bytesRead = 0;
-			while ((readCharInt = inputStream.read()) != -1) {
-				// Protection from huge files
-				bytesRead++;
-				if (bytesRead > MAX_READ_BYTES) break;
-
+			// Protection from huge files
+			this.pageDecoder.reset(window, inputStream, MAX_READ_BYTES);
+			while ((readCharInt = skipEndCharInt >= 0 ? skipEndCharInt : this.pageDecoder.read()) >= 0) {
+				skipEndCharInt = -1;
 				try {
 					Record record = null;
 					//        			System.out.print(readCharInt);
@@ -1068,27 +1199,27 @@ public class DCTExtractorRecordFactory extends CRFRecordFactory {
 						}
 						// "=" -> this is not an entity but a URL
 						else if (readCharInt == CHAR_EQUALS) {
-							for (byte b : entityContent.getBytes(this.charset)) {
-								entry[entryLength++] = b;
+							for (int i = 0 ; i < entityContent.length() ; i++) {
+								entry[entryLength++] = entityContent.charAt(i);
 							}
-							entry[entryLength++] = (byte)readCharInt;
+							entry[entryLength++] = (char)readCharInt;
 							inEntity = false;
 						}
 						// "&" -> this is not an entity but some javascript
 						else if (readCharInt == CHAR_AMP) {
-							for (byte b : entityContent.getBytes(this.charset)) {
-								entry[entryLength++] = b;
+							for (int i = 0 ; i < entityContent.length() ; i++) {
+								entry[entryLength++] = entityContent.charAt(i);
 							}
-							entry[entryLength++] = (byte)readCharInt;
+							entry[entryLength++] = (char)readCharInt;
 							inEntity = false;
 						}
 						// space or '<' -> this is not an entity but a single "&" (illformed HTML)
 						else if (Character.isWhitespace(readCharInt) || readCharInt == CHAR_NBSP || readCharInt == CHAR_LT) {
-							for (byte b : entityContent.getBytes(this.charset)) {
-								entry[entryLength++] = b;
+							for (int i = 0 ; i < entityContent.length() ; i++) {
+								entry[entryLength++] = entityContent.charAt(i);
 							}
 							//        					entry[entryLength++] = (byte)'&';
-							//        					entry[entryLength++] = (byte)readCharInt;
+							//        					entry[entryLength++] = (char)readCharInt;
 							inEntity = false;
 						}
 						// Inside entity
@@ -1102,7 +1233,7 @@ public class DCTExtractorRecordFactory extends CRFRecordFactory {
 					}
 					// carriage return or tabulation
 					// space
-					if ((Character.isWhitespace(readCharInt) || readCharInt == CHAR_NBSP) && (entryLength == 0 || entry[entryLength-1] != (byte)-61)) {
+					if (Character.isWhitespace(readCharInt) || readCharInt == CHAR_NBSP) {
 						//            			if (entry.equals(WA_START_TAG)) {
 						//            				System.out.println("\n" + inAttValue);
 						//            				System.out.println();
@@ -1110,13 +1241,13 @@ public class DCTExtractorRecordFactory extends CRFRecordFactory {
 
 						if (inTag) {
 							if (tagName == null) {
-								tagName = new String(entry, 0, entryLength, this.charset);
+								tagName = HtmlTags.getName(entry, entryLength);
 								//        					tagName = entry;
 							}
 						} else {
 							// Here, entry is a new record
 							if (entryLength > 0) {
-								entryStr = new String(entry, 0, entryLength, this.charset);
+								entryStr = new String(entry, 0, entryLength);
 								record = getRecordFromEntry(entryStr, entryStr + " ", TYPE_TEXT, null);
 							}
 						}
@@ -1146,24 +1277,24 @@ public class DCTExtractorRecordFactory extends CRFRecordFactory {
 						if (readCharInt == CHAR_LT && !fromEntity) {
 							// Here, entry is a new record
 							if (entryLength > 0) {
-								entryStr = new String(entry, 0, entryLength, this.charset);
+								entryStr = new String(entry, 0, entryLength);
 								record = getRecordFromEntry(entryStr, entryStr, TYPE_TEXT, null);
 								entryLength = 0;
 							}
 							// if already in a tag : illformed HTML, skip the tag
 							else if (inTag && !this.inSkipElem) {
 								inTag = false;
-								attName = null;
+								attIndex = TagAttributes.NONE;
 								continue;
 							}
 							inTag = true;
-							tagAttributes = new HashMap<String, String>();
-							attName = null;
+							tagAttributes.clear();
+							attIndex = TagAttributes.NONE;
 						}
 						// closing '>' of an opening tag
 						else if (readCharInt == CHAR_GT && !fromEntity && !inClosingTag) {
 							if (tagAttributes.isEmpty() && tagName == null) {
-								tagName = new String(entry, 0, entryLength, this.charset);
+								tagName = HtmlTags.getName(entry, entryLength);
 							}
 							//	            			entry += readChar;
 							// Here, entry is a new record
@@ -1174,7 +1305,7 @@ public class DCTExtractorRecordFactory extends CRFRecordFactory {
 							entryLength = 0;
 							inTag = false;
 							tagName = null;
-							tagAttributes = new HashMap<String, String>();
+							tagAttributes.clear();
 						}
 						// closing '>' of a closing tag
 						else if (readCharInt == CHAR_GT && !fromEntity && inClosingTag) {
@@ -1183,40 +1314,40 @@ public class DCTExtractorRecordFactory extends CRFRecordFactory {
 							if (entryLength == 0) {
 								entryStr = tagName;
 							} else {
-								entryStr = new String(entry, 0, entryLength, this.charset);
+								entryStr = HtmlTags.getName(entry, entryLength);
 							}
 							record = getRecordFromEntry(entryStr, null, TYPE_CLOSING_TAG, tagAttributes);
 							entryLength = 0;
 							inTag = false;
 							inClosingTag = false;
 							tagName = null;
-							tagAttributes = new HashMap<String, String>();
+							tagAttributes.clear();
 						}
 						// '=' between attribute name and value
 						else if (readCharInt == CHAR_EQUALS && inTag && inAttValue == 0 && !this.inSkipElem) {
 							inAttValue = 1;
-							attName = new String(entry, 0, entryLength, this.charset);
+							attIndex = TagAttributes.getIndex(entry, entryLength);
 
 							entryLength = 0;
 						}
 						// '/' indicating a closing tag
-						else if (readCharInt == CHAR_SLASH && inTag && attName == null && entryLength == 0) {
+						else if (readCharInt == CHAR_SLASH && inTag && attIndex == TagAttributes.NONE && entryLength == 0) {
 							inClosingTag = true;
 						}
 						// closing '"' for attribute value
-						else if (readCharInt == CHAR_DOUBLE_QUOTE && inTag && inAttValue == 2 && attName != null && !this.inSkipElem) {
-							tagAttributes.put(attName, new String(entry, 0, entryLength, this.charset));
+						else if (readCharInt == CHAR_DOUBLE_QUOTE && inTag && inAttValue == 2 && attIndex != TagAttributes.NONE && !this.inSkipElem) {
+							tagAttributes.put(attIndex, entry, entryLength);
 							entryLength = 0;
 							inAttValue = 0;
-							attName = null;
+							attIndex = TagAttributes.NONE;
 						}
 						// opening '"' for attribute value
-						else if (readCharInt == CHAR_DOUBLE_QUOTE && inTag && inAttValue == 1 && attName != null && !this.inSkipElem) {
+						else if (readCharInt == CHAR_DOUBLE_QUOTE && inTag && inAttValue == 1 && attIndex != TagAttributes.NONE && !this.inSkipElem) {
 							inAttValue = 2;
 						}
 						// characters to skip if followed by a blank
 						else if ((readCharInt == CHAR_COLON || readCharInt == CHAR_COMMA || readCharInt == CHAR_DOT || readCharInt == CHAR_PIPE || readCharInt == CHAR_DASH || readCharInt == CHAR_SEMI_COMMA) && !this.inSkipElem) {
-							keptInCase[keptInCaseLength++] = (byte)readCharInt;
+							keptInCase[keptInCaseLength++] = (char)readCharInt;
 							continue;
 						}
 						// characters to skip in any case
@@ -1225,7 +1356,7 @@ public class DCTExtractorRecordFactory extends CRFRecordFactory {
 						}
 						// other character
 						else {        				
-							entry[entryLength++] = (byte)readCharInt;
+							entry[entryLength++] = (char)readCharInt;
 						}
 					}    	
 					// Add record if new one
@@ -1305,6 +1436,19 @@ public class DCTExtractorRecordFactory extends CRFRecordFactory {
 					}
 					keptInCaseLength = 0;
 					fromEntity = false;
+					// Raw text element to skip (script, style...): go directly
+					// to its closing tag, and parse the tag
+					if (this.inSkipElem && RAW_TEXT_ELEM_IDS_TO_SKIP[this.skipElemId] && !inTag) {
+						skipEndCharInt = this.pageDecoder.skipElement(this.skipElemName);
+						if (skipEndCharInt >= 0) {
+							inTag = true;
+							inClosingTag = true;
+							tagAttributes.clear();
+							attIndex = TagAttributes.NONE;
+							entryLength = this.skipElemName.length();
+							this.skipElemName.getChars(0, entryLength, entry, 0);
+						}
+					}
 				} catch (ArrayIndexOutOfBoundsException e) {
 					if (entryLength == MAX_ENTRY_LENGTH + 1) {
 						entryLength = MAX_ENTRY_LENGTH / 10;
@@ -1314,7 +1458,6 @@ public class DCTExtractorRecordFactory extends CRFRecordFactory {
 					}
 				}
 			}
-			inputStream.close();
 
 			/*****************
 			 * Extract page title
@@ -1641,10 +1784,43 @@ public class DCTExtractorRecordFactory extends CRFRecordFactory {
 		return result;
 	}
 
+	/**
+	 * Check whether some records are date candidates (records of the date vocabulary).
+	 * Filtered records (see {@link #getPageInfos(InputStream, String, boolean)}) without
+	 * date candidate contain only the file separation record, and have no DCT to label.
+	 * @param records the records of one or several pages
+	 * @return true if a record is a date candidate
+	 * @throws FeatureException
+	 */
+	public boolean hasDateCandidates(RecordList records) throws FeatureException {
+		int dateFeatureId = this.getFeatureId(DATE_VOCABULARY_FEATURE);
+		for (Record record : records) {
+			if (!(record instanceof SeparationRecord) && (Boolean)record.get(dateFeatureId)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	public HashMap<Object, PageInfo> getLabeledPageInfos() {
 		return this.hypPageInfos;
 	}
 
+	/**
+	 * @param tokenClassCache the cache of the vocabulary classes of tokens (null to disable it),
+	 * to be used with the vocabulary of this factory only
+	 */
+	void setTokenClassCache(TokenClassCache tokenClassCache) {
+		this.tokenClassCache = tokenClassCache;
+	}
+
+	/**
+	 * @return the cache of the vocabulary classes of tokens, or null if disabled
+	 */
+	TokenClassCache getTokenClassCache() {
+		return this.tokenClassCache;
+	}
+
 
 	private class TextPosition {
 		private String text;
@@ -41,6 +41,7 @@ public class DCTExtractorTrainingAndEvaluation {
     private static final String OPTION_CONF_FILE = "c";
     private static final String OPTION_WAPITI_BINARY_FILE = "w";
     private static final String OPTION_GET_DCT_BY_SCORES = "s";
+    private static final String OPTION_COMPARED_LABELERS = "labelers";
     
     // For evaluation purpose only
     private static final String OPTION_URL_MAPPING_FILE = "url_mapping";
@@ -49,6 +50,9 @@ public class DCTExtractorTrainingAndEvaluation {
     private static final String OPTION_MODE_TEST = "test";
     private static final String OPTION_MODE_SPLIT_VALIDATION = "split";
     private static final String OPTION_MODE_CROSS_VALIDATION = "cross";
+    private static final String OPTION_MODE_QUANTIZATION = "quantize";
+    private static final String OPTION_MODE_LABELER_COMPARISON = "compare";
+    private static final String OPTION_MODE_RULE_BUNDLE = "bundle";
     
     protected final static String WAPITI_MODEL_FILE = "WAPITI_MODEL_FILE";
     protected final static String DATE_IN_URL_PATTERNS_FILE_NAME = "DATE_IN_URL_PATTERNS_FILE_NAME";
@@ -151,7 +155,7 @@ public class DCTExtractorTrainingAndEvaluation {
             /**************************/
             /* Program parameters *****/
             /**************************/
-            Option modeOption = new Option(OPTION_MODE, true, "Mode: [" + OPTION_MODE_TRAIN + "|" + OPTION_MODE_TEST + "|" + OPTION_MODE_SPLIT_VALIDATION + "|" + OPTION_MODE_CROSS_VALIDATION + "] (default is test)");
+            Option modeOption = new Option(OPTION_MODE, true, "Mode: [" + OPTION_MODE_TRAIN + "|" + OPTION_MODE_TEST + "|" + OPTION_MODE_SPLIT_VALIDATION + "|" + OPTION_MODE_CROSS_VALIDATION + "|" + OPTION_MODE_QUANTIZATION + "|" + OPTION_MODE_LABELER_COMPARISON + "|" + OPTION_MODE_RULE_BUNDLE + "] (default is test)");
             options.addOption(modeOption);
             Option langOption = new Option(OPTION_LANGUAGE, true, "Language: [en|en_US|en_GB|fr]");
             langOption.setRequired(true);
@@ -170,10 +174,12 @@ public class DCTExtractorTrainingAndEvaluation {
             options.addOption(dirOption);
             Option confFileOption = new Option(OPTION_CONF_FILE, true, "Configuration file");
             confFileOption.setRequired(true);
-            options.addOption(OPTION_WAPITI_BINARY_FILE, true, "Wapiti binary file (default: as specified in configuration file)");
+            options.addOption(OPTION_WAPITI_BINARY_FILE, true, "Wapiti binary file (default: as specified in configuration file, only needed to label or train with Wapiti)");
             options.addOption(confFileOption);
             Option getDCTByScoresOption = new Option(OPTION_GET_DCT_BY_SCORES, false, "If set, choose DCT from candidates by picking the best CRF score. Otherwise, use the heuristic described in the LREC paper.");
             options.addOption(getDCTByScoresOption);
+            Option comparedLabelersOption = new Option(OPTION_COMPARED_LABELERS, true, "Sequence labelers compared in mode " + OPTION_MODE_LABELER_COMPARISON + " (default: in-process,process)");
+            options.addOption(comparedLabelersOption);
 
             args = options.parseOptions(args);
 
@@ -233,18 +239,18 @@ public class DCTExtractorTrainingAndEvaluation {
 
             //            File wapitiModelFile = new File(wapitiModelFileName);
 
-            // Wapiti binary file
+            // Wapiti binary file (optional, only used by Wapiti labelers and training)
             File wapitiBinaryFile = null;
             if (options.hasOptionValue(OPTION_WAPITI_BINARY_FILE)) {
                 wapitiBinaryFile = new File(options.getOptionValue(OPTION_WAPITI_BINARY_FILE));
+                if (wapitiBinaryFile.exists()) {
+                    options.setProperty(WAPITI_BINARY_PATH, wapitiBinaryFile.toString());
+                } else {
+                    throw new DCTExtractorException("Binary file " + wapitiBinaryFile.getAbsolutePath() + " does not exist");
+                }
             }
-            else {
-            	throw new DCTExtractorException("Parameter " + OPTION_WAPITI_BINARY_FILE + " must be set");
-            }
-            if (wapitiBinaryFile.exists()) {
-                options.setProperty(WAPITI_BINARY_PATH, wapitiBinaryFile.toString());
-            } else {
-                throw new DCTExtractorException("Binary file " + wapitiBinaryFile.getAbsolutePath() + " does not exist");
+            else if (options.getProperty(WAPITI_BINARY_PATH) != null) {
+                wapitiBinaryFile = new File(options.getProperty(WAPITI_BINARY_PATH).trim());
             }
 
             // Encoding for rule files
@@ -321,6 +327,47 @@ public class DCTExtractorTrainingAndEvaluation {
                     File dir = new File(options.getOptionValue(OPTION_DIR_NAME));
                     result = LocalDCTExtractor.test(dir, options, locale, wapitiModelFilePath, wapitiBinaryFile, urlMapping, downloadDate, getDCTByScores, verbose);
                 }
+                // Weight precision benchmark (in-process decoder)
+                else if (mode.equals(OPTION_MODE_QUANTIZATION)) {
+                    URL wapitiModelURL = DCTExtractorTrainingAndEvaluation.class.getClassLoader().getResource(wapitiModelFileName);
+                    if (wapitiModelURL == null) {
+                        throw new DCTExtractorException("Could not find Wapiti model file " + wapitiModelFileName);
+                    }
+                    String wapitiModelFilePath = wapitiModelURL.getFile();
+                    File dir = new File(options.getOptionValue(OPTION_DIR_NAME));
+                    result = LocalDCTExtractor.quantizationBenchmark(dir, options, locale, wapitiModelFilePath, wapitiBinaryFile, urlMapping, downloadDate, getDCTByScores, verbose);
+                }
+                // Sequence labeler comparison (parity check)
+                else if (mode.equals(OPTION_MODE_LABELER_COMPARISON)) {
+                    URL wapitiModelURL = DCTExtractorTrainingAndEvaluation.class.getClassLoader().getResource(wapitiModelFileName);
+                    if (wapitiModelURL == null) {
+                        throw new DCTExtractorException("Could not find Wapiti model file " + wapitiModelFileName);
+                    }
+                    String wapitiModelFilePath = wapitiModelURL.getFile();
+                    String[] labelers = {"in-process", "process"};
+                    if (options.hasOptionValue(OPTION_COMPARED_LABELERS)) {
+                        labelers = options.getOptionValue(OPTION_COMPARED_LABELERS).split(",");
+                        if (labelers.length != 2) {
+                            throw new DCTExtractorException("Option -" + OPTION_COMPARED_LABELERS + " must contain two labelers separated by a comma");
+                        }
+                    }
+                    File dir = new File(options.getOptionValue(OPTION_DIR_NAME));
+                    result = LocalDCTExtractor.compareLabelers(dir, options, locale, wapitiModelFilePath, wapitiBinaryFile, urlMapping, labelers[0].trim(), labelers[1].trim(), verbose);
+                }
+                // Rule bundles (written in the data directory, or in the directory given by -dir)
+                else if (mode.equals(OPTION_MODE_RULE_BUNDLE)) {
+                    File dataDir;
+                    if (options.hasOptionValue(OPTION_DIR_NAME)) {
+                        dataDir = new File(options.getOptionValue(OPTION_DIR_NAME));
+                    } else {
+                        URL dataDirURL = DCTExtractorTrainingAndEvaluation.class.getClassLoader().getResource(options.getProperty(LocalDCTExtractor.DATA_DIR_PARAMETER));
+                        if (dataDirURL == null || !dataDirURL.getProtocol().equals("file")) {
+                            throw new DCTExtractorException("Could not find data directory " + options.getProperty(LocalDCTExtractor.DATA_DIR_PARAMETER) + ", specify it with option -" + OPTION_DIR_NAME);
+                        }
+                        dataDir = new File(dataDirURL.getFile());
+                    }
+                    result = RuleBundle.compile(locale, options.getProperties(), dataDir, verbose);
+                }
             }
 
             // Print result
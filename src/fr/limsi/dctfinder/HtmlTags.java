@@ -0,0 +1,170 @@
+package fr.limsi.dctfinder;
+
+import java.util.Collection;
+
+/**
+ * Known HTML tag names, identified by small integers.
+ * Names are looked up case-insensitively, through a perfect hash table
+ * (built when the class is loaded) over the characters of the name,
+ * so that the tag names read by the parser need neither to be lower-cased
+ * nor to be allocated when written as usual.
+ * @author xtannier
+ *
+ */
+final class HtmlTags {
+
+	/** Identifier of the unknown tags */
+	static final int UNKNOWN = -1;
+
+	// Names, as usually written
+	private static final String[] NAMES = {
+		"a", "abbr", "address", "article", "aside", "b", "blockquote", "body", "br", "button",
+		"center", "cite", "code", "dd", "div", "dl", "dt", "em", "figcaption", "figure",
+		"font", "footer", "form", "h1", "h2", "h3", "h4", "h5", "h6", "head",
+		"header", "hr", "html", "i", "iframe", "img", "input", "label", "li", "link",
+		"main", "meta", "nav", "noscript", "ol", "optgroup", "option", "p", "pre", "script",
+		"section", "select", "small", "span", "strong", "style", "sub", "sup", "table", "tbody",
+		"td", "th", "thead", "time", "title", "tr", "u", "ul",
+		// WebAnnotator tags
+		"WA_Start", "WA_End"
+	};
+	private static final char[][] LOWER_CASE_NAMES = new char[NAMES.length][];
+
+	// Perfect hash table: identifier + 1 by slot (0 if empty)
+	private static int[] table;
+	private static int multiplier;
+
+	static {
+		for (int id = 0 ; id < NAMES.length ; id++) {
+			LOWER_CASE_NAMES[id] = NAMES[id].toLowerCase().toCharArray();
+		}
+		// Find a table size and a hash multiplier without collision
+		search:
+		for (int size = Integer.highestOneBit(NAMES.length) * 4 ; ; size *= 2) {
+			for (int m = 31 ; m < 1031 ; m += 2) {
+				int[] slots = new int[size];
+				int id;
+				for (id = 0 ; id < NAMES.length ; id++) {
+					int slot = hash(LOWER_CASE_NAMES[id], LOWER_CASE_NAMES[id].length, m) & (size - 1);
+					if (slots[slot] != 0) {
+						break;
+					}
+					slots[slot] = id + 1;
+				}
+				if (id == NAMES.length) {
+					table = slots;
+					multiplier = m;
+					break search;
+				}
+			}
+		}
+	}
+
+	static final int META = getId("meta");
+	static final int OPTGROUP = getId("optgroup");
+	static final int OPTION = getId("option");
+	static final int SELECT = getId("select");
+	static final int TITLE = getId("title");
+
+	private HtmlTags() {
+	}
+
+	private static int lowerCase(int c) {
+		return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+	}
+
+	private static int hash(char[] chars, int length, int m) {
+		int h = length;
+		for (int i = 0 ; i < length ; i++) {
+			h = h * m + lowerCase(chars[i]);
+		}
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * @param chars the characters of a tag name
+	 * @param length the length of the name
+	 * @return the identifier of the tag, or UNKNOWN
+	 */
+	static int getId(char[] chars, int length) {
+		int id = table[hash(chars, length, multiplier) & (table.length - 1)] - 1;
+		if (id == UNKNOWN || LOWER_CASE_NAMES[id].length != length) {
+			return UNKNOWN;
+		}
+		char[] name = LOWER_CASE_NAMES[id];
+		for (int i = 0 ; i < length ; i++) {
+			if (lowerCase(chars[i]) != name[i]) {
+				return UNKNOWN;
+			}
+		}
+		return id;
+	}
+
+	/**
+	 * @param name a tag name
+	 * @return the identifier of the tag, or UNKNOWN
+	 */
+	static int getId(String name) {
+		int length = name.length();
+		int h = length;
+		for (int i = 0 ; i < length ; i++) {
+			h = h * multiplier + lowerCase(name.charAt(i));
+		}
+		int id = table[(h ^ (h >>> 16)) & (table.length - 1)] - 1;
+		if (id == UNKNOWN || LOWER_CASE_NAMES[id].length != length) {
+			return UNKNOWN;
+		}
+		char[] lowerCaseName = LOWER_CASE_NAMES[id];
+		for (int i = 0 ; i < length ; i++) {
+			if (lowerCase(name.charAt(i)) != lowerCaseName[i]) {
+				return UNKNOWN;
+			}
+		}
+		return id;
+	}
+
+	/**
+	 * @param id a tag identifier
+	 * @return the tag name, in lower case
+	 */
+	static String getLowerCaseName(int id) {
+		return new String(LOWER_CASE_NAMES[id]);
+	}
+
+	/**
+	 * Get a tag name as a string. Known names written as usual
+	 * are not allocated.
+	 * @param chars the characters of the name
+	 * @param length the length of the name
+	 * @return the name
+	 */
+	static String getName(char[] chars, int length) {
+		int id = getId(chars, length);
+		if (id != UNKNOWN && NAMES[id].length() == length) {
+			String name = NAMES[id];
+			int i;
+			for (i = 0 ; i < length && name.charAt(i) == chars[i] ; i++);
+			if (i == length) {
+				return name;
+			}
+		}
+		return new String(chars, 0, length);
+	}
+
+	/**
+	 * @param names tag names
+	 * @return a flag for each tag identifier, true for the given names
+	 * @throws IllegalArgumentException if a name is unknown
+	 */
+	static boolean[] getFlags(Collection<String> names) {
+		boolean[] flags = new boolean[NAMES.length];
+		for (String name : names) {
+			int id = getId(name);
+			if (id == UNKNOWN) {
+				throw new IllegalArgumentException("Unknown HTML tag " + name);
+			}
+			flags[id] = true;
+		}
+		return flags;
+	}
+}
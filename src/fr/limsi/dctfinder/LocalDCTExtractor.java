@@ -1,31 +1,44 @@
 package fr.limsi.dctfinder;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import fr.limsi.tools.classification.ClassificationException;
 import fr.limsi.tools.classification.FeatureException;
+import fr.limsi.tools.classification.Record;
 import fr.limsi.tools.classification.RecordList;
 import fr.limsi.tools.classification.crf.CRFRecordFactory;
+import fr.limsi.tools.classification.crf.SeparationRecord;
+import fr.limsi.tools.classification.crf.SequenceLabelCache;
+import fr.limsi.tools.classification.crf.SequenceLabeler;
+import fr.limsi.tools.classification.crf.SequenceLabelerComparison;
+import fr.limsi.tools.classification.crf.WapitiDecoder;
+import fr.limsi.tools.classification.crf.WapitiModel;
+import fr.limsi.tools.classification.crf.WapitiProcessLabeler;
+import fr.limsi.tools.classification.crf.WapitiProcessPool;
+import fr.limsi.tools.classification.crf.WapitiTrainer;
 import fr.limsi.tools.common.CustomOptions;
 import fr.limsi.tools.common.ListTools;
 import fr.limsi.tools.common.files.HtmlFileFilter;
@@ -36,6 +49,7 @@ public class LocalDCTExtractor {
 
 	protected final static String WAPITI_MODEL_FILE = "WAPITI_MODEL_FILE";
 	protected final static String DATE_IN_URL_PATTERNS_FILE_NAME = "DATE_IN_URL_PATTERNS_FILE_NAME";
+	protected final static String RULE_BUNDLE_FILE_NAME = "RULE_BUNDLE_FILE_NAME";
 	protected final static String VOCABULARY_DIR_NAME = "VOCABULARY_DIR_NAME";
 	protected final static String VOCABULARY_FILE_LIST_NAME = "VOCABULARY_FILE_LIST_NAME";
 	protected final static String WAPITI_BINARY_PATH = "WAPITI_BINARY_PATH";
@@ -44,12 +58,46 @@ public class LocalDCTExtractor {
 	protected final static String TIME_RELATED_PATTERNS_FILE_NAME = "TIME_RELATED_PATTERNS_FILE_NAME";
 	protected final static String TITLE_PATTERNS_FILE_NAME = "TITLE_PATTERNS_FILE_NAME";
 	protected final static String TITLE_ANTI_PATTERNS_FILE_NAME = "TITLE_ANTI_PATTERNS_FILE_NAME";
+	protected final static String WAPITI_IN_PROCESS = "WAPITI_IN_PROCESS";
+	protected final static String CRF_TRAINER = "CRF_TRAINER";
+	protected final static String WAPITI_PROCESS_POOL_SIZE = "WAPITI_PROCESS_POOL_SIZE";
+	protected final static String WAPITI_WEIGHTS_PRECISION = "WAPITI_WEIGHTS_PRECISION";
+	protected final static String SEQUENCE_LABELER = "SEQUENCE_LABELER";
+	protected final static String LABEL_CACHE_SIZE = "LABEL_CACHE_SIZE";
+	protected final static String TOKEN_CLASS_CACHE_SIZE = "TOKEN_CLASS_CACHE_SIZE";
 
+	// Sequence labelers (values of parameter SEQUENCE_LABELER, or a class name)
+	protected final static String LABELER_IN_PROCESS = "in-process";
+	protected final static String LABELER_PROCESS_POOL = "process-pool";
+	protected final static String LABELER_PROCESS = "process";
+
+	// CRF trainers (values of parameter CRF_TRAINER)
+	protected final static String TRAINER_IN_PROCESS = "in-process";
+	protected final static String TRAINER_WAPITI = "wapiti";
 
-	private static final String DATE_ELEM = "date";
 
 	private static HashMap<Locale, LocalDCTExtractor> extractors = new HashMap<Locale, LocalDCTExtractor>();
 
+	// In-process decoders, by model file path and weight precision
+	private static HashMap<String, WapitiDecoder> decoders = new HashMap<String, WapitiDecoder>();
+	// Last modification time of the model file of each decoder
+	private static HashMap<String, Long> decoderModelDates = new HashMap<String, Long>();
+	// Persistent Wapiti processes, by binary and model file paths
+	private static HashMap<String, WapitiProcessPool> processPools = new HashMap<String, WapitiProcessPool>();
+	// Last modification time of the model file of each process pool
+	private static HashMap<String, Long> processPoolModelDates = new HashMap<String, Long>();
+	// Other sequence labelers, by class name and model file path
+	private static HashMap<String, SequenceLabeler> customLabelers = new HashMap<String, SequenceLabeler>();
+	// Last modification time of the model file of each other labeler
+	private static HashMap<String, Long> customLabelerModelDates = new HashMap<String, Long>();
+	// Caches of sequence labels, by labeler, model file path and weight precision
+	private static HashMap<String, SequenceLabelCache> labelCaches = new HashMap<String, SequenceLabelCache>();
+	// Last modification time of the model file of each cache
+	private static HashMap<String, Long> labelCacheModelDates = new HashMap<String, Long>();
+	// Number of pages sent to the sequence labeler, and of pages without date candidate (not labeled)
+	private static AtomicLong labeledPageNumber = new AtomicLong();
+	private static AtomicLong skippedPageNumber = new AtomicLong();
+
 	//	private final static String WAPITI_MODEL_FILE_NAME = "wapiti-model.txt";
 
 
@@ -67,8 +115,19 @@ public class LocalDCTExtractor {
 	/********************
 	 * File infos
 	 ********************/
-	private File testOutFileDataset;
-	private File resultFile;
+	// Sequence labeler (see SEQUENCE_LABELER)
+	private String labelerName;
+	// Wapiti binary file given in the configuration (may be null)
+	private File wapitiBinaryFile;
+	private Properties properties;
+	// Number of persistent Wapiti processes (0 for one process per labeling)
+	private int processPoolSize;
+	// Precision of the weights of the in-process decoder (number of bits)
+	private int weightsPrecision;
+	// Maximum number of sequences in the label cache (0 for no cache)
+	private int labelCacheSize;
+	// Maximum number of tokens in the token class cache (0 for no cache)
+	private int tokenClassCacheSize;
 
 	/********************
 	 * URL patterns
@@ -92,190 +151,50 @@ public class LocalDCTExtractor {
 	protected LocalDCTExtractor(Locale locale, Properties properties, boolean evalMode, boolean verbose) throws DCTExtractorException {
 		//        this.logger = logger;
 		this.verbose = verbose;
-		try {
-			this.testOutFileDataset = File.createTempFile("test", ".crf"); 
-			this.testOutFileDataset.deleteOnExit();
-			this.resultFile = File.createTempFile("result", ".crf"); 
-			this.resultFile.deleteOnExit();
-		} catch (IOException e) {
-			throw new DCTExtractorException(e);         
-		}
-
-		HashMap<Pattern, String> dateRules = new HashMap<>();
-		HashMap<String, HashMap<Pattern, String>> allRules = new HashMap<>();
-
-		/*************************
-		 * Get vocabulary
-		 ************************/
-		String vocabularyFileListPath = properties.getProperty(DATA_DIR_PARAMETER) + "/" + locale.toString() + "/" + properties.getProperty(VOCABULARY_FILE_LIST_NAME);
-		InputStream is = this.getClass().getClassLoader().getResourceAsStream(vocabularyFileListPath);
-		if (is == null) {
-			throw new DCTExtractorException("Could not find resource file " + vocabularyFileListPath);
-		}
-
-		InputStreamReader isr = new InputStreamReader(is);
-		BufferedReader br = new BufferedReader(isr);
-		String ruleFileName;
-		String line;
-		String fields[];
-		String regex;
-		String vocabularyFilePath;
-
-		try {
-			// Parse all files in vocabulary directory
-			while ((ruleFileName=br.readLine())!=null){
-				vocabularyFilePath = properties.getProperty(DATA_DIR_PARAMETER) + "/" + locale.toString() + "/" + properties.getProperty(VOCABULARY_DIR_NAME) + "/" + ruleFileName;                
-				InputStream ruleIps = this.getClass().getClassLoader().getResourceAsStream(vocabularyFilePath);
-				if (ruleIps == null) {
-					throw new DCTExtractorException("Could not find resource file " + vocabularyFilePath + ", please compile the rules again.");
-				}
-				BufferedReader ruleBr = new BufferedReader(new InputStreamReader(ruleIps, "UTF-8"));
-
-				HashMap<Pattern, String> allPatterns = new HashMap<>();
-				if (ruleFileName.startsWith(DATE_ELEM)) {
-					while ((line=ruleBr.readLine())!=null){
-						line.replaceAll("#.*", "");
-						if (line.trim().length() == 0)
-							continue;
-						fields = line.split("\t");
-						if (fields.length == 2) {
-							regex = fields[0];
-							if (!regex.contains("(")) {
-								regex = "(" + regex + ")";
-							}
-							dateRules.put(Pattern.compile(regex, Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE), fields[1]);
-							allPatterns.put(Pattern.compile(regex, Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE), fields[1]);
-						} else {
-							ruleBr.close();
-							throw new DCTExtractorException("Bad format in list " + vocabularyFilePath + " : " + line);
-						}
-					}
-					ruleBr.close();
-				} else {
-					while ((line=ruleBr.readLine())!=null){
-						line.replaceAll("#.*", "");
-						if (line.trim().length() == 0)
-							continue;
-						allPatterns.put(Pattern.compile(line, Pattern.CASE_INSENSITIVE), "");
-					}
-				}
-				allRules.put(ruleFileName.substring(0, ruleFileName.length() - 4), allPatterns);
+		this.properties = properties;
+		this.processPoolSize = getProcessPoolSize(properties);
+		this.weightsPrecision = getWeightsPrecision(properties);
+		String cacheSize = properties.getProperty(LABEL_CACHE_SIZE);
+		if (cacheSize == null || cacheSize.trim().length() == 0) {
+			this.labelCacheSize = 0;
+		} else {
+			try {
+				this.labelCacheSize = Integer.parseInt(cacheSize.trim());
+			} catch (NumberFormatException e) {
+				throw new DCTExtractorException("Parameter " + LABEL_CACHE_SIZE + " must be an integer: " + cacheSize);
 			}
-			br.close();
-		} catch (IOException e) {
-			throw new DCTExtractorException("Couln't create rules from resource " + vocabularyFileListPath);
-		}
-
-
-		/***********************
-		 * URL patterns for finding date
-		 ***********************/
-		String urlPatternsFilePath = properties.getProperty(DATA_DIR_PARAMETER) + "/" + locale.toString() + "/" + properties.getProperty(DATE_IN_URL_PATTERNS_FILE_NAME);
-		is = this.getClass().getClassLoader().getResourceAsStream(urlPatternsFilePath);
-		if (is == null) {
-			throw new DCTExtractorException("Could not find resource file " + urlPatternsFilePath);
-		}
-
-		this.urlPatterns = new HashMap<Pattern, String>();
-		try {
-			isr = new InputStreamReader(is, "UTF-8");
-			br = new BufferedReader(isr);
-
-			while ((line=br.readLine())!=null){
-				if (line.trim().length() == 0)
-					continue;
-				line.replaceAll("#.*", "");
-				fields = line.split("\t");
-				if (fields.length == 2) {
-					regex = fields[0];
-					if (!regex.contains("(")) {
-						regex = "(" + regex + ")";
-					}
-					this.urlPatterns.put(Pattern.compile(regex), fields[1]);
-				} else {
-					br.close();
-					throw new DCTExtractorException("Bad format in list " + properties.getProperty(DATE_IN_URL_PATTERNS_FILE_NAME) + " : " + line);
-				}
-			}    
-			br.close();
-		} catch (IOException e) {
-			throw new DCTExtractorException("Couln't create URL patterns from resource " + properties.getProperty(DATE_IN_URL_PATTERNS_FILE_NAME));
-		}
-
-		/*****************
-		 * Title & time-related patterns
-		 *****************/
-		// All patterns for finding title-related tags
-		ArrayList<Pattern> titleTagRelatedPatterns = new ArrayList<>(); 
-		// All patterns for discarding title-related tags
-		ArrayList<Pattern> titleTagRelatedAntiPatterns = new ArrayList<>();
-		// All patterns for finding date-related tags
-		ArrayList<Pattern> timeTagRelatedPatterns = new ArrayList<>();
-
-		// Time-related tag patterns
-		String path = properties.getProperty(DATA_DIR_PARAMETER) + "/" + locale.toString() + "/" + properties.getProperty(TIME_RELATED_PATTERNS_FILE_NAME);       
-		is = this.getClass().getClassLoader().getResourceAsStream(path);
-		if (is == null) {
-			throw new DCTExtractorException("Could not find resource file " + path);
-		}
-
-		try {
-			isr = new InputStreamReader(is, "UTF-8");
-			br = new BufferedReader(isr);
-
-			while ((line=br.readLine())!=null){
-				if (line.trim().length() == 0)
-					continue;
-				line.replaceAll("#.*", "");
-				timeTagRelatedPatterns.add(Pattern.compile(line, Pattern.CASE_INSENSITIVE));  
-			}   
-			br.close();
-		} catch (IOException e) {
-			throw new DCTExtractorException("Couln't create URL patterns from resource " + properties.getProperty(DATE_IN_URL_PATTERNS_FILE_NAME));
 		}
-
-		// Title tag patterns
-		path = properties.getProperty(DATA_DIR_PARAMETER) + "/" + locale.toString() + "/" + properties.getProperty(TITLE_PATTERNS_FILE_NAME);       
-		is = this.getClass().getClassLoader().getResourceAsStream(path);
-		if (is == null) {
-			throw new DCTExtractorException("Could not find resource file " + path);
+		cacheSize = properties.getProperty(TOKEN_CLASS_CACHE_SIZE);
+		if (cacheSize == null || cacheSize.trim().length() == 0) {
+			this.tokenClassCacheSize = 0;
+		} else {
+			try {
+				this.tokenClassCacheSize = Integer.parseInt(cacheSize.trim());
+			} catch (NumberFormatException e) {
+				throw new DCTExtractorException("Parameter " + TOKEN_CLASS_CACHE_SIZE + " must be an integer: " + cacheSize);
+			}
 		}
-
-		try {
-			isr = new InputStreamReader(is, "UTF-8");
-			br = new BufferedReader(isr);
-
-			while ((line=br.readLine())!=null){
-				if (line.trim().length() == 0)
-					continue;
-				line.replaceAll("#.*", "");
-				titleTagRelatedPatterns.add(Pattern.compile(line, Pattern.CASE_INSENSITIVE));  
-			} 
-			br.close();
-		} catch (IOException e) {
-			throw new DCTExtractorException("Couln't create URL patterns from resource " + properties.getProperty(DATE_IN_URL_PATTERNS_FILE_NAME));
+		this.labelerName = properties.getProperty(SEQUENCE_LABELER);
+		if (this.labelerName == null || this.labelerName.trim().length() == 0) {
+			// Former configuration files (WAPITI_IN_PROCESS only selects the labeler)
+			if ("false".equalsIgnoreCase(properties.getProperty(WAPITI_IN_PROCESS, "true").trim())) {
+				this.labelerName = this.processPoolSize > 0 ? LABELER_PROCESS_POOL : LABELER_PROCESS;
+			} else {
+				this.labelerName = LABELER_IN_PROCESS;
+			}
+		} else {
+			this.labelerName = this.labelerName.trim();
 		}
-
-		path = properties.getProperty(DATA_DIR_PARAMETER) + "/" + locale.toString() + "/" + properties.getProperty(TITLE_ANTI_PATTERNS_FILE_NAME);       
-		is = this.getClass().getClassLoader().getResourceAsStream(path);
-		if (is == null) {
-			throw new DCTExtractorException("Could not find resource file " + path);
+		String wapitiBinaryPath = properties.getProperty(WAPITI_BINARY_PATH);
+		if (wapitiBinaryPath != null && wapitiBinaryPath.trim().length() > 0) {
+			this.wapitiBinaryFile = new File(wapitiBinaryPath.trim());
 		}
 
-		try {
-			isr = new InputStreamReader(is, "UTF-8");
-			br = new BufferedReader(isr);
-
-			while ((line=br.readLine())!=null){
-				if (line.trim().length() == 0)
-					continue;
-				line.replaceAll("#.*", "");
-				titleTagRelatedAntiPatterns.add(Pattern.compile(line, Pattern.CASE_INSENSITIVE));  
-			} 
-			br.close();
-		} catch (IOException e) {
-			throw new DCTExtractorException("Couln't create URL patterns from resource " + properties.getProperty(DATE_IN_URL_PATTERNS_FILE_NAME));
-		}
+		/*************************
+		 * Rules (vocabulary, URL, title & time-related patterns)
+		 ************************/
+		RuleBundle rules = RuleBundle.get(locale, properties, verbose);
+		this.urlPatterns = rules.getUrlPatterns();
 
 		/*********************
 		 * English Locale patch
@@ -291,8 +210,13 @@ public class LocalDCTExtractor {
 			this.locale = locale;
 		}
 		try {
-			this.factory = new DCTExtractorRecordFactory(this.locale, allRules, titleTagRelatedPatterns, titleTagRelatedAntiPatterns, timeTagRelatedPatterns, properties, evalMode, verbose);
-			this.dateParser = new DateParser(this.locale, dateRules);
+			this.factory = new DCTExtractorRecordFactory(this.locale, rules.getVocabularyMatcher(), rules.getTitleTagRelatedPatterns(), rules.getTitleTagRelatedAntiPatterns(),
+					rules.getTimeTagRelatedPatterns(), properties, evalMode, verbose);
+			// Token classes are cached by locale, for all the pages of this extractor
+			if (this.tokenClassCacheSize > 0) {
+				this.factory.setTokenClassCache(new TokenClassCache(this.tokenClassCacheSize));
+			}
+			this.dateParser = new DateParser(this.locale, rules.getDateRules());
 		} catch (IOException | FeatureException e) {
 			throw new DCTExtractorException(e);
 		}
@@ -382,130 +306,322 @@ public class LocalDCTExtractor {
 		return proc.exitValue();
 	}
 
-	protected static int wapitiTest(File testOutFileDataset, File resultOutFile, String wapitiModelFilePath, File wapitiBinaryFile, boolean verbose) throws IOException, InterruptedException, DCTExtractorException {
-		return wapitiTest(testOutFileDataset, resultOutFile, wapitiModelFilePath, wapitiBinaryFile, false, verbose);
-	}
-
-	protected static int wapitiTest(File testOutFileDataset, File resultOutFile, String wapitiModelFilePath, File wapitiBinaryFile, boolean append, final boolean verbose) throws IOException, InterruptedException, DCTExtractorException {
-		// Building Wapiti command for testing
-		//		String command = wapitiBinaryPath + " label -s -n 2 -m " + wapitiModelFileName + " " + testOutFileDataset.getAbsolutePath() + " " + resultOutFile.getAbsolutePath();
-		File resultFile;
-
-		if (!resultOutFile.getParentFile().isDirectory()) {
-			resultOutFile.getParentFile().mkdirs();
+	/**
+	 * Get the number of processes of Wapiti process pools (parameter WAPITI_PROCESS_POOL_SIZE, default: one per core).
+	 */
+	private static int getProcessPoolSize(Properties properties) throws DCTExtractorException {
+		String poolSize = properties.getProperty(WAPITI_PROCESS_POOL_SIZE);
+		if (poolSize == null || poolSize.trim().length() == 0) {
+			return Runtime.getRuntime().availableProcessors();
+		}
+		try {
+			return Integer.parseInt(poolSize.trim());
+		} catch (NumberFormatException e) {
+			throw new DCTExtractorException("Parameter " + WAPITI_PROCESS_POOL_SIZE + " must be an integer: " + poolSize);
 		}
+	}
 
-		if (append) {
-			resultFile = File.createTempFile("WAPITI", ".crf");
-			resultFile.deleteOnExit();
+	/**
+	 * Get the precision of the weights of the in-process decoder
+	 * (parameter WAPITI_WEIGHTS_PRECISION: double, float, half or byte).
+	 * @param properties the configuration
+	 * @return the number of bits of each weight
+	 * @throws DCTExtractorException
+	 */
+	private static int getWeightsPrecision(Properties properties) throws DCTExtractorException {
+		String precision = properties.getProperty(WAPITI_WEIGHTS_PRECISION, "double").trim();
+		if (precision.equalsIgnoreCase("double")) {
+			return WapitiModel.PRECISION_DOUBLE;
+		} else if (precision.equalsIgnoreCase("float")) {
+			return WapitiModel.PRECISION_FLOAT;
+		} else if (precision.equalsIgnoreCase("half")) {
+			return WapitiModel.PRECISION_HALF;
+		} else if (precision.equalsIgnoreCase("byte")) {
+			return WapitiModel.PRECISION_BYTE;
 		} else {
-			resultFile = resultOutFile;
+			throw new DCTExtractorException("Parameter " + WAPITI_WEIGHTS_PRECISION + " must be double, float, half or byte: " + precision);
 		}
+	}
 
-		String command = wapitiBinaryFile.getAbsolutePath() + " label -s -p -m " + wapitiModelFilePath + " " + testOutFileDataset.getAbsolutePath() + " " + resultFile.getAbsolutePath();
+	/**
+	 * Get the in-process decoder for a Wapiti model file. Decoders are shared
+	 * between extractors and reloaded when the model file is modified
+	 * (e.g. during cross-validation).
+	 * @param wapitiModelFilePath the path of the Wapiti model file
+	 * @param weightsPrecision the precision of the weights (number of bits, 
+	 * see {@link WapitiModel#quantize(int)})
+	 * @return the decoder
+	 * @throws IOException
+	 * @throws DCTExtractorException
+	 */
+	protected static synchronized WapitiDecoder getDecoder(String wapitiModelFilePath, int weightsPrecision) throws IOException, DCTExtractorException {
+		File modelFile = new File(wapitiModelFilePath);
+		if (!modelFile.isFile()) {
+			throw new DCTExtractorException("Wapiti model file " + modelFile.getAbsolutePath() + " does not exist");
+		}
+		String key = wapitiModelFilePath + "\t" + weightsPrecision;
+		WapitiDecoder decoder = decoders.get(key);
+		Long modelDate = decoderModelDates.get(key);
+		if (decoder == null || modelDate == null || modelDate != modelFile.lastModified()) {
+			try {
+				WapitiModel model = WapitiModel.load(modelFile);
+				if (model.getWeightPrecision() != weightsPrecision) {
+					model = model.quantize(weightsPrecision);
+				}
+				decoder = new WapitiDecoder(model);
+			} catch (ClassificationException e) {
+				throw new DCTExtractorException(e);
+			}
+			decoders.put(key, decoder);
+			decoderModelDates.put(key, modelFile.lastModified());
+		}
+		return decoder;
+	}
 
-		if (verbose) {
-			System.out.println("Labeling command: " + command);
+	/**
+	 * Get the pool of persistent Wapiti processes for a Wapiti binary and model file. 
+	 * Pools are shared between extractors and restarted when the model file is modified
+	 * (e.g. during cross-validation).
+	 * @param wapitiModelFilePath the path of the Wapiti model file
+	 * @param wapitiBinaryFile the Wapiti binary file
+	 * @param size the number of processes
+	 * @param verbose
+	 * @return the process pool
+	 * @throws IOException
+	 */
+	protected static synchronized WapitiProcessPool getProcessPool(String wapitiModelFilePath, File wapitiBinaryFile, int size, boolean verbose) throws IOException {
+		String key = wapitiBinaryFile.getAbsolutePath() + "\t" + wapitiModelFilePath;
+		long modelDate = new File(wapitiModelFilePath).lastModified();
+		WapitiProcessPool pool = processPools.get(key);
+		Long poolModelDate = processPoolModelDates.get(key);
+		if (pool == null || poolModelDate == null || poolModelDate != modelDate) {
+			if (pool != null) {
+				pool.close();
+			}
+			pool = new WapitiProcessPool(wapitiBinaryFile, wapitiModelFilePath, size, verbose);
+			processPools.put(key, pool);
+			processPoolModelDates.put(key, modelDate);
 		}
+		return pool;
+	}
 
-		// Lauching process
-		final Process proc = Runtime.getRuntime().exec(command);	
+	/**
+	 * Get a sequence labeler. Labelers are shared between extractors
+	 * and recreated when the model file is modified.
+	 * @param labelerName {@link #LABELER_IN_PROCESS}, {@link #LABELER_PROCESS_POOL}, {@link #LABELER_PROCESS},
+	 * or the name of a class implementing {@link SequenceLabeler}
+	 * @param wapitiModelFilePath the path of the Wapiti model file
+	 * @param wapitiBinaryFile the Wapiti binary file (only used by Wapiti process labelers)
+	 * @param processPoolSize the number of Wapiti processes (only used by pools, 
+	 * see {@link #getProcessPoolSize(Properties)})
+	 * @param properties the configuration
+	 * @param verbose
+	 * @return the labeler
+	 * @throws IOException
+	 * @throws DCTExtractorException
+	 */
+	protected static SequenceLabeler getLabeler(String labelerName, String wapitiModelFilePath, File wapitiBinaryFile, int processPoolSize, Properties properties, boolean verbose) throws IOException, DCTExtractorException {
+		if (labelerName.equals(LABELER_IN_PROCESS)) {
+			return getDecoder(wapitiModelFilePath, getWeightsPrecision(properties));
+		} else if (labelerName.equals(LABELER_PROCESS_POOL) || labelerName.equals(LABELER_PROCESS)) {
+			if (wapitiBinaryFile == null) {
+				throw new DCTExtractorException("Sequence labeler " + labelerName + " needs a Wapiti binary file (parameter " + WAPITI_BINARY_PATH + ")");
+			} else if (!wapitiBinaryFile.isFile()) {
+				throw new DCTExtractorException("Binary file " + wapitiBinaryFile.getAbsolutePath() + " does not exist");
+			}
+			if (labelerName.equals(LABELER_PROCESS)) {
+				return new WapitiProcessLabeler(wapitiBinaryFile, wapitiModelFilePath, verbose);
+			}
+			return getProcessPool(wapitiModelFilePath, wapitiBinaryFile, processPoolSize, verbose);
+		} else {
+			return getCustomLabeler(labelerName, wapitiModelFilePath, properties);
+		}
+	}
 
-		// Get wapiti standard output
-		// in java output must be consumed even if it's not used
-		Thread stdThread = new Thread() {
-			public void run() {
-				try {
-					BufferedReader reader = new BufferedReader(
-							new InputStreamReader(proc.getInputStream()));
-					String line = "";
-					try {
-						while ((line = reader.readLine()) != null) {
-							if (verbose) {
-								System.out.println(line);
-							}
-						}
-					} finally {
-						reader.close();
-					}
-				} catch (IOException ioe) {
-					ioe.printStackTrace();
-				}
+	/**
+	 * Get a sequence labeler given by its class name (see {@link SequenceLabeler}).
+	 */
+	private static synchronized SequenceLabeler getCustomLabeler(String className, String wapitiModelFilePath, Properties properties) throws DCTExtractorException {
+		String key = className + "\t" + wapitiModelFilePath;
+		long modelDate = new File(wapitiModelFilePath).lastModified();
+		SequenceLabeler labeler = customLabelers.get(key);
+		Long labelerModelDate = customLabelerModelDates.get(key);
+		if (labeler == null || labelerModelDate == null || labelerModelDate != modelDate) {
+			if (labeler != null) {
+				labeler.close();
 			}
-		};
-		// Get wapiti error output
-		Thread errThread = new Thread() {
-			public void run() {
-				try {
-					BufferedReader reader = new BufferedReader(
-							new InputStreamReader(proc.getErrorStream()));
-					String line = "";
-					try {
-						while ((line = reader.readLine()) != null) {
-							if (verbose) {
-								System.out.println(line);
-							}
-						}
-					} finally {
-						reader.close();
-					}
-				} catch (IOException ioe) {
-					ioe.printStackTrace();
-				}
+			try {
+				labeler = Class.forName(className).asSubclass(SequenceLabeler.class)
+						.getConstructor(String.class, Properties.class).newInstance(wapitiModelFilePath, properties);
+			} catch (ClassNotFoundException e) {
+				throw new DCTExtractorException("Unknown sequence labeler " + className + " (parameter " + SEQUENCE_LABELER + ")");
+			} catch (ReflectiveOperationException | ClassCastException e) {
+				throw new DCTExtractorException("Could not create sequence labeler " + className + ": " + e);
 			}
-		};
+			customLabelers.put(key, labeler);
+			customLabelerModelDates.put(key, modelDate);
+		}
+		return labeler;
+	}
 
-		stdThread.start();
-		errThread.start();
-		stdThread.join();
-		errThread.join();
-		proc.waitFor();
+	/**
+	 * Get the cache of sequence labels of a labeler and a model file. Caches are shared
+	 * between extractors and emptied when the model file is modified.
+	 * @param labelerName the labeler (see {@link #getLabeler(String, String, File, int, Properties, boolean)})
+	 * @param wapitiModelFilePath the path of the Wapiti model file
+	 * @param weightsPrecision the precision of the weights of the in-process decoder
+	 * @param size the maximum number of sequences in the cache
+	 * @param columns the columns of the CRF lines read by the labeler, or null if unknown
+	 * (see {@link SequenceLabelCache#SequenceLabelCache(int, int[])})
+	 * @return the cache
+	 */
+	protected static synchronized SequenceLabelCache getLabelCache(String labelerName, String wapitiModelFilePath, int weightsPrecision, int size, int[] columns) {
+		String key = labelerName + "\t" + wapitiModelFilePath + "\t" + weightsPrecision;
+		long modelDate = new File(wapitiModelFilePath).lastModified();
+		SequenceLabelCache cache = labelCaches.get(key);
+		Long cacheModelDate = labelCacheModelDates.get(key);
+		if (cache == null || cache.getMaxSize() != size || !Arrays.equals(cache.getColumns(), columns)) {
+			cache = new SequenceLabelCache(size, columns);
+			labelCaches.put(key, cache);
+		} else if (cacheModelDate == null || cacheModelDate != modelDate) {
+			cache.clear();
+		}
+		labelCacheModelDates.put(key, modelDate);
+		return cache;
+	}
+
+	/**
+	 * Empty the caches of sequence labels of a model file
+	 * (the model file may be rewritten within the same modification time unit).
+	 * @param wapitiModelFilePath the path of the Wapiti model file
+	 */
+	private static synchronized void clearLabelCaches(String wapitiModelFilePath) {
+		for (Entry<String, SequenceLabelCache> entry : labelCaches.entrySet()) {
+			if (entry.getKey().split("\t")[1].equals(wapitiModelFilePath)) {
+				entry.getValue().clear();
+			}
+		}
+	}
 
-		if (append) {
-			InputStream ips = new FileInputStream(resultFile); 
-			InputStreamReader ipsr = new InputStreamReader(ips);
-			BufferedReader br = new BufferedReader(ipsr);
+	/**
+	 * @return the statistics of the caches of sequence labels (one line per cache)
+	 */
+	public static synchronized String getLabelCacheStatistics() {
+		String result = "";
+		for (Entry<String, SequenceLabelCache> entry : labelCaches.entrySet()) {
+			result += entry.getKey().replace('\t', ' ') + ": " + entry.getValue() + "\n";
+		}
+		return result;
+	}
 
-			FileWriter fw = new FileWriter(resultOutFile, true);
-			BufferedWriter output = new BufferedWriter(fw);
+	/**
+	 * @return the statistics of the caches of token classes (one line per locale)
+	 */
+	public static synchronized String getTokenClassCacheStatistics() {
+		String result = "";
+		for (Entry<Locale, LocalDCTExtractor> entry : extractors.entrySet()) {
+			TokenClassCache cache = entry.getValue().factory.getTokenClassCache();
+			if (cache != null) {
+				result += entry.getKey() + ": " + cache + "\n";
+			}
+		}
+		return result;
+	}
 
-			String line;
-			while ((line = br.readLine())!=null){
-				output.write(line + "\n");
+	/**
+	 * Label records with the CRF model. The predicted class and its score
+	 * are set on each record.
+	 * Labels are cached by sequence if parameter LABEL_CACHE_SIZE is positive.
+	 * @param records the records to label
+	 * @param wapitiModelFilePath the path of the Wapiti model file
+	 * @param wapitiBinaryFile the Wapiti binary file (only used by Wapiti process labelers, 
+	 * can be null to use the one of the configuration)
+	 * @throws IOException
+	 * @throws DCTExtractorException
+	 */
+	private void label(RecordList records, String wapitiModelFilePath, File wapitiBinaryFile) throws IOException, DCTExtractorException {
+		if (wapitiBinaryFile == null) {
+			wapitiBinaryFile = this.wapitiBinaryFile;
+		}
+		try {
+			SequenceLabeler labeler = getLabeler(this.labelerName, wapitiModelFilePath, wapitiBinaryFile, this.processPoolSize, this.properties, this.verbose);
+			if (this.labelCacheSize > 0) {
+				// Sequences are identified by the values read by the model when it is known
+				int[] columns = labeler instanceof WapitiDecoder ? ((WapitiDecoder)labeler).getColumns() : null;
+				getLabelCache(this.labelerName, wapitiModelFilePath, this.weightsPrecision, this.labelCacheSize, columns).label(labeler, records);
+			} else {
+				labeler.label(records);
 			}
-			br.close();
-			output.close();			
+		} catch (ClassificationException e) {
+			throw new DCTExtractorException(e);
 		}
+	}
 
-		return proc.exitValue();
+	/**
+	 * Check whether a page has date candidates to label, and count labeled and skipped pages
+	 * (pages without date candidate have no DCT, whatever the labels).
+	 * @param pageInfo the page infos
+	 * @return true if the page must be labeled
+	 * @throws FeatureException
+	 */
+	private boolean hasDateCandidates(PageInfo pageInfo) throws FeatureException {
+		if (this.factory.hasDateCandidates(pageInfo.getRecords())) {
+			labeledPageNumber.incrementAndGet();
+			return true;
+		} else {
+			skippedPageNumber.incrementAndGet();
+			return false;
+		}
 	}
 
+	/**
+	 * @return the number of pages sent to the sequence labeler
+	 * (since the start, or the last call to {@link #resetPageCounters()})
+	 */
+	public static long getLabeledPageNumber() {
+		return labeledPageNumber.get();
+	}
+
+	/**
+	 * @return the number of pages without date candidate, for which labeling was skipped
+	 * (since the start, or the last call to {@link #resetPageCounters()})
+	 */
+	public static long getSkippedPageNumber() {
+		return skippedPageNumber.get();
+	}
+
+	/**
+	 * Reset the numbers of labeled and skipped pages.
+	 */
+	public static void resetPageCounters() {
+		labeledPageNumber.set(0);
+		skippedPageNumber.set(0);
+	}
 
-	private HashMap<String, PageInfo> getDCTFromWapitiResult(File crfFile, Calendar downloadDate, 
+	private HashMap<String, PageInfo> getDCTFromWapitiResult(RecordList records, Calendar downloadDate, 
 			HashMap<String, PageInfo> infos, 
-			double scoreThreshold, boolean getDCTByScores) throws IOException, FeatureException, DCTExtractorException {
-		InputStream ips = new FileInputStream(crfFile); 
-		InputStreamReader ipsr = new InputStreamReader(ips);
-		BufferedReader br = new BufferedReader(ipsr);
-		String recordLine;
-		String[] fields;
-		String[] classFields;
+			double scoreThreshold, boolean getDCTByScores) throws FeatureException, DCTExtractorException {
 		String text; String previousText = null;
 		String predictedClassValue;
 		String currentDateString = "";
 		String currentFileName = null;
-		Double score;
+		double score;
 		double candidateScore = 0;
 		ArrayList<String> candidateDates = new ArrayList<String>();
 		ArrayList<Double> candidateScores = new ArrayList<Double>();
 		ArrayList<String> secondChanceCandidateDates = new ArrayList<String>();
+		int textFeatureId = this.factory.getFeatureId(DCTExtractorRecordFactory.TEXT);
 		if (infos == null) {
 			infos = new HashMap<String, PageInfo>();
 		}
 		boolean firstChance = false;
-		while ((recordLine = br.readLine())!=null){
+		for (Record record : records) {
+			if (record instanceof SeparationRecord) {
+				continue;
+			}
+			text = (String)record.get(textFeatureId);
 			// If new file section opening
-			if (recordLine.startsWith(DCTExtractorRecordFactory.DCTFINDER_FILE_SEPARATOR)) {
+			if (text.startsWith(DCTExtractorRecordFactory.DCTFINDER_FILE_SEPARATOR)) {
 				// If we were already in a file section
 				if (currentFileName != null) {
 					PageInfo info = infos.get(currentFileName);
@@ -526,29 +642,20 @@ public class LocalDCTExtractor {
 					secondChanceCandidateDates.clear();
 				}
 				// get new file name
-				Matcher matcher = fileSeparationPattern.matcher(recordLine);
+				Matcher matcher = fileSeparationPattern.matcher(text + "\t");
 				if (matcher.matches()) {
 					currentFileName = matcher.group(1);
 				} else {
-					br.close();
-					throw new DCTExtractorException("Bad format in CRF output file, property " + DCTExtractorRecordFactory.DCTFINDER_FILE_SEPARATOR + " not recognized");
+					throw new DCTExtractorException("Bad format in CRF output, property " + DCTExtractorRecordFactory.DCTFINDER_FILE_SEPARATOR + " not recognized");
 				}
 			}
-			else if (recordLine.startsWith("#") || recordLine.length() == 0) {
-				continue;
-			}
-			fields = recordLine.split("\t");
-			predictedClassValue = fields[fields.length-1];			
-			classFields = predictedClassValue.split("/");
-			predictedClassValue = classFields[0];
-			if (classFields.length > 1) {
-				score = Double.parseDouble(classFields[1]);
-			} else {
-				score = 1.0;
+			predictedClassValue = record.getPredictedClass();
+			if (predictedClassValue == null) {
+				throw new DCTExtractorException("Record " + text + " has not been labeled");
 			}
+			score = record.getPredictedConfidence();
 
 			if (predictedClassValue.equals(CRFRecordFactory.CLASS_BEGIN) || predictedClassValue.equals(CRFRecordFactory.CLASS_INSIDE)) {
-				text = fields[this.factory.getFeatureId(DCTExtractorRecordFactory.TEXT)];
 				if (!text.equals(previousText)) {
 					currentDateString += text + " ";
 				}
@@ -557,7 +664,6 @@ public class LocalDCTExtractor {
 				candidateScore = score;
 			}
 			else if (scoreThreshold > 0 && score < scoreThreshold && !firstChance) {
-				text = fields[this.factory.getFeatureId(DCTExtractorRecordFactory.TEXT)];
 				if (!text.equals(previousText)) {
 					currentDateString += text + " ";
 				}
@@ -577,7 +683,6 @@ public class LocalDCTExtractor {
 				previousText = null;
 			}
 		}
-		br.close();
 
 		// Last page info
 		PageInfo info = infos.get(currentFileName);
@@ -732,7 +837,7 @@ public class LocalDCTExtractor {
 					URL url = urlMapping.get(file.getName());					
 					extractor = getExtractor(locale, options.getProperties(), url, verbose);
 
-					PageInfo pageInfo = extractor.factory.getPageInfos(new FileInputStream(file), file.getAbsolutePath(), false);
+					PageInfo pageInfo = extractor.factory.getPageInfos(file, file.getAbsolutePath(), false);
 
 					// Try to get DCT from URL
 					PageInfo urlPageInfo = extractor.getDCTFromURL(url);
@@ -740,6 +845,12 @@ public class LocalDCTExtractor {
 					if (urlPageInfo != null) {
 						pageInfo.setDCT(urlPageInfo.getDCT());
 					}
+					// If no date candidate, no DCT
+					else if (!extractor.hasDateCandidates(pageInfo)) {
+						if (verbose) {
+							System.out.println("      No date candidate, not labeled");
+						}
+					}
 					// Else, add records to the set
 					else {
 						RecordList records = allRecords.get(extractor);
@@ -755,14 +866,11 @@ public class LocalDCTExtractor {
 
 				for (Entry<LocalDCTExtractor, RecordList> recordEntries : allRecords.entrySet()) {
 					extractor = recordEntries.getKey();
-					extractor.factory.saveToCRF(recordEntries.getValue(), extractor.testOutFileDataset);
-					// Launch test
-					if (wapitiTest(extractor.testOutFileDataset, extractor.resultFile, wapitiModelFilePath, wapitiBinaryFile, verbose) != 0) {
-						throw new DCTExtractorException("Wapiti labeling has failed");
-					} 
+					// Launch labeling
+					extractor.label(recordEntries.getValue(), wapitiModelFilePath, wapitiBinaryFile);
 
 					// Get dates from Wapiti results
-					result = extractor.getDCTFromWapitiResult(extractor.resultFile, downloadDate, result, 0.90, getDCTByScores);
+					result = extractor.getDCTFromWapitiResult(recordEntries.getValue(), downloadDate, result, 0.90, getDCTByScores);
 				}
 			}
 		} else {
@@ -793,7 +901,8 @@ public class LocalDCTExtractor {
 	}
 	
 	public PageInfo getPageInfos(File htmlFile, URL url, Calendar downloadDate, String wapitiModelFilePath, File wapitiBinaryFile, boolean getDCTByScores) throws FileNotFoundException, IOException, FeatureException, DCTExtractorException, InterruptedException {		
-		return this.getPageInfos(new FileInputStream(htmlFile), htmlFile.getName(), url, downloadDate, wapitiModelFilePath, wapitiBinaryFile, getDCTByScores);
+		PageInfo pageInfo = factory.getPageInfos(htmlFile, htmlFile.getName(), false);
+		return this.getDCT(pageInfo, htmlFile.getName(), url, downloadDate, wapitiModelFilePath, wapitiBinaryFile, getDCTByScores);
 	}
 	
 	protected PageInfo getPageInfos(InputStream inputStream, String fileName, URL url, Calendar downloadDate, String wapitiModelFilePath, File wapitiBinaryFile) throws IOException, FeatureException, DCTExtractorException, InterruptedException {
@@ -802,23 +911,41 @@ public class LocalDCTExtractor {
 
 	protected PageInfo getPageInfos(InputStream inputStream, String fileName, URL url, Calendar downloadDate, String wapitiModelFilePath, File wapitiBinaryFile, boolean getDCTByScores) throws IOException, FeatureException, DCTExtractorException, InterruptedException {		
 		PageInfo pageInfo = factory.getPageInfos(inputStream, fileName, false);	
+		return this.getDCT(pageInfo, fileName, url, downloadDate, wapitiModelFilePath, wapitiBinaryFile, getDCTByScores);
+	}
+
+	protected PageInfo getPageInfos(ByteBuffer page, String fileName, URL url, Calendar downloadDate, String wapitiModelFilePath, File wapitiBinaryFile) throws IOException, FeatureException, DCTExtractorException, InterruptedException {
+		return this.getPageInfos(page, fileName, url, downloadDate, wapitiModelFilePath, wapitiBinaryFile, false);
+	}
 
+	protected PageInfo getPageInfos(ByteBuffer page, String fileName, URL url, Calendar downloadDate, String wapitiModelFilePath, File wapitiBinaryFile, boolean getDCTByScores) throws IOException, FeatureException, DCTExtractorException, InterruptedException {		
+		PageInfo pageInfo = factory.getPageInfos(page, fileName, false);	
+		return this.getDCT(pageInfo, fileName, url, downloadDate, wapitiModelFilePath, wapitiBinaryFile, getDCTByScores);
+	}
+
+	/**
+	 * Set the DCT of a parsed page, from its URL or from the labels of its records.
+	 */
+	private PageInfo getDCT(PageInfo pageInfo, String fileName, URL url, Calendar downloadDate, String wapitiModelFilePath, File wapitiBinaryFile, boolean getDCTByScores) throws IOException, FeatureException, DCTExtractorException {
 		// Try to get DCT from URL
 		PageInfo urlPageInfo = getDCTFromURL(url);
 		// If found, just return this
 		if (urlPageInfo != null) {
 			pageInfo.setDCT(urlPageInfo.getDCT());
 		}
+		// If no date candidate, no DCT
+		else if (!this.hasDateCandidates(pageInfo)) {
+			if (this.verbose) {
+				System.out.println("No date candidate in " + fileName + ", not labeled");
+			}
+		}
 		else {
-			this.factory.saveToCRF(pageInfo.getRecords(), testOutFileDataset);
-			// Launch test
-			if (wapitiTest(testOutFileDataset, resultFile, wapitiModelFilePath, wapitiBinaryFile, this.verbose) != 0) {
-				throw new DCTExtractorException("Wapiti labeling has failed");
-			} 
+			// Launch labeling
+			this.label(pageInfo.getRecords(), wapitiModelFilePath, wapitiBinaryFile);
 
 			//			System.out.println("ICI");
 			// Get dates from Wapiti results
-			PageInfo dateInfos = getDCTFromWapitiResult(resultFile, downloadDate, null, 0.90, getDCTByScores).values().iterator().next();
+			PageInfo dateInfos = getDCTFromWapitiResult(pageInfo.getRecords(), downloadDate, null, 0.90, getDCTByScores).values().iterator().next();
 			pageInfo.setDateString(dateInfos.getDateString());
 			pageInfo.setDCT(dateInfos.getDCT());
 		}
@@ -878,7 +1005,16 @@ public class LocalDCTExtractor {
 
 	protected static String test(File dataDir, CustomOptions options, Locale locale, String wapitiModelFilePath, File wapitiBinaryFile, HashMap<String, URL> urlMapping, Calendar downloadDate, boolean getDCTFromScores, boolean verbose) throws FileNotFoundException, FeatureException, DCTExtractorException, IOException, ClassificationException, InterruptedException {
 
+		resetPageCounters();
+		VocabularyMatcher.resetPrefilterCounters();
 		HashMap<String, PageInfo> pageInfos = getPageInfosFromDirectory(dataDir, options, locale, wapitiModelFilePath, wapitiBinaryFile, urlMapping, downloadDate, getDCTFromScores, verbose);
+		if (verbose) {
+			System.out.println("Labeled pages: " + getLabeledPageNumber() + ", pages without date candidate: " + getSkippedPageNumber());
+			System.out.print(getLabelCacheStatistics());
+			System.out.print(getTokenClassCacheStatistics());
+			System.out.println("Vocabulary prefilter: " + VocabularyMatcher.getPrefilterPassNumber() + " tokens matched against regexes, "
+					+ VocabularyMatcher.getPrefilterRejectNumber() + " rejected by signature");
+		}
 
 		/***************
 		 * Evaluation
@@ -887,14 +1023,117 @@ public class LocalDCTExtractor {
 
 	}
 
+	/**
+	 * Compare the in-process decoder with the different weight precisions
+	 * (double, float, half, byte) on a directory of annotated files:
+	 * labeling time, memory size of the weights, agreement of the labels with the double-precision model
+	 * and evaluation results.
+	 */
+	protected static String quantizationBenchmark(File dataDir, CustomOptions options, Locale locale, String wapitiModelFilePath, File wapitiBinaryFile, HashMap<String, URL> urlMapping, Calendar downloadDate, boolean getDCTFromScores, boolean verbose) throws FeatureException, DCTExtractorException, IOException, InterruptedException {
+		String[] precisionNames = {"double", "float", "half", "byte"};
+		options.setProperty(SEQUENCE_LABELER, LABELER_IN_PROCESS);
+		HashMap<String, String> referenceLabels = null;
+		String result = "";
+		for (String precisionName : precisionNames) {
+			options.setProperty(WAPITI_WEIGHTS_PRECISION, precisionName);
+			int weightsPrecision = getWeightsPrecision(options.getProperties());
+			// New extractors with the new precision
+			extractors.clear();
+			long start = System.nanoTime();
+			WapitiModel model = getDecoder(wapitiModelFilePath, weightsPrecision).getModel();
+			long loadTime = System.nanoTime() - start;
+			// First run to warm up
+			getPageInfosFromDirectory(dataDir, options, locale, wapitiModelFilePath, wapitiBinaryFile, urlMapping, downloadDate, getDCTFromScores, false);
+			start = System.nanoTime();
+			HashMap<String, PageInfo> pageInfos = getPageInfosFromDirectory(dataDir, options, locale, wapitiModelFilePath, wapitiBinaryFile, urlMapping, downloadDate, getDCTFromScores, false);
+			long time = System.nanoTime() - start;
+
+			// Label agreement with the reference (double-precision) model
+			// (record lists of a directory are concatenated for labeling, so records are seen only once)
+			HashMap<String, String> labels = new HashMap<String, String>();
+			Set<Record> seenRecords = Collections.newSetFromMap(new IdentityHashMap<Record, Boolean>());
+			int tokenNumber = 0;
+			int sameLabels = 0;
+			List<String> fileNames = new ArrayList<String>(pageInfos.keySet());
+			Collections.sort(fileNames);
+			for (String fileName : fileNames) {
+				RecordList records = pageInfos.get(fileName).getRecords();
+				if (records == null) {
+					continue;
+				}
+				int index = 0;
+				for (Record record : records) {
+					if (!seenRecords.add(record)) {
+						continue;
+					}
+					String key = fileName + "\t" + (index++);
+					labels.put(key, record.getPredictedClass());
+					if (referenceLabels != null && record.getPredictedClass() != null) {
+						tokenNumber++;
+						if (record.getPredictedClass().equals(referenceLabels.get(key))) {
+							sameLabels++;
+						}
+					}
+				}
+			}
+			if (referenceLabels == null) {
+				referenceLabels = labels;
+			}
+
+			result += "=== Weights: " + precisionName + " (" + model.getWeightSize() + " bytes, loaded in " + loadTime / 1000000 + " ms)\n";
+			result += "Labeling time: " + time / 1000000 + " ms\n";
+			if (tokenNumber > 0) {
+				result += String.format("Same labels as double precision: %d / %d (%.2f%%)\n", sameLabels, tokenNumber, 100.0 * sameLabels / tokenNumber);
+			}
+			result += evaluate(pageInfos, verbose) + "\n";
+		}
+		return result;
+	}
+
+	/**
+	 * Label the files of a directory with two sequence labelers (see {@link #getLabeler})
+	 * and compare the labels and scores.
+	 * @return the comparison report
+	 */
+	protected static String compareLabelers(File dataDir, CustomOptions options, Locale locale, String wapitiModelFilePath, File wapitiBinaryFile, HashMap<String, URL> urlMapping, 
+			String firstLabelerName, String secondLabelerName, boolean verbose) throws FeatureException, DCTExtractorException, IOException {
+		// Parse files, records are grouped by extractor
+		HashMap<LocalDCTExtractor, RecordList> allRecords = new HashMap<LocalDCTExtractor, RecordList>();
+		for (File file : dataDir.listFiles(HTML_FILTER)) {
+			LocalDCTExtractor extractor = getExtractor(locale, options.getProperties(), urlMapping.get(file.getName()), verbose);
+			PageInfo pageInfo = extractor.factory.getPageInfos(file, file.getAbsolutePath(), false);
+			RecordList records = allRecords.get(extractor);
+			if (records == null) {
+				allRecords.put(extractor, pageInfo.getRecords());
+			} else {
+				records.addAll(pageInfo.getRecords());
+			}
+		}
+		if (wapitiBinaryFile == null) {
+			String wapitiBinaryPath = options.getProperty(WAPITI_BINARY_PATH);
+			wapitiBinaryFile = wapitiBinaryPath == null ? null : new File(wapitiBinaryPath);
+		}
+		int processPoolSize = getProcessPoolSize(options.getProperties());
+		SequenceLabeler firstLabeler = getLabeler(firstLabelerName, wapitiModelFilePath, wapitiBinaryFile, processPoolSize, options.getProperties(), verbose);
+		SequenceLabeler secondLabeler = getLabeler(secondLabelerName, wapitiModelFilePath, wapitiBinaryFile, processPoolSize, options.getProperties(), verbose);
+
+		String result = "";
+		boolean identical = true;
+		for (Entry<LocalDCTExtractor, RecordList> recordEntries : allRecords.entrySet()) {
+			SequenceLabelerComparison comparison;
+			try {
+				comparison = new SequenceLabelerComparison(recordEntries.getValue(), firstLabeler, secondLabeler, 1e-6, 20);
+			} catch (ClassificationException e) {
+				throw new DCTExtractorException(e);
+			}
+			identical &= comparison.isIdentical();
+			result += "=== " + firstLabelerName + " vs " + secondLabelerName + " (" + recordEntries.getKey().getLocale() + ")\n" + comparison;
+		}
+		result += identical ? "Identical results\n" : "Different results\n";
+		return result;
+	}
+
 	protected static void train(File dataDir, CustomOptions options, Locale locale, String wapitiModelFilePath, File wapitiBinaryFile, HashMap<String, URL> urlMapping, boolean verbose) throws FileNotFoundException, FeatureException, DCTExtractorException, IOException, ClassificationException, InterruptedException {
-		// Training and development output CRF files
-		File trainOutFileDataset = File.createTempFile("train", ".crf"); 
-		trainOutFileDataset.deleteOnExit();
-		File devOutFileDataset = File.createTempFile("dev", ".crf");
-		devOutFileDataset.deleteOnExit();
-		File wapitiTemplateFile = File.createTempFile("templates", ".txt");
-		wapitiTemplateFile.deleteOnExit();
 		// Get data files
 		File[] files = dataDir.listFiles(HTML_FILTER);
 		ArrayList<File> fileList = new ArrayList<File>();
@@ -917,7 +1156,7 @@ public class LocalDCTExtractor {
 				System.out.println("Parse file " + (++fileNumber) + "/" + files.length + ": " + file.getName());
 			}
 
-			pageInfo = getExtractor(locale, options.getProperties(), url, verbose).factory.getPageInfos(new FileInputStream(file), file.getAbsolutePath(), true);
+			pageInfo = getExtractor(locale, options.getProperties(), url, verbose).factory.getPageInfos(file, file.getAbsolutePath(), true);
 			if (trainRecords == null) {
 				trainRecords = pageInfo.getRecords();
 				factory = (DCTExtractorRecordFactory)trainRecords.getFactory();
@@ -933,7 +1172,7 @@ public class LocalDCTExtractor {
 			if (verbose) {
 				System.out.println("Parse file " + (++fileNumber) + "/" + files.length + ": " + file.getName());
 			}
-			pageInfo = getExtractor(locale, options.getProperties(), url, verbose).factory.getPageInfos(new FileInputStream(file), file.getAbsolutePath(), true);
+			pageInfo = getExtractor(locale, options.getProperties(), url, verbose).factory.getPageInfos(file, file.getAbsolutePath(), true);
 			if (devRecords == null) {
 				devRecords = pageInfo.getRecords();
 				factory = (DCTExtractorRecordFactory)devRecords.getFactory();
@@ -946,6 +1185,59 @@ public class LocalDCTExtractor {
 		/***************
 		 * Train
 		 ***************/
+		trainCRF(factory, trainRecords, devRecords, options.getProperties(), wapitiModelFilePath, wapitiBinaryFile, verbose);
+	}		
+
+	/**
+	 * Train the CRF model, in-process or with the Wapiti binary 
+	 * (depending on parameter CRF_TRAINER).
+	 * @param factory the record factory
+	 * @param trainRecords the training records
+	 * @param devRecords the development records
+	 * @param properties the configuration
+	 * @param wapitiModelFilePath the path of the model file to write
+	 * @param wapitiBinaryFile the Wapiti binary file (not used for in-process training)
+	 * @param verbose
+	 * @throws IOException
+	 * @throws ClassificationException
+	 * @throws DCTExtractorException
+	 * @throws InterruptedException
+	 */
+	private static void trainCRF(DCTExtractorRecordFactory factory, RecordList trainRecords, RecordList devRecords, Properties properties, 
+			String wapitiModelFilePath, File wapitiBinaryFile, boolean verbose) throws IOException, ClassificationException, DCTExtractorException, InterruptedException {
+		clearLabelCaches(wapitiModelFilePath);
+		String trainerName = properties.getProperty(CRF_TRAINER, TRAINER_IN_PROCESS).trim();
+		if (!TRAINER_IN_PROCESS.equals(trainerName) && !TRAINER_WAPITI.equals(trainerName)) {
+			throw new DCTExtractorException("Unknown CRF trainer " + trainerName + " (parameter " + CRF_TRAINER + ")");
+		}
+		if (TRAINER_IN_PROCESS.equals(trainerName)) {
+			WapitiTrainer trainer = new WapitiTrainer(verbose);
+			WapitiModel model = trainer.train(trainRecords, devRecords, factory.getTemplateStringValues());
+			model.save(new File(wapitiModelFilePath));
+			if (verbose) {
+				System.out.println("  Model written in " + wapitiModelFilePath);
+			}
+			// The model file may be rewritten within the same modification time unit
+			int weightsPrecision = getWeightsPrecision(properties);
+			String key = wapitiModelFilePath + "\t" + weightsPrecision;
+			synchronized (LocalDCTExtractor.class) {
+				decoders.put(key, new WapitiDecoder(weightsPrecision == WapitiModel.PRECISION_DOUBLE ? model : model.quantize(weightsPrecision)));
+				decoderModelDates.put(key, new File(wapitiModelFilePath).lastModified());
+			}
+			return;
+		}
+
+		if (wapitiBinaryFile == null || !wapitiBinaryFile.isFile()) {
+			throw new DCTExtractorException("Training with Wapiti needs a Wapiti binary file (or set " + CRF_TRAINER + "=" + TRAINER_IN_PROCESS + ")");
+		}
+
+		// Training and development output CRF files
+		File trainOutFileDataset = File.createTempFile("train", ".crf"); 
+		trainOutFileDataset.deleteOnExit();
+		File devOutFileDataset = File.createTempFile("dev", ".crf");
+		devOutFileDataset.deleteOnExit();
+		File wapitiTemplateFile = File.createTempFile("templates", ".txt");
+		wapitiTemplateFile.deleteOnExit();
 		// Train set
 		factory.saveToCRF(trainRecords, trainOutFileDataset);
 		if (verbose) {
@@ -965,8 +1257,7 @@ public class LocalDCTExtractor {
 		if (wapitiTrain(trainOutFileDataset, devOutFileDataset, wapitiTemplateFile, wapitiModelFilePath, wapitiBinaryFile, verbose) != 0) {
 			throw new DCTExtractorException("Wapiti training has failed");
 		}
-
-	}		
+	}
 
 	protected static String crossValidation(File dataDir, CustomOptions options, Locale locale, String wapitiModelFilePath, File wapitiBinaryFile, HashMap<String, URL> urlMapping, Calendar downloadDate, int foldNumber, boolean verbose) throws IOException, FeatureException, DCTExtractorException, InterruptedException, ClassificationException  {
 		return crossValidation(dataDir, options, locale, wapitiModelFilePath, wapitiBinaryFile, urlMapping, downloadDate, foldNumber, false, verbose);
@@ -975,14 +1266,6 @@ public class LocalDCTExtractor {
 	protected static String crossValidation(File dataDir, CustomOptions options, Locale locale, String wapitiModelFilePath, File wapitiBinaryFile, HashMap<String, URL> urlMapping, Calendar downloadDate, int foldNumber,
 			boolean stopAtFirstFold, boolean verbose) throws IOException, FeatureException, DCTExtractorException, InterruptedException, ClassificationException {
 
-		// Training and development output CRF files
-		File trainOutFileDataset = File.createTempFile("train", ".crf");
-		trainOutFileDataset.deleteOnExit();
-		File devOutFileDataset = File.createTempFile("dev", ".crf");
-		devOutFileDataset.deleteOnExit();
-		File wapitiTemplateFile = File.createTempFile("templates", ".txt");
-		wapitiTemplateFile.deleteOnExit();
-
 		// Get data files
 		File[] files = dataDir.listFiles(new FileFilter() {
 			@Override
@@ -1019,7 +1302,7 @@ public class LocalDCTExtractor {
 				//					continue;
 				//				}
 
-				pageInfo = getExtractor(locale, options.getProperties(), url, verbose).factory.getPageInfos(new FileInputStream(file), file.getAbsolutePath(), true);
+				pageInfo = getExtractor(locale, options.getProperties(), url, verbose).factory.getPageInfos(file, file.getAbsolutePath(), true);
 				if (records == null) {
 					records = pageInfo.getRecords();
 					if (foldIndex == 0) {
@@ -1065,25 +1348,7 @@ public class LocalDCTExtractor {
 			/***************
 			 * Train
 			 ***************/
-			 // Train set
-			 factory.saveToCRF(trainRecords, trainOutFileDataset);
-			if (verbose) {
-				System.out.println("  Train CRF file written in " + trainOutFileDataset.getAbsolutePath());
-			}
-			// Dev set
-			factory.saveToCRF(devRecords, devOutFileDataset);
-			if (verbose) {
-				System.out.println("  Dev CRF file written in " + devOutFileDataset.getAbsolutePath());
-			}
-			// Templates
-			factory.saveTemplates(wapitiTemplateFile);
-			if (verbose) {
-				System.out.println("  Templates written in " + wapitiTemplateFile.getAbsolutePath());
-			}
-			// launch train
-			if (wapitiTrain(trainOutFileDataset, devOutFileDataset, wapitiTemplateFile, wapitiModelFilePath, wapitiBinaryFile, verbose) != 0) {
-				throw new DCTExtractorException("Wapiti training has failed");
-			}
+			trainCRF(factory, trainRecords, devRecords, options.getProperties(), wapitiModelFilePath, wapitiBinaryFile, verbose);
 
 			/**************
 			 * Test
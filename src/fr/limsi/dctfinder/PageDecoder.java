@@ -0,0 +1,311 @@
+package fr.limsi.dctfinder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Incremental decoding of an HTML page into characters.
+ * The charset is sniffed from the first bytes of the page (byte order mark, or else
+ * XML declaration or &lt;meta&gt; charset), and can be switched while reading
+ * (&lt;meta&gt; tag found later in the page): the bytes following the current
+ * character are then decoded again with the new charset.
+ * Characters are decoded by batches into a reusable buffer, which is scanned
+ * directly when skipping elements whose content is not parsed.
+ * Not thread-safe.
+ * @author xtannier
+ *
+ */
+class PageDecoder {
+
+	// Number of bytes in which the charset is looked for
+	private static final int SNIFF_LENGTH = 4096;
+	// Number of characters decoded at once
+	private static final int BATCH_SIZE = 1024;
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final Pattern XML_ENCODING_PATTERN = Pattern.compile("^<\\?xml\\s[^>]*encoding\\s*=\\s*[\"']([-\\w.:]+)");
+	private static final Pattern META_CHARSET_PATTERN = Pattern.compile("<meta\\s[^>]*charset\\s*=\\s*[\"']?\\s*([-\\w.:]+)", Pattern.CASE_INSENSITIVE);
+
+	private Charset defaultCharset;
+	private CharsetDecoder defaultDecoder;
+	private byte[] sniffBuffer;
+
+	// Bytes of the page (array-backed if refilled from the stream)
+	private ByteBuffer window;
+	private InputStream inputStream;
+	// Number of bytes that can still be read from the stream
+	private int remainingBytes;
+	private boolean endOfInput;
+	private boolean flushed;
+	// Charset given by a byte order mark (cannot be switched)
+	private boolean byteOrderMark;
+
+	private Charset charset;
+	private CharsetDecoder decoder;
+	// Current batch of characters
+	private CharBuffer chars;
+	// Position in the window of the first byte of the current batch
+	private int batchStart;
+
+	/**
+	 * @param defaultCharset the charset of the pages declaring none
+	 */
+	PageDecoder(Charset defaultCharset) {
+		this.defaultCharset = defaultCharset;
+		this.defaultDecoder = newDecoder(defaultCharset);
+		this.sniffBuffer = new byte[SNIFF_LENGTH];
+		this.chars = CharBuffer.allocate(BATCH_SIZE);
+	}
+
+	/**
+	 * Start decoding a new page.
+	 * @param window the bytes of the page (or the first bytes read from the stream)
+	 * @param inputStream the stream refilling the window (array-backed), or null (it is not closed)
+	 * @param maxBytes the maximum number of bytes to decode
+	 * @throws IOException
+	 */
+	void reset(ByteBuffer window, InputStream inputStream, int maxBytes) throws IOException {
+		this.window = window;
+		this.inputStream = inputStream;
+		if (inputStream == null) {
+			window.limit(Math.min(window.limit(), window.position() + maxBytes));
+			this.remainingBytes = 0;
+		} else {
+			this.remainingBytes = maxBytes - window.remaining();
+		}
+		this.endOfInput = false;
+		while (window.remaining() < SNIFF_LENGTH && this.fill());
+		this.flushed = false;
+		this.byteOrderMark = false;
+		this.charset = this.sniff();
+		if (this.charset.equals(this.defaultCharset)) {
+			this.decoder = this.defaultDecoder.reset();
+		} else {
+			this.decoder = newDecoder(this.charset);
+		}
+		this.chars.clear();
+		this.chars.limit(0);
+		this.batchStart = window.position();
+	}
+
+	/**
+	 * @return the next character of the page, or -1 at the end of the page
+	 * @throws IOException
+	 */
+	int read() throws IOException {
+		if (!this.chars.hasRemaining() && !this.decodeBatch()) {
+			return -1;
+		}
+		return this.chars.get();
+	}
+
+	/**
+	 * Skip the characters up to the closing tag of an element
+	 * (the case of the tag name is ignored).
+	 * @param name the element name, in lower case
+	 * @return the character following the element name in the closing tag
+	 * (a blank or '>', the previous characters of the tag are consumed),
+	 * or -1 at the end of the page
+	 * @throws IOException
+	 */
+	int skipElement(String name) throws IOException {
+		int c;
+		int matched;
+		boolean atOpening = false;
+		while (true) {
+			// Find the next '<'
+			if (!atOpening) {
+				do {
+					if (!this.chars.hasRemaining() && !this.decodeBatch()) {
+						return -1;
+					}
+					char[] array = this.chars.array();
+					int position = this.chars.position();
+					int limit = this.chars.limit();
+					while (position < limit && array[position] != '<') {
+						position++;
+					}
+					atOpening = position < limit;
+					this.chars.position(atOpening ? position + 1 : limit);
+				} while (!atOpening);
+			}
+			// Compare the tag
+			c = this.read();
+			if (c == '/') {
+				matched = 0;
+				while (matched < name.length() && (c = this.read()) >= 0 && Character.toLowerCase(c) == name.charAt(matched)) {
+					matched++;
+				}
+				if (matched == name.length()) {
+					c = this.read();
+					if (c == '>' || c == 160 || Character.isWhitespace(c)) {
+						return c;
+					}
+				}
+			}
+			if (c < 0) {
+				return -1;
+			}
+			atOpening = c == '<';
+		}
+	}
+
+	/**
+	 * @return the charset currently used
+	 */
+	Charset getCharset() {
+		return this.charset;
+	}
+
+	/**
+	 * Decode the rest of the page with another charset,
+	 * from the character following the last read one.
+	 * Nothing is done if the charset was given by a byte order mark.
+	 * @param charset the new charset
+	 * @return true if the charset has been switched
+	 */
+	boolean setCharset(Charset charset) {
+		if (charset.equals(this.charset) || this.byteOrderMark) {
+			return false;
+		}
+		// Find the first byte following the last read character,
+		// by decoding again the current batch up to this character
+		ByteBuffer bytes = this.window.duplicate();
+		bytes.limit(this.window.position());
+		bytes.position(this.batchStart);
+		CharBuffer readChars = CharBuffer.allocate(Math.max(1, this.chars.position()));
+		readChars.limit(this.chars.position());
+		newDecoder(this.charset).decode(bytes, readChars, false);
+		this.window.position(bytes.position());
+		this.batchStart = bytes.position();
+		this.charset = charset;
+		this.decoder = charset.equals(this.defaultCharset) ? this.defaultDecoder.reset() : newDecoder(charset);
+		this.flushed = false;
+		this.chars.clear();
+		this.chars.limit(0);
+		return true;
+	}
+
+	/**
+	 * Decode the next batch of characters.
+	 * @return false at the end of the page
+	 */
+	private boolean decodeBatch() throws IOException {
+		if (this.flushed) {
+			return false;
+		}
+		this.chars.clear();
+		while (true) {
+			this.batchStart = this.window.position();
+			this.decoder.decode(this.window, this.chars, this.endOfInput);
+			if (this.endOfInput && !this.window.hasRemaining()) {
+				this.decoder.flush(this.chars);
+				this.flushed = true;
+				break;
+			}
+			if (this.chars.position() > 0) {
+				break;
+			}
+			if (!this.fill()) {
+				this.endOfInput = true;
+			}
+		}
+		this.chars.flip();
+		return this.chars.hasRemaining();
+	}
+
+	/**
+	 * Add the next bytes of the stream to the window
+	 * (the bytes that have not been decoded yet are kept).
+	 * @return false at the end of the stream (or if no more bytes can be read)
+	 */
+	private boolean fill() throws IOException {
+		if (this.inputStream == null || this.remainingBytes <= 0) {
+			return false;
+		}
+		this.window.compact();
+		int length;
+		do {
+			length = this.inputStream.read(this.window.array(), this.window.arrayOffset() + this.window.position(), Math.min(this.window.remaining(), this.remainingBytes));
+		} while (length == 0);
+		if (length > 0) {
+			this.window.position(this.window.position() + length);
+			this.remainingBytes -= length;
+		}
+		this.window.flip();
+		return length > 0;
+	}
+
+	/**
+	 * Find the charset of the page in its first bytes. The byte order mark
+	 * (if any) is skipped.
+	 * @return the charset, or the default one
+	 */
+	private Charset sniff() {
+		int length = Math.min(this.window.remaining(), SNIFF_LENGTH);
+		this.window.duplicate().get(this.sniffBuffer, 0, length);
+		byte[] bytes = this.sniffBuffer;
+		// Byte order mark
+		if (length >= 3 && bytes[0] == (byte)0xEF && bytes[1] == (byte)0xBB && bytes[2] == (byte)0xBF) {
+			this.window.position(this.window.position() + 3);
+			this.byteOrderMark = true;
+			return UTF_8;
+		}
+		if (length >= 2 && bytes[0] == (byte)0xFE && bytes[1] == (byte)0xFF) {
+			this.window.position(this.window.position() + 2);
+			this.byteOrderMark = true;
+			return Charset.forName("UTF-16BE");
+		}
+		if (length >= 2 && bytes[0] == (byte)0xFF && bytes[1] == (byte)0xFE) {
+			this.window.position(this.window.position() + 2);
+			this.byteOrderMark = true;
+			return Charset.forName("UTF-16LE");
+		}
+		// Declarations (ASCII-compatible charsets only)
+		String head = new String(bytes, 0, length, ISO_8859_1);
+		Charset charset;
+		Matcher matcher = XML_ENCODING_PATTERN.matcher(head);
+		if (matcher.find() && (charset = forDeclaredName(matcher.group(1))) != null) {
+			return charset;
+		}
+		matcher = META_CHARSET_PATTERN.matcher(head);
+		if (matcher.find() && (charset = forDeclaredName(matcher.group(1))) != null) {
+			return charset;
+		}
+		return this.defaultCharset;
+	}
+
+	/**
+	 * Get the charset declared inside the page.
+	 * As a page declaring its charset is read with an ASCII-compatible one,
+	 * UTF-16 declarations are read as UTF-8.
+	 * @param name the declared name
+	 * @return the charset, or null if unknown
+	 */
+	static Charset forDeclaredName(String name) {
+		Charset charset;
+		try {
+			charset = Charset.forName(name);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+		if (charset.name().startsWith("UTF-16")) {
+			return UTF_8;
+		}
+		return charset;
+	}
+
+	private static CharsetDecoder newDecoder(Charset charset) {
+		return charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+}
@@ -0,0 +1,644 @@
+package fr.limsi.dctfinder;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * Cheap necessary conditions for a token to entirely match a pattern:
+ * character classes (digits, letters, others) required and allowed in the token,
+ * minimum and maximum length (in code points), and characters allowed at the beginning.
+ * A token failing these conditions cannot match the pattern, which is then not run.
+ * Signatures are derived from the pattern syntax (literals, character classes,
+ * groups, alternations and quantifiers); other constructs (lookarounds, inline flags,
+ * back-references...) give a signature accepting any token.
+ * Character classes are taken with their case variants, so that signatures
+ * also hold for case-insensitive patterns.
+ * @author xtannier
+ *
+ */
+final class PatternSignature implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	static final int DIGIT = 1;
+	static final int LETTER = 2;
+	static final int OTHER = 4;
+	static final int ALL = DIGIT | LETTER | OTHER;
+
+	private static final int UNBOUNDED = Integer.MAX_VALUE;
+	// Maximum number of characters of a leading-character set
+	private static final int MAX_LEADING_CHARS = 64;
+	// Maximum size of a character range whose characters are enumerated
+	private static final int MAX_RANGE_SIZE = 0x3000;
+	// Flags that do not change the signature
+	private static final int SUPPORTED_FLAGS = Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE | Pattern.DOTALL | Pattern.MULTILINE;
+
+	/** Signature accepting any token */
+	static final PatternSignature ANY = new PatternSignature(0, UNBOUNDED, 0, ALL, null, ALL);
+
+	// Classes of the ASCII characters, with their case variants
+	private static final int[] ASCII_CLASSES = new int[128];
+
+	static {
+		for (int c = 0 ; c < 128 ; c++) {
+			ASCII_CLASSES[c] = getCaseClasses(c);
+		}
+	}
+
+	private int minLength;
+	private int maxLength;
+	// Classes having a character in any matching token
+	private int requiredClasses;
+	// Classes of the characters that can be matched
+	private int allowedClasses;
+	// Characters that can begin a match, sorted (null if too many)
+	private int[] leadingChars;
+	private int leadingClasses;
+
+	private PatternSignature(int minLength, int maxLength, int requiredClasses, int allowedClasses, int[] leadingChars, int leadingClasses) {
+		this.minLength = minLength;
+		this.maxLength = maxLength;
+		this.requiredClasses = requiredClasses;
+		this.allowedClasses = allowedClasses;
+		this.leadingChars = leadingChars;
+		this.leadingClasses = leadingClasses;
+	}
+
+	/**
+	 * @param pattern a pattern
+	 * @return the signature of the pattern (ANY if the pattern syntax is not supported)
+	 */
+	static PatternSignature forPattern(Pattern pattern) {
+		if ((pattern.flags() & ~SUPPORTED_FLAGS) != 0) {
+			return ANY;
+		}
+		Parser parser = new Parser(pattern.pattern());
+		Node node;
+		try {
+			node = parser.parseAlternation();
+			if (parser.position < parser.regex.length()) {
+				return ANY;
+			}
+		} catch (UnsupportedOperationException e) {
+			return ANY;
+		}
+		return node.toSignature();
+	}
+
+	/**
+	 * @param signatures the signatures of several patterns
+	 * @return the signature of a token matching any of the patterns
+	 */
+	static PatternSignature forAlternation(List<PatternSignature> signatures) {
+		Node node = null;
+		for (PatternSignature signature : signatures) {
+			Node other = new Node(signature);
+			node = node == null ? other : node.or(other);
+		}
+		return node == null ? ANY : node.toSignature();
+	}
+
+	/**
+	 * Write the signature (see {@link RuleBundle}).
+	 * @param out the output
+	 * @throws IOException
+	 */
+	void write(DataOutputStream out) throws IOException {
+		out.writeInt(this.minLength);
+		out.writeInt(this.maxLength);
+		out.writeInt(this.requiredClasses);
+		out.writeInt(this.allowedClasses);
+		out.writeInt(this.leadingClasses);
+		if (this.leadingChars == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(this.leadingChars.length);
+			for (int c : this.leadingChars) {
+				out.writeInt(c);
+			}
+		}
+	}
+
+	/**
+	 * Read a signature written by {@link #write(DataOutputStream)}.
+	 * @param in the input
+	 * @return the signature
+	 * @throws IOException
+	 */
+	static PatternSignature read(DataInputStream in) throws IOException {
+		int minLength = in.readInt();
+		int maxLength = in.readInt();
+		int requiredClasses = in.readInt();
+		int allowedClasses = in.readInt();
+		int leadingClasses = in.readInt();
+		int length = in.readInt();
+		int[] leadingChars = null;
+		if (length >= 0) {
+			leadingChars = new int[length];
+			for (int i = 0 ; i < length ; i++) {
+				leadingChars[i] = in.readInt();
+			}
+		}
+		PatternSignature signature = new PatternSignature(minLength, maxLength, requiredClasses, allowedClasses, leadingChars, leadingClasses);
+		// Unsupported patterns
+		return signature.acceptsAny() ? ANY : signature;
+	}
+
+	/**
+	 * @param token the signature of a token
+	 * @return false if the token cannot match the pattern
+	 */
+	boolean accepts(Token token) {
+		if (token.length < this.minLength || token.length > this.maxLength) {
+			return false;
+		}
+		if (token.length == 0) {
+			return true;
+		}
+		if ((token.classes & this.requiredClasses) != this.requiredClasses
+				|| (token.strictClasses & ~this.allowedClasses) != 0) {
+			return false;
+		}
+		if (this.leadingChars == null) {
+			return (token.firstClasses & this.leadingClasses) != 0;
+		}
+		for (int c : token.firstVariants) {
+			if (Arrays.binarySearch(this.leadingChars, c) >= 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if the signature accepts any token
+	 */
+	boolean acceptsAny() {
+		return this.minLength == 0 && this.maxLength == UNBOUNDED && this.requiredClasses == 0
+				&& this.allowedClasses == ALL && this.leadingChars == null && this.leadingClasses == ALL;
+	}
+
+	@Override
+	public String toString() {
+		return "length " + this.minLength + "-" + (this.maxLength == UNBOUNDED ? "" : this.maxLength)
+				+ ", required " + this.requiredClasses + ", allowed " + this.allowedClasses
+				+ ", leading " + (this.leadingChars == null ? "classes " + this.leadingClasses : this.leadingChars.length + " chars");
+	}
+
+	private static int getClasses(int c) {
+		if (c >= '0' && c <= '9') {
+			return DIGIT;
+		}
+		return Character.isLetter(c) ? LETTER : OTHER;
+	}
+
+	/**
+	 * Classes of a character and of its case variants
+	 * (as compared by the regex engine in case-insensitive mode).
+	 */
+	private static int getCaseClasses(int c) {
+		int upperCase = Character.toUpperCase(c);
+		return getClasses(c) | getClasses(upperCase) | getClasses(Character.toLowerCase(c)) | getClasses(Character.toLowerCase(upperCase));
+	}
+
+	private static int getCharClasses(int c) {
+		return c < 128 ? ASCII_CLASSES[c] : getCaseClasses(c);
+	}
+
+	private static void addVariants(TreeSet<Integer> chars, int c) {
+		int upperCase = Character.toUpperCase(c);
+		chars.add(c);
+		chars.add(upperCase);
+		chars.add(Character.toLowerCase(c));
+		chars.add(Character.toLowerCase(upperCase));
+	}
+
+	private static int saturatedAdd(int a, int b) {
+		return (int)Math.min((long)a + b, UNBOUNDED);
+	}
+
+	private static int saturatedMultiply(int a, int b) {
+		if (a == UNBOUNDED && b != 0 || b == UNBOUNDED && a != 0) {
+			return UNBOUNDED;
+		}
+		return (int)Math.min((long)a * b, UNBOUNDED);
+	}
+
+
+	/**
+	 * Signature of a token, reused from one token to the next.
+	 */
+	static class Token {
+		private int length;
+		// Classes of the characters, with their case variants
+		private int classes;
+		// Classes of the characters having a single class
+		private int strictClasses;
+		private int firstClasses;
+		private int[] firstVariants = new int[4];
+
+		/**
+		 * Compute the signature of a token.
+		 * @param token the token
+		 */
+		void set(CharSequence token) {
+			this.length = 0;
+			this.classes = 0;
+			this.strictClasses = 0;
+			int c;
+			int charClasses;
+			for (int i = 0 ; i < token.length() ; i += Character.charCount(c)) {
+				c = Character.codePointAt(token, i);
+				charClasses = getCharClasses(c);
+				if (this.length == 0) {
+					this.firstClasses = charClasses;
+					int upperCase = Character.toUpperCase(c);
+					this.firstVariants[0] = c;
+					this.firstVariants[1] = upperCase;
+					this.firstVariants[2] = Character.toLowerCase(c);
+					this.firstVariants[3] = Character.toLowerCase(upperCase);
+				}
+				this.classes |= charClasses;
+				if ((charClasses & (charClasses - 1)) == 0) {
+					this.strictClasses |= charClasses;
+				}
+				this.length++;
+			}
+		}
+	}
+
+
+	/**
+	 * Signature of a part of a pattern, while parsing.
+	 */
+	private static class Node {
+		int minLength;
+		int maxLength;
+		int requiredClasses;
+		int allowedClasses;
+		// null if too many
+		TreeSet<Integer> leadingChars;
+		int leadingClasses;
+
+		/**
+		 * Empty match.
+		 */
+		Node() {
+			this.minLength = 0;
+			this.maxLength = 0;
+			this.leadingChars = new TreeSet<Integer>();
+		}
+
+		Node(PatternSignature signature) {
+			this.minLength = signature.minLength;
+			this.maxLength = signature.maxLength;
+			this.requiredClasses = signature.requiredClasses;
+			this.allowedClasses = signature.allowedClasses;
+			if (signature.leadingChars != null) {
+				this.leadingChars = new TreeSet<Integer>();
+				for (int c : signature.leadingChars) {
+					this.leadingChars.add(c);
+				}
+			}
+			this.leadingClasses = signature.leadingClasses;
+		}
+
+		/**
+		 * Single character among a set.
+		 * @param chars the characters with their case variants (null if too many)
+		 * @param classes the classes of the characters
+		 */
+		Node(TreeSet<Integer> chars, int classes) {
+			this.minLength = 1;
+			this.maxLength = 1;
+			this.requiredClasses = (classes & (classes - 1)) == 0 ? classes : 0;
+			this.allowedClasses = classes;
+			this.leadingChars = chars != null && chars.size() <= MAX_LEADING_CHARS ? chars : null;
+			this.leadingClasses = classes;
+		}
+
+		/**
+		 * @return this node followed by another one
+		 */
+		Node then(Node next) {
+			if (this.minLength == 0) {
+				this.leadingChars = union(this.leadingChars, next.leadingChars);
+				this.leadingClasses |= next.leadingClasses;
+			}
+			this.minLength = saturatedAdd(this.minLength, next.minLength);
+			this.maxLength = saturatedAdd(this.maxLength, next.maxLength);
+			this.requiredClasses |= next.requiredClasses;
+			this.allowedClasses |= next.allowedClasses;
+			return this;
+		}
+
+		/**
+		 * @return this node or another one
+		 */
+		Node or(Node other) {
+			this.minLength = Math.min(this.minLength, other.minLength);
+			this.maxLength = Math.max(this.maxLength, other.maxLength);
+			this.requiredClasses &= other.requiredClasses;
+			this.allowedClasses |= other.allowedClasses;
+			this.leadingChars = union(this.leadingChars, other.leadingChars);
+			this.leadingClasses |= other.leadingClasses;
+			return this;
+		}
+
+		/**
+		 * @return this node repeated
+		 */
+		Node repeat(int min, int max) {
+			this.minLength = saturatedMultiply(this.minLength, min);
+			this.maxLength = saturatedMultiply(this.maxLength, max);
+			if (min == 0) {
+				this.requiredClasses = 0;
+			}
+			return this;
+		}
+
+		private static TreeSet<Integer> union(TreeSet<Integer> chars, TreeSet<Integer> otherChars) {
+			if (chars == null || otherChars == null) {
+				return null;
+			}
+			chars.addAll(otherChars);
+			return chars.size() <= MAX_LEADING_CHARS ? chars : null;
+		}
+
+		PatternSignature toSignature() {
+			int[] chars = null;
+			if (this.leadingChars != null) {
+				chars = new int[this.leadingChars.size()];
+				int i = 0;
+				for (int c : this.leadingChars) {
+					chars[i++] = c;
+				}
+			}
+			return new PatternSignature(this.minLength, this.maxLength, this.requiredClasses, this.allowedClasses, chars, this.leadingClasses);
+		}
+	}
+
+
+	/**
+	 * Recursive descent over the supported pattern syntax
+	 * (UnsupportedOperationException on any other construct).
+	 */
+	private static class Parser {
+		String regex;
+		int position;
+
+		Parser(String regex) {
+			this.regex = regex;
+			this.position = 0;
+		}
+
+		private boolean hasNext() {
+			return this.position < this.regex.length();
+		}
+
+		private char peek() {
+			return this.regex.charAt(this.position);
+		}
+
+		private int nextCodePoint() {
+			int c = this.regex.codePointAt(this.position);
+			this.position += Character.charCount(c);
+			return c;
+		}
+
+		Node parseAlternation() {
+			Node node = this.parseSequence();
+			while (this.hasNext() && this.peek() == '|') {
+				this.position++;
+				node.or(this.parseSequence());
+			}
+			return node;
+		}
+
+		private Node parseSequence() {
+			Node node = new Node();
+			while (this.hasNext() && this.peek() != '|' && this.peek() != ')') {
+				node.then(this.parseQuantifier(this.parseAtom()));
+			}
+			return node;
+		}
+
+		private Node parseQuantifier(Node atom) {
+			if (!this.hasNext()) {
+				return atom;
+			}
+			int min;
+			int max;
+			switch (this.peek()) {
+			case '?':
+				min = 0;
+				max = 1;
+				break;
+			case '*':
+				min = 0;
+				max = UNBOUNDED;
+				break;
+			case '+':
+				min = 1;
+				max = UNBOUNDED;
+				break;
+			case '{':
+				int end = this.regex.indexOf('}', this.position);
+				if (end < 0) {
+					throw new UnsupportedOperationException();
+				}
+				String[] bounds = this.regex.substring(this.position + 1, end).split(",", -1);
+				try {
+					min = Integer.parseInt(bounds[0].trim());
+					if (bounds.length == 1) {
+						max = min;
+					} else if (bounds.length == 2) {
+						max = bounds[1].trim().isEmpty() ? UNBOUNDED : Integer.parseInt(bounds[1].trim());
+					} else {
+						throw new UnsupportedOperationException();
+					}
+				} catch (NumberFormatException e) {
+					throw new UnsupportedOperationException();
+				}
+				this.position = end;
+				break;
+			default:
+				return atom;
+			}
+			this.position++;
+			// Reluctant or possessive quantifier
+			if (this.hasNext() && (this.peek() == '?' || this.peek() == '+')) {
+				this.position++;
+			}
+			return atom.repeat(min, max);
+		}
+
+		private Node parseAtom() {
+			int c = this.nextCodePoint();
+			switch (c) {
+			case '(':
+				if (this.hasNext() && this.peek() == '?') {
+					// Non-capturing or named group only
+					if (this.regex.startsWith("?:", this.position)) {
+						this.position += 2;
+					} else if (this.regex.startsWith("?<", this.position) && this.position + 2 < this.regex.length()
+							&& Character.isLetter(this.regex.charAt(this.position + 2))) {
+						int end = this.regex.indexOf('>', this.position);
+						if (end < 0) {
+							throw new UnsupportedOperationException();
+						}
+						this.position = end + 1;
+					} else {
+						throw new UnsupportedOperationException();
+					}
+				}
+				Node group = this.parseAlternation();
+				if (!this.hasNext() || this.nextCodePoint() != ')') {
+					throw new UnsupportedOperationException();
+				}
+				return group;
+			case '[':
+				return this.parseClass();
+			case '.':
+				return new Node(null, ALL);
+			case '^':
+			case '$':
+				return new Node();
+			case '\\':
+				return this.parseEscape(false);
+			case ')':
+			case '*':
+			case '+':
+			case '?':
+			case '{':
+				throw new UnsupportedOperationException();
+			default:
+				TreeSet<Integer> chars = new TreeSet<Integer>();
+				addVariants(chars, c);
+				return new Node(chars, getCharClasses(c));
+			}
+		}
+
+		/**
+		 * Escaped character or predefined class (the backslash is consumed).
+		 * @param inClass true inside a character class
+		 * @return the node, or an empty node for zero-width assertions (outside classes only)
+		 */
+		private Node parseEscape(boolean inClass) {
+			if (!this.hasNext()) {
+				throw new UnsupportedOperationException();
+			}
+			int c = this.nextCodePoint();
+			TreeSet<Integer> chars = new TreeSet<Integer>();
+			switch (c) {
+			case 'd':
+				for (int digit = '0' ; digit <= '9' ; digit++) {
+					chars.add(digit);
+				}
+				return new Node(chars, DIGIT);
+			case 'w':
+				return new Node(null, ALL);
+			case 's':
+				for (char space : " \t\n\u000B\f\r".toCharArray()) {
+					chars.add((int)space);
+				}
+				return new Node(chars, OTHER);
+			case 'D':
+			case 'W':
+			case 'S':
+				return new Node(null, ALL);
+			case 't':
+				chars.add((int)'\t');
+				return new Node(chars, OTHER);
+			case 'n':
+				chars.add((int)'\n');
+				return new Node(chars, OTHER);
+			case 'r':
+				chars.add((int)'\r');
+				return new Node(chars, OTHER);
+			case 'f':
+				chars.add((int)'\f');
+				return new Node(chars, OTHER);
+			case 'b':
+			case 'B':
+			case 'A':
+			case 'z':
+			case 'Z':
+				if (!inClass) {
+					return new Node();
+				}
+				throw new UnsupportedOperationException();
+			default:
+				if (c < 128 && !Character.isLetterOrDigit(c)) {
+					addVariants(chars, c);
+					return new Node(chars, getCharClasses(c));
+				}
+				throw new UnsupportedOperationException();
+			}
+		}
+
+		/**
+		 * Character class (the opening bracket is consumed).
+		 */
+		private Node parseClass() {
+			boolean negated = this.hasNext() && this.peek() == '^';
+			if (negated) {
+				this.position++;
+			}
+			TreeSet<Integer> chars = new TreeSet<Integer>();
+			int classes = 0;
+			boolean first = true;
+			int c;
+			while (true) {
+				if (!this.hasNext()) {
+					throw new UnsupportedOperationException();
+				}
+				c = this.nextCodePoint();
+				if (c == ']' && !first) {
+					break;
+				}
+				first = false;
+				if (c == '[' || c == '&' && this.hasNext() && this.peek() == '&') {
+					// Nested classes, intersections
+					throw new UnsupportedOperationException();
+				}
+				if (c == '\\') {
+					Node escape = this.parseEscape(true);
+					if (this.hasNext() && this.peek() == '-' && this.position + 1 < this.regex.length()
+							&& this.regex.charAt(this.position + 1) != ']') {
+						// Range starting with an escaped char (e.g. [\.-9])
+						throw new UnsupportedOperationException();
+					}
+					classes |= escape.allowedClasses;
+					chars = escape.leadingChars == null ? null : Node.union(chars, escape.leadingChars);
+					continue;
+				}
+				int last = c;
+				if (this.hasNext() && this.peek() == '-' && this.position + 1 < this.regex.length()
+						&& this.regex.charAt(this.position + 1) != ']') {
+					// Range
+					this.position++;
+					last = this.nextCodePoint();
+					if (last == '\\' || last == '[' || last < c || last - c > MAX_RANGE_SIZE) {
+						throw new UnsupportedOperationException();
+					}
+				}
+				for (int member = c ; member <= last ; member++) {
+					classes |= getCharClasses(member);
+					if (chars != null) {
+						addVariants(chars, member);
+						if (chars.size() > MAX_LEADING_CHARS) {
+							chars = null;
+						}
+					}
+				}
+			}
+			return negated ? new Node(null, ALL) : new Node(chars, classes);
+		}
+	}
+}
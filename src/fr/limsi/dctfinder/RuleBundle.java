@@ -0,0 +1,523 @@
+package fr.limsi.dctfinder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Language-dependent rules of an extractor: vocabulary (with its matcher), date rules,
+ * date-in-URL patterns and title & time-related tag patterns.
+ * Rules are parsed from the text files of the language directory, or loaded from
+ * a binary bundle of this directory (parameter RULE_BUNDLE_FILE_NAME), written beforehand
+ * with {@link #compile(Locale, Properties, File, boolean)}. A bundle holds the patterns and the
+ * precomputed tables of the vocabulary matcher (literals, pattern signatures, combined pattern),
+ * so that loading it only compiles each regex once. A bundle also holds a checksum of the text files
+ * it was written from: when they have been modified since, the bundle is ignored (with a warning)
+ * and the rules are parsed from the text files, until the bundle is written again.
+ * Bundles of another format version are ignored as well.
+ * @author xtannier
+ *
+ */
+class RuleBundle {
+
+	// Binary format (the version changes with the signature computation, so that
+	// bundles holding signatures of a former version are rebuilt)
+	private static final byte[] BINARY_MAGIC = "DCTRULE1".getBytes(Charset.forName("US-ASCII"));
+	private static final int BINARY_VERSION = 3;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final String DATE_ELEM = "date";
+
+	private HashMap<Pattern, String> dateRules;
+	private VocabularyMatcher vocabularyMatcher;
+	private HashMap<Pattern, String> urlPatterns;
+	private ArrayList<Pattern> timeTagRelatedPatterns;
+	private ArrayList<Pattern> titleTagRelatedPatterns;
+	private ArrayList<Pattern> titleTagRelatedAntiPatterns;
+	// Checksum of the text files of the rules (see getSourceChecksum)
+	private long sourceChecksum;
+
+	private RuleBundle() {
+		this.dateRules = new HashMap<Pattern, String>();
+		this.urlPatterns = new HashMap<Pattern, String>();
+		this.timeTagRelatedPatterns = new ArrayList<Pattern>();
+		this.titleTagRelatedPatterns = new ArrayList<Pattern>();
+		this.titleTagRelatedAntiPatterns = new ArrayList<Pattern>();
+	}
+
+	/**
+	 * Get the rules of a language, from its bundle if any, or else from its text files.
+	 * @param locale the locale of the language directory
+	 * @param properties the configuration
+	 * @param verbose verbose mode
+	 * @return the rules
+	 * @throws DCTExtractorException
+	 */
+	static RuleBundle get(Locale locale, Properties properties, boolean verbose) throws DCTExtractorException {
+		String bundleFileName = properties.getProperty(LocalDCTExtractor.RULE_BUNDLE_FILE_NAME);
+		if (bundleFileName != null && bundleFileName.trim().length() > 0) {
+			String bundlePath = getDirectoryPath(locale, properties) + "/" + bundleFileName.trim();
+			InputStream is = RuleBundle.class.getClassLoader().getResourceAsStream(bundlePath);
+			if (is != null) {
+				long start = System.nanoTime();
+				RuleBundle rules;
+				long sourceChecksum;
+				try {
+					rules = load(is);
+					sourceChecksum = getSourceChecksum(locale, properties);
+				} catch (IOException e) {
+					throw new DCTExtractorException("Couln't load rule bundle " + bundlePath + ": " + e.getMessage());
+				}
+				if (rules == null) {
+					if (verbose) {
+						System.out.println("WARN: rule bundle " + bundlePath + " has another format version, rules are parsed from text files");
+					}
+				} else if (rules.sourceChecksum != sourceChecksum) {
+					// Missing text files are reported by the parser
+					if (sourceChecksum >= 0) {
+						System.out.println("WARN: rule bundle " + bundlePath + " does not match the rule files (modified since it was written), "
+								+ "rules are parsed from text files");
+					}
+				} else {
+					if (verbose) {
+						System.out.println("Rules of " + locale + " loaded from " + bundlePath + " in " + (System.nanoTime() - start) / 1000000.0 + " ms");
+					}
+					return rules;
+				}
+			}
+		}
+		return parse(locale, properties);
+	}
+
+	private static String getDirectoryPath(Locale locale, Properties properties) {
+		return properties.getProperty(LocalDCTExtractor.DATA_DIR_PARAMETER) + "/" + locale.toString();
+	}
+
+	/**
+	 * Get the checksum of the text files of the rules of a language (file list, vocabulary files,
+	 * URL and tag pattern files), with their paths.
+	 * @param locale the locale of the language directory
+	 * @param properties the configuration
+	 * @return the CRC-32 checksum, or -1 if a file is missing
+	 * @throws IOException
+	 */
+	private static long getSourceChecksum(Locale locale, Properties properties) throws IOException {
+		CRC32 checksum = new CRC32();
+		String directoryPath = getDirectoryPath(locale, properties);
+		List<String> paths = new ArrayList<String>();
+		String vocabularyFileListPath = directoryPath + "/" + properties.getProperty(LocalDCTExtractor.VOCABULARY_FILE_LIST_NAME);
+		byte[] fileList = readResource(vocabularyFileListPath);
+		if (fileList == null) {
+			return -1;
+		}
+		// Same reading as parse()
+		BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(fileList)));
+		String ruleFileName;
+		while ((ruleFileName=br.readLine())!=null){
+			paths.add(directoryPath + "/" + properties.getProperty(LocalDCTExtractor.VOCABULARY_DIR_NAME) + "/" + ruleFileName);
+		}
+		paths.add(directoryPath + "/" + properties.getProperty(LocalDCTExtractor.DATE_IN_URL_PATTERNS_FILE_NAME));
+		paths.add(directoryPath + "/" + properties.getProperty(LocalDCTExtractor.TIME_RELATED_PATTERNS_FILE_NAME));
+		paths.add(directoryPath + "/" + properties.getProperty(LocalDCTExtractor.TITLE_PATTERNS_FILE_NAME));
+		paths.add(directoryPath + "/" + properties.getProperty(LocalDCTExtractor.TITLE_ANTI_PATTERNS_FILE_NAME));
+
+		updateChecksum(checksum, vocabularyFileListPath, fileList);
+		byte[] content;
+		for (String path : paths) {
+			if ((content = readResource(path)) == null) {
+				return -1;
+			}
+			updateChecksum(checksum, path, content);
+		}
+		return checksum.getValue();
+	}
+
+	private static void updateChecksum(CRC32 checksum, String path, byte[] content) {
+		byte[] bytes = path.getBytes(UTF8);
+		checksum.update(ByteBuffer.allocate(8).putInt(bytes.length).putInt(content.length).array());
+		checksum.update(bytes);
+		checksum.update(content);
+	}
+
+	/**
+	 * @return the content of a resource, or null if it does not exist
+	 */
+	private static byte[] readResource(String path) throws IOException {
+		InputStream is = RuleBundle.class.getClassLoader().getResourceAsStream(path);
+		if (is == null) {
+			return null;
+		}
+		try {
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int length;
+			while ((length = is.read(buffer)) >= 0) {
+				content.write(buffer, 0, length);
+			}
+			return content.toByteArray();
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Parse the rules of a language from its text files.
+	 * @param locale the locale of the language directory
+	 * @param properties the configuration
+	 * @return the rules
+	 * @throws DCTExtractorException
+	 */
+	static RuleBundle parse(Locale locale, Properties properties) throws DCTExtractorException {
+		RuleBundle rules = new RuleBundle();
+		// Vocabulary groups, by decreasing priority (order of the file list)
+		LinkedHashMap<String, HashMap<Pattern, String>> allRules = new LinkedHashMap<>();
+		ClassLoader classLoader = RuleBundle.class.getClassLoader();
+		String directoryPath = getDirectoryPath(locale, properties);
+
+		/*************************
+		 * Get vocabulary
+		 ************************/
+		String vocabularyFileListPath = directoryPath + "/" + properties.getProperty(LocalDCTExtractor.VOCABULARY_FILE_LIST_NAME);
+		InputStream is = classLoader.getResourceAsStream(vocabularyFileListPath);
+		if (is == null) {
+			throw new DCTExtractorException("Could not find resource file " + vocabularyFileListPath);
+		}
+
+		InputStreamReader isr = new InputStreamReader(is);
+		BufferedReader br = new BufferedReader(isr);
+		String ruleFileName;
+		String line;
+		String fields[];
+		String regex;
+		String vocabularyFilePath;
+		Pattern pattern;
+
+		try {
+			// Parse all files in vocabulary directory
+			while ((ruleFileName=br.readLine())!=null){
+				vocabularyFilePath = directoryPath + "/" + properties.getProperty(LocalDCTExtractor.VOCABULARY_DIR_NAME) + "/" + ruleFileName;
+				InputStream ruleIps = classLoader.getResourceAsStream(vocabularyFilePath);
+				if (ruleIps == null) {
+					throw new DCTExtractorException("Could not find resource file " + vocabularyFilePath + ", please compile the rules again.");
+				}
+				BufferedReader ruleBr = new BufferedReader(new InputStreamReader(ruleIps, "UTF-8"));
+
+				HashMap<Pattern, String> allPatterns = new HashMap<>();
+				if (ruleFileName.startsWith(DATE_ELEM)) {
+					while ((line=ruleBr.readLine())!=null){
+						line.replaceAll("#.*", "");
+						if (line.trim().length() == 0)
+							continue;
+						fields = line.split("\t");
+						if (fields.length == 2) {
+							regex = fields[0];
+							if (!regex.contains("(")) {
+								regex = "(" + regex + ")";
+							}
+							// Compiled once for the date parser and the vocabulary
+							pattern = Pattern.compile(regex, Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+							rules.dateRules.put(pattern, fields[1]);
+							allPatterns.put(pattern, fields[1]);
+						} else {
+							ruleBr.close();
+							throw new DCTExtractorException("Bad format in list " + vocabularyFilePath + " : " + line);
+						}
+					}
+					ruleBr.close();
+				} else {
+					while ((line=ruleBr.readLine())!=null){
+						line.replaceAll("#.*", "");
+						if (line.trim().length() == 0)
+							continue;
+						allPatterns.put(Pattern.compile(line, Pattern.CASE_INSENSITIVE), "");
+					}
+				}
+				allRules.put(ruleFileName.substring(0, ruleFileName.length() - 4), allPatterns);
+			}
+			br.close();
+		} catch (IOException e) {
+			throw new DCTExtractorException("Couln't create rules from resource " + vocabularyFileListPath);
+		}
+		rules.vocabularyMatcher = new VocabularyMatcher(allRules);
+
+
+		/***********************
+		 * URL patterns for finding date
+		 ***********************/
+		String urlPatternsFilePath = directoryPath + "/" + properties.getProperty(LocalDCTExtractor.DATE_IN_URL_PATTERNS_FILE_NAME);
+		is = classLoader.getResourceAsStream(urlPatternsFilePath);
+		if (is == null) {
+			throw new DCTExtractorException("Could not find resource file " + urlPatternsFilePath);
+		}
+
+		try {
+			isr = new InputStreamReader(is, "UTF-8");
+			br = new BufferedReader(isr);
+
+			while ((line=br.readLine())!=null){
+				if (line.trim().length() == 0)
+					continue;
+				line.replaceAll("#.*", "");
+				fields = line.split("\t");
+				if (fields.length == 2) {
+					regex = fields[0];
+					if (!regex.contains("(")) {
+						regex = "(" + regex + ")";
+					}
+					rules.urlPatterns.put(Pattern.compile(regex), fields[1]);
+				} else {
+					br.close();
+					throw new DCTExtractorException("Bad format in list " + properties.getProperty(LocalDCTExtractor.DATE_IN_URL_PATTERNS_FILE_NAME) + " : " + line);
+				}
+			}
+			br.close();
+		} catch (IOException e) {
+			throw new DCTExtractorException("Couln't create URL patterns from resource " + properties.getProperty(LocalDCTExtractor.DATE_IN_URL_PATTERNS_FILE_NAME));
+		}
+
+		/*****************
+		 * Title & time-related patterns
+		 *****************/
+		// Time-related tag patterns
+		readTagPatterns(directoryPath + "/" + properties.getProperty(LocalDCTExtractor.TIME_RELATED_PATTERNS_FILE_NAME), rules.timeTagRelatedPatterns, properties);
+		// Title tag patterns
+		readTagPatterns(directoryPath + "/" + properties.getProperty(LocalDCTExtractor.TITLE_PATTERNS_FILE_NAME), rules.titleTagRelatedPatterns, properties);
+		readTagPatterns(directoryPath + "/" + properties.getProperty(LocalDCTExtractor.TITLE_ANTI_PATTERNS_FILE_NAME), rules.titleTagRelatedAntiPatterns, properties);
+		return rules;
+	}
+
+	private static void readTagPatterns(String path, List<Pattern> patterns, Properties properties) throws DCTExtractorException {
+		InputStream is = RuleBundle.class.getClassLoader().getResourceAsStream(path);
+		if (is == null) {
+			throw new DCTExtractorException("Could not find resource file " + path);
+		}
+
+		try {
+			BufferedReader br = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+			String line;
+			while ((line=br.readLine())!=null){
+				if (line.trim().length() == 0)
+					continue;
+				line.replaceAll("#.*", "");
+				patterns.add(Pattern.compile(line, Pattern.CASE_INSENSITIVE));
+			}
+			br.close();
+		} catch (IOException e) {
+			throw new DCTExtractorException("Couln't create URL patterns from resource " + properties.getProperty(LocalDCTExtractor.DATE_IN_URL_PATTERNS_FILE_NAME));
+		}
+	}
+
+	/**
+	 * Parse the rules of a language from its text files, and write them as a bundle
+	 * in the language directory.
+	 * @param locale the locale of the language directory (Locale.ENGLISH for both en_US and en_GB)
+	 * @param properties the configuration
+	 * @param dataDir the data directory (DATA_DIR), where bundles are written
+	 * @param verbose verbose mode
+	 * @return a description of the written bundles
+	 * @throws DCTExtractorException
+	 * @throws IOException
+	 */
+	static String compile(Locale locale, Properties properties, File dataDir, boolean verbose) throws DCTExtractorException, IOException {
+		String bundleFileName = properties.getProperty(LocalDCTExtractor.RULE_BUNDLE_FILE_NAME);
+		if (bundleFileName == null || bundleFileName.trim().length() == 0) {
+			throw new DCTExtractorException("Parameter " + LocalDCTExtractor.RULE_BUNDLE_FILE_NAME + " must be set to compile rule bundles");
+		}
+		List<Locale> locales = locale == Locale.ENGLISH ? Arrays.asList(Locale.US, Locale.UK) : Arrays.asList(locale);
+		String result = "";
+		for (Locale bundleLocale : locales) {
+			long start = System.nanoTime();
+			RuleBundle rules = parse(bundleLocale, properties);
+			rules.sourceChecksum = getSourceChecksum(bundleLocale, properties);
+			long parsed = System.nanoTime();
+			File bundleFile = new File(new File(dataDir, bundleLocale.toString()), bundleFileName.trim());
+			rules.save(bundleFile);
+			long saved = System.nanoTime();
+			load(new FileInputStream(bundleFile));
+			long loaded = System.nanoTime();
+			result += bundleLocale + ": rules parsed in " + (parsed - start) / 1000000.0 + " ms -> "
+					+ bundleFile.getPath() + " (" + bundleFile.length() + " bytes, written in " + (saved - parsed) / 1000000.0
+					+ " ms, loaded in " + (loaded - saved) / 1000000.0 + " ms)\n";
+			if (verbose) {
+				System.out.println("Vocabulary of " + bundleLocale + ": " + rules.vocabularyMatcher.getLiteralNumber() + " literals, "
+						+ rules.vocabularyMatcher.getRegexNumber() + " regexes");
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Write the rules as a bundle.
+	 * @param file the bundle file
+	 * @throws IOException
+	 */
+	void save(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.write(BINARY_MAGIC);
+			out.writeInt(BINARY_VERSION);
+			out.writeLong(this.sourceChecksum);
+			writePatterns(out, this.dateRules);
+			this.vocabularyMatcher.write(out, this.dateRules.keySet());
+			writePatterns(out, this.urlPatterns);
+			writePatterns(out, this.timeTagRelatedPatterns);
+			writePatterns(out, this.titleTagRelatedPatterns);
+			writePatterns(out, this.titleTagRelatedAntiPatterns);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Load rules written as a bundle.
+	 * @param is the bundle (closed)
+	 * @return the rules, or null if the bundle has another format version
+	 * @throws IOException
+	 */
+	static RuleBundle load(InputStream is) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+		try {
+			byte[] magic = new byte[BINARY_MAGIC.length];
+			in.readFully(magic);
+			if (!Arrays.equals(magic, BINARY_MAGIC) || in.readInt() != BINARY_VERSION) {
+				return null;
+			}
+			RuleBundle rules = new RuleBundle();
+			rules.sourceChecksum = in.readLong();
+			List<Pattern> datePatterns = readPatterns(in, rules.dateRules);
+			rules.vocabularyMatcher = VocabularyMatcher.read(in, datePatterns);
+			readPatterns(in, rules.urlPatterns);
+			readPatterns(in, rules.timeTagRelatedPatterns);
+			readPatterns(in, rules.titleTagRelatedPatterns);
+			readPatterns(in, rules.titleTagRelatedAntiPatterns);
+			return rules;
+		} catch (RuntimeException e) {
+			// PatternSyntaxException, bad sizes
+			throw new IOException("Bad rule bundle: " + e);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writePatterns(DataOutputStream out, Map<Pattern, String> patterns) throws IOException {
+		out.writeInt(patterns.size());
+		for (Map.Entry<Pattern, String> entry : patterns.entrySet()) {
+			writePattern(out, entry.getKey());
+			writeString(out, entry.getValue());
+		}
+	}
+
+	private static void writePatterns(DataOutputStream out, List<Pattern> patterns) throws IOException {
+		out.writeInt(patterns.size());
+		for (Pattern pattern : patterns) {
+			writePattern(out, pattern);
+		}
+	}
+
+	/**
+	 * @return the patterns, in the order of the bundle
+	 */
+	private static List<Pattern> readPatterns(DataInputStream in, Map<Pattern, String> patterns) throws IOException {
+		int size = in.readInt();
+		List<Pattern> keys = new ArrayList<Pattern>(size);
+		for (int i = 0 ; i < size ; i++) {
+			Pattern pattern = readPattern(in);
+			patterns.put(pattern, readString(in));
+			keys.add(pattern);
+		}
+		return keys;
+	}
+
+	private static void readPatterns(DataInputStream in, List<Pattern> patterns) throws IOException {
+		int size = in.readInt();
+		for (int i = 0 ; i < size ; i++) {
+			patterns.add(readPattern(in));
+		}
+	}
+
+	static void writePattern(DataOutputStream out, Pattern pattern) throws IOException {
+		writeString(out, pattern.pattern());
+		out.writeInt(pattern.flags());
+	}
+
+	static Pattern readPattern(DataInputStream in) throws IOException {
+		String regex = readString(in);
+		return Pattern.compile(regex, in.readInt());
+	}
+
+	static void writeString(DataOutputStream out, String string) throws IOException {
+		byte[] bytes = string.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * @return the date rules (regex and action), for the date parser
+	 */
+	HashMap<Pattern, String> getDateRules() {
+		return this.dateRules;
+	}
+
+	/**
+	 * @return the matcher of the vocabulary
+	 */
+	VocabularyMatcher getVocabularyMatcher() {
+		return this.vocabularyMatcher;
+	}
+
+	/**
+	 * @return the patterns for finding dates in URLs
+	 */
+	HashMap<Pattern, String> getUrlPatterns() {
+		return this.urlPatterns;
+	}
+
+	/**
+	 * @return the patterns for finding date-related tags
+	 */
+	ArrayList<Pattern> getTimeTagRelatedPatterns() {
+		return this.timeTagRelatedPatterns;
+	}
+
+	/**
+	 * @return the patterns for finding title-related tags
+	 */
+	ArrayList<Pattern> getTitleTagRelatedPatterns() {
+		return this.titleTagRelatedPatterns;
+	}
+
+	/**
+	 * @return the patterns for discarding title-related tags
+	 */
+	ArrayList<Pattern> getTitleTagRelatedAntiPatterns() {
+		return this.titleTagRelatedAntiPatterns;
+	}
+}
@@ -0,0 +1,175 @@
+package fr.limsi.dctfinder;
+
+import java.util.regex.Pattern;
+
+/**
+ * Reusable container of the attributes of an HTML tag.
+ * Only the values of the attributes read by the extractor (id, class, content,
+ * and the WebAnnotator type and subtypes) are kept as strings. The values of
+ * the other attributes are only kept as characters, to be matched against
+ * patterns (see {@link #matchesAnyValue(Pattern)}).
+ * Not thread-safe.
+ * @author xtannier
+ *
+ */
+class TagAttributes {
+
+	static final int ID = 0;
+	static final int CLASS = 1;
+	static final int CONTENT = 2;
+	static final int TYPE = 3;
+	static final int SUBTYPES = 4;
+	/** Index of the attributes whose value is not kept as a string */
+	static final int OTHER = 5;
+	/** No attribute */
+	static final int NONE = -1;
+
+	private static final String[] NAMES = {"id", "class", "content", "type", "subtypes"};
+
+	private String[] values;
+	// Number of attributes
+	private int number;
+	// Characters of the other values, and their ends in otherChars
+	private char[] otherChars;
+	private int[] otherEnds;
+	private int otherNumber;
+	private CharSlice slice;
+
+	TagAttributes() {
+		this.values = new String[NAMES.length];
+		this.otherChars = new char[256];
+		this.otherEnds = new int[8];
+		this.slice = new CharSlice();
+		this.clear();
+	}
+
+	/**
+	 * Remove all attributes.
+	 */
+	void clear() {
+		for (int i = 0 ; i < this.values.length ; i++) {
+			this.values[i] = null;
+		}
+		this.number = 0;
+		this.otherNumber = 0;
+	}
+
+	/**
+	 * @return true if the tag has no attribute
+	 */
+	boolean isEmpty() {
+		return this.number == 0;
+	}
+
+	/**
+	 * Get the index of an attribute name (case-sensitive).
+	 * @param chars the characters of the name
+	 * @param length the length of the name
+	 * @return the index of the attribute, or OTHER
+	 */
+	static int getIndex(char[] chars, int length) {
+		for (int index = 0 ; index < NAMES.length ; index++) {
+			String name = NAMES[index];
+			if (name.length() == length) {
+				int i;
+				for (i = 0 ; i < length && name.charAt(i) == chars[i] ; i++);
+				if (i == length) {
+					return index;
+				}
+			}
+		}
+		return OTHER;
+	}
+
+	/**
+	 * Set the value of an attribute.
+	 * @param index the index of the attribute (see {@link #getIndex(char[], int)})
+	 * @param chars the characters of the value
+	 * @param length the length of the value
+	 */
+	void put(int index, char[] chars, int length) {
+		this.number++;
+		if (index != OTHER) {
+			this.values[index] = new String(chars, 0, length);
+			return;
+		}
+		int start = this.otherNumber == 0 ? 0 : this.otherEnds[this.otherNumber - 1];
+		if (start + length > this.otherChars.length) {
+			char[] newChars = new char[Math.max(this.otherChars.length * 2, start + length)];
+			System.arraycopy(this.otherChars, 0, newChars, 0, start);
+			this.otherChars = newChars;
+		}
+		if (this.otherNumber == this.otherEnds.length) {
+			int[] newEnds = new int[this.otherEnds.length * 2];
+			System.arraycopy(this.otherEnds, 0, newEnds, 0, this.otherNumber);
+			this.otherEnds = newEnds;
+		}
+		System.arraycopy(chars, 0, this.otherChars, start, length);
+		this.otherEnds[this.otherNumber++] = start + length;
+	}
+
+	/**
+	 * @param index the index of the attribute (except OTHER)
+	 * @return the value of the attribute, or null
+	 */
+	String get(int index) {
+		return this.values[index];
+	}
+
+	/**
+	 * @param pattern a pattern
+	 * @return true if the pattern matches the value of any attribute
+	 */
+	boolean matchesAnyValue(Pattern pattern) {
+		for (String value : this.values) {
+			if (value != null && pattern.matcher(value).matches()) {
+				return true;
+			}
+		}
+		int start = 0;
+		for (int i = 0 ; i < this.otherNumber ; i++) {
+			this.slice.set(this.otherChars, start, this.otherEnds[i]);
+			if (pattern.matcher(this.slice).matches()) {
+				return true;
+			}
+			start = this.otherEnds[i];
+		}
+		return false;
+	}
+
+
+	/**
+	 * Characters of an array, as a sequence (not copied).
+	 */
+	private static class CharSlice implements CharSequence {
+		private char[] chars;
+		private int start;
+		private int end;
+
+		void set(char[] chars, int start, int end) {
+			this.chars = chars;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public int length() {
+			return this.end - this.start;
+		}
+
+		@Override
+		public char charAt(int index) {
+			return this.chars[this.start + index];
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return new String(this.chars, this.start + start, end - start);
+		}
+
+		@Override
+		public String toString() {
+			return new String(this.chars, this.start, this.end - this.start);
+		}
+	}
+}
@@ -0,0 +1,303 @@
+package fr.limsi.dctfinder;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of the vocabulary classes of tokens, in front of a {@link VocabularyMatcher}.
+ * Pages repeat the same tokens constantly ("the", "Comments", "2013"...), which are
+ * then matched once. Tokens are normalized by the matcher (see {@link VocabularyMatcher#normalize(String)}).
+ * The eviction policy follows W-TinyLFU: new tokens enter a small LRU window,
+ * and a token leaving the window only replaces the least recently used token of the
+ * main space (segmented LRU) if it has been looked up more frequently. Frequencies are
+ * estimated by a count-min sketch of small counters, halved periodically so that
+ * old frequencies fade.
+ * The cache is divided into stripes (by token hash) locked separately.
+ * A cache must only be used with a single vocabulary.
+ * This class is thread-safe.
+ * @author xtannier
+ *
+ */
+class TokenClassCache {
+
+	// Class of the tokens belonging to no vocabulary group
+	private static final String NO_CLASS = "";
+	// Number of stripes of large caches
+	private static final int STRIPE_NUMBER = 16;
+	private static final int MIN_STRIPE_SIZE = 256;
+
+	private int maxSize;
+	private Stripe[] stripes;
+	private AtomicLong hitNumber;
+	private AtomicLong missNumber;
+	private AtomicLong evictionNumber;
+
+	/**
+	 * @param maxSize the maximum number of tokens in the cache
+	 */
+	TokenClassCache(int maxSize) {
+		this.maxSize = maxSize;
+		int stripeNumber = maxSize >= STRIPE_NUMBER * MIN_STRIPE_SIZE ? STRIPE_NUMBER : 1;
+		this.stripes = new Stripe[stripeNumber];
+		for (int i = 0 ; i < stripeNumber ; i++) {
+			// Remaining tokens go to the first stripes
+			this.stripes[i] = new Stripe(maxSize / stripeNumber + (i < maxSize % stripeNumber ? 1 : 0));
+		}
+		this.hitNumber = new AtomicLong();
+		this.missNumber = new AtomicLong();
+		this.evictionNumber = new AtomicLong();
+	}
+
+	/**
+	 * Get the vocabulary class of a token, as {@link VocabularyMatcher#match(CharSequence)}.
+	 * The token is only matched if it is not in the cache.
+	 * @param token the token
+	 * @param matcher the matcher of the vocabulary (only used by the calling thread)
+	 * @return the name of the group of the token, or null if it does not belong to any group
+	 */
+	String getVocabularyClass(String token, VocabularyMatcher matcher) {
+		String key = matcher.normalize(token);
+		int hash = spread(key.hashCode());
+		Stripe stripe = this.stripes[(hash >>> 28) & (this.stripes.length - 1)];
+		String vocabularyClass;
+		synchronized (stripe) {
+			vocabularyClass = stripe.get(key, hash);
+		}
+		if (vocabularyClass != null) {
+			this.hitNumber.incrementAndGet();
+			return vocabularyClass == NO_CLASS ? null : vocabularyClass;
+		}
+		this.missNumber.incrementAndGet();
+		vocabularyClass = matcher.match(key);
+		synchronized (stripe) {
+			if (stripe.put(key, vocabularyClass == null ? NO_CLASS : vocabularyClass)) {
+				this.evictionNumber.incrementAndGet();
+			}
+		}
+		return vocabularyClass;
+	}
+
+	private static int spread(int hash) {
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * Remove all tokens from the cache, and reset the counters.
+	 */
+	void clear() {
+		for (Stripe stripe : this.stripes) {
+			synchronized (stripe) {
+				stripe.clear();
+			}
+		}
+		this.hitNumber.set(0);
+		this.missNumber.set(0);
+		this.evictionNumber.set(0);
+	}
+
+	/**
+	 * @return the number of tokens in the cache
+	 */
+	int size() {
+		int size = 0;
+		for (Stripe stripe : this.stripes) {
+			synchronized (stripe) {
+				size += stripe.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return the maximum number of tokens in the cache
+	 */
+	int getMaxSize() {
+		return this.maxSize;
+	}
+
+	/**
+	 * @return the number of tokens found in the cache
+	 */
+	long getHitNumber() {
+		return this.hitNumber.get();
+	}
+
+	/**
+	 * @return the number of tokens sent to the matcher
+	 */
+	long getMissNumber() {
+		return this.missNumber.get();
+	}
+
+	/**
+	 * @return the number of tokens removed from the cache (or not admitted) when full
+	 */
+	long getEvictionNumber() {
+		return this.evictionNumber.get();
+	}
+
+	/**
+	 * @return the proportion of tokens found in the cache (0 if no token was looked up)
+	 */
+	double getHitRate() {
+		long hits = this.hitNumber.get();
+		long total = hits + this.missNumber.get();
+		return total == 0 ? 0.0 : (double)hits / total;
+	}
+
+	@Override
+	public String toString() {
+		return "Token class cache: " + this.size() + " / " + this.maxSize + " tokens, "
+				+ this.getHitNumber() + " hits, " + this.getMissNumber() + " misses, "
+				+ this.getEvictionNumber() + " evictions (hit rate "
+				+ String.format("%.2f", this.getHitRate() * 100) + "%)";
+	}
+
+
+	/**
+	 * Part of the cache, with its own window, main space and frequency sketch.
+	 */
+	private static class Stripe {
+		// Seeds of the rows of the sketch
+		private static final int[] SEEDS = {0x97CB3127, 0xB40EAE9B, 0xC2B2AE35, 0x85EBCA6B};
+		private static final int MAX_FREQUENCY = 15;
+
+		private int windowMaxSize;
+		private int protectedMaxSize;
+		private int mainMaxSize;
+		// In access order (least recently used first)
+		private LinkedHashMap<String, String> window;
+		private LinkedHashMap<String, String> probation;
+		private LinkedHashMap<String, String> protectedTokens;
+		// Count-min sketch: one row of counters by seed
+		private byte[][] frequencies;
+		private int frequencyMask;
+		private int additionNumber;
+		private int sampleSize;
+
+		Stripe(int maxSize) {
+			this.windowMaxSize = Math.max(1, maxSize / 100);
+			this.mainMaxSize = Math.max(0, maxSize - this.windowMaxSize);
+			this.protectedMaxSize = this.mainMaxSize * 4 / 5;
+			this.window = new LinkedHashMap<String, String>(16, 0.75f, true);
+			this.probation = new LinkedHashMap<String, String>(16, 0.75f, true);
+			this.protectedTokens = new LinkedHashMap<String, String>(16, 0.75f, true);
+			int width = Integer.highestOneBit(Math.max(16, maxSize) * 2 - 1);
+			this.frequencies = new byte[SEEDS.length][width];
+			this.frequencyMask = width - 1;
+			this.additionNumber = 0;
+			this.sampleSize = 10 * Math.max(16, maxSize);
+		}
+
+		/**
+		 * Look up a token, and count it in the sketch.
+		 * @return the class of the token, or null if not in the stripe
+		 */
+		String get(String token, int hash) {
+			this.addFrequency(hash);
+			String vocabularyClass = this.window.get(token);
+			if (vocabularyClass != null) {
+				return vocabularyClass;
+			}
+			vocabularyClass = this.protectedTokens.get(token);
+			if (vocabularyClass != null) {
+				return vocabularyClass;
+			}
+			vocabularyClass = this.probation.remove(token);
+			if (vocabularyClass != null) {
+				// Second access: promoted to the protected segment
+				this.protectedTokens.put(token, vocabularyClass);
+				if (this.protectedTokens.size() > this.protectedMaxSize) {
+					Map.Entry<String, String> eldest = removeEldest(this.protectedTokens);
+					this.probation.put(eldest.getKey(), eldest.getValue());
+				}
+			}
+			return vocabularyClass;
+		}
+
+		/**
+		 * Add a token that was not found.
+		 * @return true if a token has been evicted (or the candidate rejected)
+		 */
+		boolean put(String token, String vocabularyClass) {
+			if (this.window.containsKey(token) || this.probation.containsKey(token) || this.protectedTokens.containsKey(token)) {
+				// Added by another thread meanwhile
+				return false;
+			}
+			this.window.put(token, vocabularyClass);
+			if (this.window.size() <= this.windowMaxSize) {
+				return false;
+			}
+			Map.Entry<String, String> candidate = removeEldest(this.window);
+			if (this.probation.size() + this.protectedTokens.size() < this.mainMaxSize) {
+				this.probation.put(candidate.getKey(), candidate.getValue());
+				return false;
+			}
+			// Admission: the candidate replaces the victim if more frequent
+			LinkedHashMap<String, String> victims = this.probation.isEmpty() ? this.protectedTokens : this.probation;
+			if (victims.isEmpty()) {
+				return true;
+			}
+			String victim = victims.keySet().iterator().next();
+			if (this.getFrequency(spread(candidate.getKey().hashCode())) > this.getFrequency(spread(victim.hashCode()))) {
+				victims.remove(victim);
+				this.probation.put(candidate.getKey(), candidate.getValue());
+			}
+			return true;
+		}
+
+		private static Map.Entry<String, String> removeEldest(LinkedHashMap<String, String> map) {
+			Iterator<Map.Entry<String, String>> iterator = map.entrySet().iterator();
+			Map.Entry<String, String> eldest = iterator.next();
+			// Copy before removal
+			eldest = new AbstractMap.SimpleEntry<String, String>(eldest);
+			iterator.remove();
+			return eldest;
+		}
+
+		private void addFrequency(int hash) {
+			for (int row = 0 ; row < SEEDS.length ; row++) {
+				int index = ((hash * SEEDS[row]) >>> 8) & this.frequencyMask;
+				if (this.frequencies[row][index] < MAX_FREQUENCY) {
+					this.frequencies[row][index]++;
+				}
+			}
+			if (++this.additionNumber >= this.sampleSize) {
+				// Aging
+				for (byte[] counters : this.frequencies) {
+					for (int i = 0 ; i < counters.length ; i++) {
+						counters[i] >>= 1;
+					}
+				}
+				this.additionNumber /= 2;
+			}
+		}
+
+		private int getFrequency(int hash) {
+			int frequency = MAX_FREQUENCY;
+			for (int row = 0 ; row < SEEDS.length ; row++) {
+				frequency = Math.min(frequency, this.frequencies[row][((hash * SEEDS[row]) >>> 8) & this.frequencyMask]);
+			}
+			return frequency;
+		}
+
+		int size() {
+			return this.window.size() + this.probation.size() + this.protectedTokens.size();
+		}
+
+		void clear() {
+			this.window.clear();
+			this.probation.clear();
+			this.protectedTokens.clear();
+			for (byte[] counters : this.frequencies) {
+				Arrays.fill(counters, (byte)0);
+			}
+			this.additionNumber = 0;
+		}
+	}
+}
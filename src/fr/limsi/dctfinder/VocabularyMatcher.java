@@ -0,0 +1,571 @@
+package fr.limsi.dctfinder;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Find the vocabulary group (date, trigger, anti-trigger...) of a token.
+ * A token belongs to a group if it entirely matches one of the patterns of the group.
+ * When it matches several groups, the group coming first in the iteration order
+ * of the vocabulary map wins: groups are ranked by their order in the vocabulary
+ * file list of the language (see VOCABULARY_FILE_LIST_NAME).
+ * Patterns that are plain literals (words, possibly with escaped punctuation)
+ * are looked up in hash tables, with the same case folding as the regex engine.
+ * The other patterns are combined into a single alternation, with one capturing group
+ * by vocabulary group, ordered by priority (a token is then matched once, with
+ * a reused matcher). If some patterns cannot be combined (back-references,
+ * flags without inline equivalent...), they are tried one by one.
+ * Before running them, the signature of the token (character classes, length,
+ * first character) is checked against the signatures of the patterns
+ * (see {@link PatternSignature}), so that the patterns the token cannot match
+ * are not run.
+ * Not thread-safe.
+ * @author xtannier
+ *
+ */
+class VocabularyMatcher implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	// Flags that can be written inline, and their inline characters
+	private static final int[] INLINE_FLAGS = {Pattern.CASE_INSENSITIVE, Pattern.UNICODE_CASE, Pattern.COMMENTS,
+		Pattern.DOTALL, Pattern.MULTILINE, Pattern.UNIX_LINES, Pattern.UNICODE_CHARACTER_CLASS};
+	private static final char[] INLINE_FLAG_CHARS = {'i', 'u', 'x', 's', 'm', 'd', 'U'};
+	// Back-references and named groups
+	private static final Pattern GROUP_REFERENCE_PATTERN = Pattern.compile("\\\\[1-9]|\\\\k<|\\(\\?<[a-zA-Z]");
+	// Regex metacharacters
+	private static final String METACHARACTERS = "\\^$.|?*+()[]{}";
+
+	// Numbers of tokens for which the patterns are run or not, after checking their signatures
+	private static AtomicLong prefilterPassNumber = new AtomicLong();
+	private static AtomicLong prefilterRejectNumber = new AtomicLong();
+
+	// Group names, by decreasing priority
+	private String[] groupNames;
+	// Literal patterns: index of the best group by literal, for each case folding
+	// (none, ASCII-only as with CASE_INSENSITIVE, Unicode as with CASE_INSENSITIVE | UNICODE_CASE)
+	private HashMap<String, Integer> exactLiterals;
+	private HashMap<String, Integer> asciiLiterals;
+	private HashMap<String, Integer> unicodeLiterals;
+	private int literalNumber;
+	// Other patterns of each group, and index of the first group having some
+	private Pattern[][] groupPatterns;
+	private int firstRegexGroup;
+	// Signatures of these patterns, and of each group (null if no pattern)
+	private PatternSignature[][] patternSignatures;
+	private PatternSignature[] groupSignatures;
+	private int filteredPatternNumber;
+	// True if tokens differing by the case of ASCII letters always match the same patterns
+	private boolean asciiCaseFolding;
+	private transient PatternSignature.Token tokenSignature;
+	// Combined pattern (null if the patterns cannot be combined),
+	// and index of the capturing group of each vocabulary group (-1 if none)
+	private Pattern combinedPattern;
+	private int[] groupIndexes;
+	private transient Matcher matcher;
+
+	/**
+	 * @param vocabulary the patterns of each group, by decreasing priority
+	 * (e.g. a {@link java.util.LinkedHashMap})
+	 */
+	VocabularyMatcher(Map<String, ? extends Map<Pattern, String>> vocabulary) {
+		List<String> names = new ArrayList<String>();
+		for (Map.Entry<String, ? extends Map<Pattern, String>> entry : vocabulary.entrySet()) {
+			if (!entry.getValue().isEmpty()) {
+				names.add(entry.getKey());
+			}
+		}
+		this.groupNames = names.toArray(new String[names.size()]);
+		this.groupPatterns = new Pattern[this.groupNames.length][];
+		this.patternSignatures = new PatternSignature[this.groupNames.length][];
+		this.groupSignatures = new PatternSignature[this.groupNames.length];
+		this.filteredPatternNumber = 0;
+		this.asciiCaseFolding = true;
+		this.exactLiterals = new HashMap<String, Integer>();
+		this.asciiLiterals = new HashMap<String, Integer>();
+		this.unicodeLiterals = new HashMap<String, Integer>();
+		this.literalNumber = 0;
+		this.firstRegexGroup = this.groupNames.length;
+		List<Pattern> regexes = new ArrayList<Pattern>();
+		List<PatternSignature> signatures = new ArrayList<PatternSignature>();
+		String literal;
+		for (int g = 0 ; g < this.groupNames.length ; g++) {
+			regexes.clear();
+			signatures.clear();
+			for (Pattern pattern : vocabulary.get(this.groupNames[g]).keySet()) {
+				if ((pattern.flags() & Pattern.CASE_INSENSITIVE) == 0) {
+					this.asciiCaseFolding = false;
+				}
+				if ((literal = getLiteral(pattern)) != null) {
+					this.addLiteral(literal, pattern.flags(), g);
+				} else {
+					PatternSignature signature = PatternSignature.forPattern(pattern);
+					if (!signature.acceptsAny()) {
+						this.filteredPatternNumber++;
+					}
+					// Unsupported syntax: the effect of case-insensitivity is not known
+					if (signature == PatternSignature.ANY) {
+						this.asciiCaseFolding = false;
+					}
+					regexes.add(pattern);
+					signatures.add(signature);
+				}
+			}
+			this.groupPatterns[g] = regexes.toArray(new Pattern[regexes.size()]);
+			this.patternSignatures[g] = signatures.toArray(new PatternSignature[signatures.size()]);
+			if (!signatures.isEmpty()) {
+				this.groupSignatures[g] = PatternSignature.forAlternation(signatures);
+			}
+			if (!regexes.isEmpty() && this.firstRegexGroup == this.groupNames.length) {
+				this.firstRegexGroup = g;
+			}
+		}
+		this.combine();
+	}
+
+	private VocabularyMatcher() {
+	}
+
+	/**
+	 * Write the tables of the matcher (see {@link RuleBundle}).
+	 * @param out the output
+	 * @param sharedPatterns patterns written before the matcher (written as references)
+	 * @throws IOException
+	 */
+	void write(DataOutputStream out, Collection<Pattern> sharedPatterns) throws IOException {
+		IdentityHashMap<Pattern, Integer> sharedIndexes = new IdentityHashMap<Pattern, Integer>();
+		for (Pattern pattern : sharedPatterns) {
+			sharedIndexes.put(pattern, sharedIndexes.size());
+		}
+		out.writeInt(this.groupNames.length);
+		for (String name : this.groupNames) {
+			RuleBundle.writeString(out, name);
+		}
+		writeLiterals(out, this.exactLiterals);
+		writeLiterals(out, this.asciiLiterals);
+		writeLiterals(out, this.unicodeLiterals);
+		out.writeInt(this.literalNumber);
+		for (int g = 0 ; g < this.groupNames.length ; g++) {
+			out.writeInt(this.groupPatterns[g].length);
+			for (int i = 0 ; i < this.groupPatterns[g].length ; i++) {
+				Integer index = sharedIndexes.get(this.groupPatterns[g][i]);
+				if (index == null) {
+					out.writeInt(-1);
+					RuleBundle.writePattern(out, this.groupPatterns[g][i]);
+				} else {
+					out.writeInt(index);
+				}
+				this.patternSignatures[g][i].write(out);
+			}
+			out.writeBoolean(this.groupSignatures[g] != null);
+			if (this.groupSignatures[g] != null) {
+				this.groupSignatures[g].write(out);
+			}
+		}
+		out.writeInt(this.firstRegexGroup);
+		out.writeInt(this.filteredPatternNumber);
+		out.writeBoolean(this.asciiCaseFolding);
+		out.writeBoolean(this.combinedPattern != null);
+		if (this.combinedPattern != null) {
+			RuleBundle.writePattern(out, this.combinedPattern);
+			for (int index : this.groupIndexes) {
+				out.writeInt(index);
+			}
+		}
+	}
+
+	/**
+	 * Read the tables of a matcher written by {@link #write(DataOutputStream, Collection)}.
+	 * @param in the input
+	 * @param sharedPatterns patterns read before the matcher, in the order they were written
+	 * @return the matcher
+	 * @throws IOException
+	 */
+	static VocabularyMatcher read(DataInputStream in, List<Pattern> sharedPatterns) throws IOException {
+		VocabularyMatcher matcher = new VocabularyMatcher();
+		int groupNumber = in.readInt();
+		matcher.groupNames = new String[groupNumber];
+		for (int g = 0 ; g < groupNumber ; g++) {
+			matcher.groupNames[g] = RuleBundle.readString(in);
+		}
+		matcher.exactLiterals = readLiterals(in);
+		matcher.asciiLiterals = readLiterals(in);
+		matcher.unicodeLiterals = readLiterals(in);
+		matcher.literalNumber = in.readInt();
+		matcher.groupPatterns = new Pattern[groupNumber][];
+		matcher.patternSignatures = new PatternSignature[groupNumber][];
+		matcher.groupSignatures = new PatternSignature[groupNumber];
+		for (int g = 0 ; g < groupNumber ; g++) {
+			int patternNumber = in.readInt();
+			matcher.groupPatterns[g] = new Pattern[patternNumber];
+			matcher.patternSignatures[g] = new PatternSignature[patternNumber];
+			for (int i = 0 ; i < patternNumber ; i++) {
+				int index = in.readInt();
+				matcher.groupPatterns[g][i] = index < 0 ? RuleBundle.readPattern(in) : sharedPatterns.get(index);
+				matcher.patternSignatures[g][i] = PatternSignature.read(in);
+			}
+			if (in.readBoolean()) {
+				matcher.groupSignatures[g] = PatternSignature.read(in);
+			}
+		}
+		matcher.firstRegexGroup = in.readInt();
+		matcher.filteredPatternNumber = in.readInt();
+		matcher.asciiCaseFolding = in.readBoolean();
+		if (in.readBoolean()) {
+			matcher.combinedPattern = RuleBundle.readPattern(in);
+			matcher.groupIndexes = new int[groupNumber];
+			for (int g = 0 ; g < groupNumber ; g++) {
+				matcher.groupIndexes[g] = in.readInt();
+			}
+		}
+		return matcher;
+	}
+
+	private static void writeLiterals(DataOutputStream out, HashMap<String, Integer> literals) throws IOException {
+		out.writeInt(literals.size());
+		for (Map.Entry<String, Integer> entry : literals.entrySet()) {
+			RuleBundle.writeString(out, entry.getKey());
+			out.writeInt(entry.getValue());
+		}
+	}
+
+	private static HashMap<String, Integer> readLiterals(DataInputStream in) throws IOException {
+		int size = in.readInt();
+		HashMap<String, Integer> literals = new HashMap<String, Integer>(size * 4 / 3 + 1);
+		for (int i = 0 ; i < size ; i++) {
+			String literal = RuleBundle.readString(in);
+			literals.put(literal, in.readInt());
+		}
+		return literals;
+	}
+
+	/**
+	 * Get the text matched by a pattern made of a literal only
+	 * (letters, escaped punctuation, single-character classes,
+	 * possibly inside a single group).
+	 * @return the literal, or null if the pattern is not a literal
+	 * (or has flags other than case-insensitivity)
+	 */
+	private static String getLiteral(Pattern pattern) {
+		int flags = pattern.flags();
+		if (flags != 0 && flags != Pattern.CASE_INSENSITIVE && flags != (Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE)) {
+			return null;
+		}
+		String regex = pattern.pattern();
+		// Single group around the whole pattern
+		if (regex.length() >= 2 && regex.charAt(0) == '(' && regex.charAt(1) != '?'
+				&& regex.indexOf(')') == regex.length() - 1 && regex.lastIndexOf('(') == 0) {
+			regex = regex.substring(1, regex.length() - 1);
+		}
+		StringBuilder literal = new StringBuilder();
+		char c;
+		for (int i = 0 ; i < regex.length() ; i++) {
+			c = regex.charAt(i);
+			if (c == '\\') {
+				// Escaped punctuation
+				if (i + 1 < regex.length() && isPunctuation(regex.charAt(i + 1))) {
+					literal.append(regex.charAt(++i));
+				} else {
+					return null;
+				}
+			} else if (c == '[') {
+				// Single-character class
+				if (i + 2 < regex.length() && regex.charAt(i + 2) == ']' && isPunctuation(regex.charAt(i + 1))
+						&& "^[]\\&-".indexOf(regex.charAt(i + 1)) < 0) {
+					literal.append(regex.charAt(i + 1));
+					i += 2;
+				} else {
+					return null;
+				}
+			} else if (METACHARACTERS.indexOf(c) >= 0 || Character.isSurrogate(c)) {
+				return null;
+			} else {
+				literal.append(c);
+			}
+		}
+		return literal.toString();
+	}
+
+	private static boolean isPunctuation(char c) {
+		return c < 128 && !Character.isLetterOrDigit(c) && !Character.isWhitespace(c);
+	}
+
+	private void addLiteral(String literal, int flags, int group) {
+		HashMap<String, Integer> literals;
+		if (flags == 0) {
+			literals = this.exactLiterals;
+		} else if (flags == Pattern.CASE_INSENSITIVE) {
+			literals = this.asciiLiterals;
+			literal = foldAscii(literal);
+		} else {
+			literals = this.unicodeLiterals;
+			literal = foldUnicode(literal);
+		}
+		// Groups are added by decreasing priority
+		if (!literals.containsKey(literal)) {
+			literals.put(literal, group);
+		}
+		this.literalNumber++;
+	}
+
+	/**
+	 * Case folding of CASE_INSENSITIVE patterns (ASCII letters only).
+	 */
+	private static String foldAscii(CharSequence text) {
+		char[] chars = null;
+		char c;
+		for (int i = 0 ; i < text.length() ; i++) {
+			c = text.charAt(i);
+			if (c >= 'A' && c <= 'Z') {
+				if (chars == null) {
+					chars = text.toString().toCharArray();
+				}
+				chars[i] = (char)(c + ('a' - 'A'));
+			}
+		}
+		return chars == null ? text.toString() : new String(chars);
+	}
+
+	/**
+	 * Case folding of CASE_INSENSITIVE | UNICODE_CASE patterns.
+	 */
+	private static String foldUnicode(CharSequence text) {
+		char[] chars = null;
+		char c;
+		char folded;
+		for (int i = 0 ; i < text.length() ; i++) {
+			c = text.charAt(i);
+			folded = Character.toLowerCase(Character.toUpperCase(c));
+			if (folded != c) {
+				if (chars == null) {
+					chars = text.toString().toCharArray();
+				}
+				chars[i] = folded;
+			}
+		}
+		return chars == null ? text.toString() : new String(chars);
+	}
+
+	/**
+	 * Build the combined pattern of the patterns that are not literals, if possible.
+	 */
+	private void combine() {
+		if (this.firstRegexGroup == this.groupNames.length) {
+			return;
+		}
+		StringBuilder regex = new StringBuilder();
+		int[] indexes = new int[this.groupNames.length];
+		int index = 1;
+		String flags;
+		for (int g = 0 ; g < this.groupNames.length ; g++) {
+			if (this.groupPatterns[g].length == 0) {
+				indexes[g] = -1;
+				continue;
+			}
+			if (regex.length() > 0) {
+				regex.append('|');
+			}
+			regex.append('(');
+			indexes[g] = index++;
+			for (int i = 0 ; i < this.groupPatterns[g].length ; i++) {
+				Pattern pattern = this.groupPatterns[g][i];
+				flags = getInlineFlags(pattern);
+				if (flags == null || GROUP_REFERENCE_PATTERN.matcher(pattern.pattern()).find()) {
+					return;
+				}
+				if (i > 0) {
+					regex.append('|');
+				}
+				regex.append("(?").append(flags).append(':').append(pattern.pattern());
+				if ((pattern.flags() & Pattern.COMMENTS) != 0) {
+					// End of a possible comment
+					regex.append('\n');
+				}
+				regex.append(')');
+				index += pattern.matcher("").groupCount();
+			}
+			regex.append(')');
+		}
+		try {
+			this.combinedPattern = Pattern.compile(regex.toString());
+		} catch (PatternSyntaxException e) {
+			return;
+		}
+		if (this.combinedPattern.matcher("").groupCount() != index - 1) {
+			this.combinedPattern = null;
+			return;
+		}
+		this.groupIndexes = indexes;
+	}
+
+	/**
+	 * @return the inline flags of a pattern (as in "(?iu:...)"), or null if some flags cannot be written inline
+	 */
+	private static String getInlineFlags(Pattern pattern) {
+		int flags = pattern.flags();
+		StringBuilder inlineFlags = new StringBuilder();
+		for (int i = 0 ; i < INLINE_FLAGS.length ; i++) {
+			if ((flags & INLINE_FLAGS[i]) != 0) {
+				inlineFlags.append(INLINE_FLAG_CHARS[i]);
+				flags &= ~INLINE_FLAGS[i];
+			}
+		}
+		return flags == 0 ? inlineFlags.toString() : null;
+	}
+
+	/**
+	 * Normalize a token for caching: when all patterns are case-insensitive,
+	 * ASCII letters are lower-cased (this does not change the group of the token).
+	 * @param token a token
+	 * @return the normalized token
+	 */
+	String normalize(String token) {
+		return this.asciiCaseFolding ? foldAscii(token) : token;
+	}
+
+	/**
+	 * @param token a token
+	 * @return the name of the group of the token, or null if it does not belong to any group
+	 */
+	String match(CharSequence token) {
+		int group = this.matchLiterals(token);
+		// Only groups of higher priority can still win
+		if (group > this.firstRegexGroup) {
+			group = this.matchRegexes(token, group);
+		}
+		return group < this.groupNames.length ? this.groupNames[group] : null;
+	}
+
+	/**
+	 * @return the index of the best group having the token as a literal
+	 * (or the number of groups if none)
+	 */
+	private int matchLiterals(CharSequence token) {
+		int group = this.groupNames.length;
+		Integer literalGroup;
+		if (!this.exactLiterals.isEmpty() && (literalGroup = this.exactLiterals.get(token.toString())) != null) {
+			group = literalGroup;
+		}
+		if (!this.asciiLiterals.isEmpty() && (literalGroup = this.asciiLiterals.get(foldAscii(token))) != null && literalGroup < group) {
+			group = literalGroup;
+		}
+		if (!this.unicodeLiterals.isEmpty() && (literalGroup = this.unicodeLiterals.get(foldUnicode(token))) != null && literalGroup < group) {
+			group = literalGroup;
+		}
+		return group;
+	}
+
+	/**
+	 * @param limit index of the groups not to be tried
+	 * @return the index of the best group having a pattern (not a literal) matching the token,
+	 * or limit if none before
+	 */
+	private int matchRegexes(CharSequence token, int limit) {
+		if (this.tokenSignature == null) {
+			this.tokenSignature = new PatternSignature.Token();
+		}
+		this.tokenSignature.set(token);
+		int g;
+		for (g = this.firstRegexGroup ; g < limit ; g++) {
+			if (this.groupSignatures[g] != null && this.groupSignatures[g].accepts(this.tokenSignature)) {
+				break;
+			}
+		}
+		if (g == limit) {
+			prefilterRejectNumber.incrementAndGet();
+			return limit;
+		}
+		prefilterPassNumber.incrementAndGet();
+		if (this.combinedPattern != null) {
+			if (this.matcher == null) {
+				this.matcher = this.combinedPattern.matcher("");
+			}
+			if (this.matcher.reset(token).matches()) {
+				for ( ; g < limit ; g++) {
+					if (this.groupIndexes[g] >= 0 && this.matcher.start(this.groupIndexes[g]) >= 0) {
+						return g;
+					}
+				}
+			}
+			return limit;
+		}
+		for ( ; g < limit ; g++) {
+			if (this.groupSignatures[g] == null || !this.groupSignatures[g].accepts(this.tokenSignature)) {
+				continue;
+			}
+			for (int i = 0 ; i < this.groupPatterns[g].length ; i++) {
+				if (this.patternSignatures[g][i].accepts(this.tokenSignature) && this.groupPatterns[g][i].matcher(token).matches()) {
+					return g;
+				}
+			}
+		}
+		return limit;
+	}
+
+	/**
+	 * @return true if all patterns that are not literals are matched at once
+	 */
+	boolean isCombined() {
+		return this.combinedPattern != null || this.firstRegexGroup == this.groupNames.length;
+	}
+
+	/**
+	 * @return the number of patterns looked up as literals
+	 */
+	int getLiteralNumber() {
+		return this.literalNumber;
+	}
+
+	/**
+	 * @return the number of patterns matched as regexes
+	 */
+	int getRegexNumber() {
+		int number = 0;
+		for (Pattern[] patterns : this.groupPatterns) {
+			number += patterns.length;
+		}
+		return number;
+	}
+
+	/**
+	 * @return the number of patterns matched as regexes whose signature can reject tokens
+	 */
+	int getFilteredPatternNumber() {
+		return this.filteredPatternNumber;
+	}
+
+	/**
+	 * @return the number of tokens matched against the regexes after checking their signature
+	 * (since the start, or the last call to {@link #resetPrefilterCounters()})
+	 */
+	static long getPrefilterPassNumber() {
+		return prefilterPassNumber.get();
+	}
+
+	/**
+	 * @return the number of tokens whose signature matches no regex, which are then not run
+	 * (since the start, or the last call to {@link #resetPrefilterCounters()})
+	 */
+	static long getPrefilterRejectNumber() {
+		return prefilterRejectNumber.get();
+	}
+
+	/**
+	 * Reset the numbers of tokens passed and rejected by the signatures.
+	 */
+	static void resetPrefilterCounters() {
+		prefilterPassNumber.set(0);
+		prefilterRejectNumber.set(0);
+	}
+}
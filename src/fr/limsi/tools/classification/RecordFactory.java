@@ -10,6 +10,7 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.PrintWriter;
 import java.io.Serializable;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -38,6 +39,15 @@ public class RecordFactory implements Serializable {
 	public static final short DO_NOT_NORMALIZE = 0;
 	public static final short NORMALIZE = 1;
 
+	// Strings of small integers (feature values of CRF lines)
+	private static final int SMALL_INTEGER_MIN = -128;
+	private static final String[] SMALL_INTEGER_STRINGS = new String[1152];
+	static {
+		for (int i = 0 ; i < SMALL_INTEGER_STRINGS.length ; i++) {
+			SMALL_INTEGER_STRINGS[i] = Integer.toString(SMALL_INTEGER_MIN + i);
+		}
+	}
+
 	private HashMap<String, Integer> featureIds; 
 	private HashMap<Integer, String> featureNames;
 	private List<Feature> features;
@@ -571,7 +581,6 @@ public class RecordFactory implements Serializable {
 		FileWriter fw = new FileWriter(outFileData, append);
 		BufferedWriter bw = new BufferedWriter (fw);
 		PrintWriter writer = new PrintWriter (bw); 
-		Object feature;
 		String comment;
 
 		if (addComments) {
@@ -604,29 +613,11 @@ public class RecordFactory implements Serializable {
 					}
 				}
 			} else {
-				for (int i = 0 ; i < record.size() ; i++) {
-					//				if (filledFeatures.contains(i)) {
-					if (!this.features.get(i).isDisabled()) {
-						feature = record.get(i);
-
-						if (feature == null) {
-							//						if (this.noMissingValue) {
-							writer.close();
-							throw new RuntimeException("No missing value allowed for parameter " + this.getFeatureName(i) + " in record #" + i + ": \n   " + record.toString());
-							//						} else {
-							//							writer.print("?\t");
-							//						}
-						} else {
-							writer.print(getValue(feature, i, null) + "\t");
-						}
-					}
-				}
-				feature = record.getClassValueForClassifier();
-				if (feature == null) {
+				try {
+					writer.println(this.getCRFLine(record));
+				} catch (RuntimeException e) {
 					writer.close();
-					throw new RuntimeException("No missing class value allowed...");
-				} else {
-					writer.println(feature.toString());
+					throw e;
 				}
 			}
 		}
@@ -634,7 +625,120 @@ public class RecordFactory implements Serializable {
 
 		return true;
 	}
-	
+
+	/**
+	 * Write records in CRF (Wapiti) data format, without comments
+	 * (as {@link #saveToCRF(RecordList, File)}, but to any writer, e.g. the input of a process).
+	 * The writer is not closed.
+	 * @param records the records
+	 * @param writer the writer
+	 * @throws IOException
+	 */
+	public void writeCRF(RecordList records, Writer writer) throws IOException {
+		for (Record record : records) {
+			if (!(record instanceof SeparationRecord)) {
+				writer.write(this.getCRFLine(record));
+			}
+			writer.write('\n');
+		}
+	}
+
+	/**
+	 * Get the line representing a record in a CRF (Wapiti) data file:
+	 * the values of all enabled features followed by the class value,
+	 * separated by tabulations.
+	 * @param record the record
+	 * @return the CRF line (without end of line)
+	 */
+	public String getCRFLine(Record record) {
+		StringBuilder line = new StringBuilder();
+		Object feature;
+		for (int i = 0 ; i < record.size() ; i++) {
+			//				if (filledFeatures.contains(i)) {
+			if (!this.features.get(i).isDisabled()) {
+				feature = record.get(i);
+
+				if (feature == null) {
+					throw new RuntimeException("No missing value allowed for parameter " + this.getFeatureName(i) + " in record #" + i + ": \n   " + record.toString());
+				} else {
+					line.append(getValue(feature, i, null)).append('\t');
+				}
+			}
+		}
+		feature = record.getClassValueForClassifier();
+		if (feature == null) {
+			throw new RuntimeException("No missing class value allowed...");
+		} 
+		line.append(feature.toString());
+		return line.toString();
+	}
+
+	/**
+	 * Get the values of some columns of the CRF line of a record (see {@link #getCRFLine(Record)}),
+	 * without building the line: values of the other columns are not converted.
+	 * @param record the record
+	 * @param columns the column indices, sorted
+	 * @param values the array receiving the values of the columns
+	 * @return false if splitting the CRF line on blanks would not give its columns 
+	 * (a value is empty or contains a blank, or a column is missing),
+	 * in which case the line itself must be split
+	 */
+	public boolean getCRFValues(Record record, int[] columns, String[] values) {
+		int column = 0;
+		int index = 0;
+		Object feature;
+		for (int i = 0 ; i < record.size() ; i++) {
+			if (!this.features.get(i).isDisabled()) {
+				feature = record.get(i);
+				if (feature == null) {
+					throw new RuntimeException("No missing value allowed for parameter " + this.getFeatureName(i) + " in record #" + i + ": \n   " + record.toString());
+				} else if (!(feature instanceof Number || feature instanceof Boolean) && !isCRFToken(feature.toString())) {
+					return false;
+				}
+				if (index < columns.length && columns[index] == column) {
+					values[index++] = getCRFValue(feature);
+				}
+				column++;
+			}
+		}
+		feature = record.getClassValueForClassifier();
+		if (feature == null) {
+			throw new RuntimeException("No missing class value allowed...");
+		}
+		if (index < columns.length && columns[index] == column && isCRFToken(feature.toString())) {
+			values[index++] = feature.toString();
+		}
+		return index == columns.length;
+	}
+
+	/**
+	 * Value of a feature in a CRF line (as {@link #getValue(Object, int, HashSet)}),
+	 * small integers being converted without allocation.
+	 */
+	private static String getCRFValue(Object feature) {
+		if (feature instanceof Byte || feature instanceof Short || feature instanceof Integer) {
+			int value = ((Number)feature).intValue();
+			if (value >= SMALL_INTEGER_MIN && value < SMALL_INTEGER_MIN + SMALL_INTEGER_STRINGS.length) {
+				return SMALL_INTEGER_STRINGS[value - SMALL_INTEGER_MIN];
+			}
+		}
+		return getValue(feature, 0, null);
+	}
+
+	/**
+	 * @return true if the value is a single token of a CRF line (not empty, without blank)
+	 */
+	private static boolean isCRFToken(String value) {
+		char c;
+		for (int i = 0 ; i < value.length() ; i++) {
+			c = value.charAt(i);
+			if (c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == 0x0B) {
+				return false;
+			}
+		}
+		return !value.isEmpty();
+	}
+
 	public boolean saveToArff(RecordList records, File outFile) throws IOException {
 		FileWriter fw = new FileWriter(outFile, false);
 		BufferedWriter bw = new BufferedWriter (fw);
@@ -59,6 +59,18 @@ public class CRFRecordFactory extends RecordFactory {
 		this.featureTemplates.add(featureTemplate);
 	}
 	
+	/**
+	 * @return the Wapiti patterns of the feature templates
+	 * @throws ClassificationException
+	 */
+	public List<String> getTemplateStringValues() throws ClassificationException {
+		List<String> result = new ArrayList<String>();
+		for (FeatureTemplate template : this.featureTemplates) {
+			result.add(template.getTemplateStringValue());
+		}
+		return result;
+	}
+	
 	public boolean saveTemplates(File outFile) throws IOException, ClassificationException {
 		if (!outFile.getParentFile().isDirectory()) {
 			outFile.getParentFile().mkdirs();
@@ -0,0 +1,124 @@
+package fr.limsi.tools.classification.crf;
+
+/**
+ * Reusable buffer of token rows (one row per position), grouped in consecutive sequences.
+ * Rows and arrays are kept when the buffer is cleared, so that filling it again
+ * with rows of the same width does not allocate memory.
+ * Not thread-safe.
+ * @author xtannier
+ *
+ */
+class FeatureRowBuffer {
+
+	private String[][] rows;
+	private int rowNumber;
+	// Index of the first row of each sequence (and index of the end of the last sequence)
+	private int[] sequenceStarts;
+	private int sequenceNumber;
+
+	FeatureRowBuffer() {
+		this.rows = new String[64][];
+		this.sequenceStarts = new int[16];
+		this.clear();
+	}
+
+	/**
+	 * Remove all rows and sequences.
+	 */
+	void clear() {
+		this.rowNumber = 0;
+		this.sequenceNumber = 0;
+		this.sequenceStarts[0] = 0;
+	}
+
+	/**
+	 * Add a row to the current sequence.
+	 * @param width the number of tokens of the row
+	 * @return the row, to be filled (its previous content is not cleared)
+	 */
+	String[] addRow(int width) {
+		this.ensureRowCapacity();
+		if (this.rows[this.rowNumber] == null || this.rows[this.rowNumber].length != width) {
+			this.rows[this.rowNumber] = new String[width];
+		}
+		return this.rows[this.rowNumber++];
+	}
+
+	/**
+	 * Add a row to the current sequence.
+	 * @param row the row (not copied)
+	 */
+	void addRow(String[] row) {
+		this.ensureRowCapacity();
+		this.rows[this.rowNumber++] = row;
+	}
+
+	private void ensureRowCapacity() {
+		if (this.rowNumber == this.rows.length) {
+			String[][] newRows = new String[this.rows.length * 2][];
+			System.arraycopy(this.rows, 0, newRows, 0, this.rowNumber);
+			this.rows = newRows;
+		}
+	}
+
+	/**
+	 * Replace the last added row.
+	 * @param row the new row
+	 */
+	void setLastRow(String[] row) {
+		this.rows[this.rowNumber - 1] = row;
+	}
+
+	/**
+	 * End the current sequence (nothing is done if the sequence is empty).
+	 */
+	void endSequence() {
+		if (this.rowNumber == this.sequenceStarts[this.sequenceNumber]) {
+			return;
+		}
+		if (this.sequenceNumber + 2 > this.sequenceStarts.length) {
+			int[] newStarts = new int[this.sequenceStarts.length * 2];
+			System.arraycopy(this.sequenceStarts, 0, newStarts, 0, this.sequenceNumber + 1);
+			this.sequenceStarts = newStarts;
+		}
+		this.sequenceNumber++;
+		this.sequenceStarts[this.sequenceNumber] = this.rowNumber;
+	}
+
+	/**
+	 * @return all rows (the array is not copied, and may be longer than the number of rows)
+	 */
+	String[][] getRows() {
+		return this.rows;
+	}
+
+	/**
+	 * @return the number of rows
+	 */
+	int getRowNumber() {
+		return this.rowNumber;
+	}
+
+	/**
+	 * @return the number of ended sequences
+	 */
+	int getSequenceNumber() {
+		return this.sequenceNumber;
+	}
+
+	/**
+	 * @param sequence the sequence index
+	 * @return the index of the first row of the sequence
+	 */
+	int getSequenceStart(int sequence) {
+		return this.sequenceStarts[sequence];
+	}
+
+	/**
+	 * @param sequence the sequence index
+	 * @return the number of rows of the sequence
+	 */
+	int getSequenceLength(int sequence) {
+		return this.sequenceStarts[sequence + 1] - this.sequenceStarts[sequence];
+	}
+}
@@ -0,0 +1,238 @@
+package fr.limsi.tools.classification.crf;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Weights of a CRF model, indexed by feature.
+ * Quantized weights are stored with a scale factor per pattern:
+ * the weight of a feature is <code>get(feature) * getScale(pattern)</code>,
+ * where <code>pattern</code> is the pattern of the feature observation.
+ * @author xtannier
+ *
+ */
+abstract class ModelWeights {
+
+	/**
+	 * @param feature the feature index
+	 * @return the (unscaled) weight of the feature
+	 */
+	abstract double get(int feature);
+
+	/**
+	 * @return the number of features
+	 */
+	abstract int size();
+
+	/**
+	 * @return the number of bits of each weight
+	 */
+	abstract int getPrecision();
+
+	/**
+	 * @param pattern the pattern index
+	 * @return the scale factor of the weights of the pattern
+	 */
+	double getScale(int pattern) {
+		return 1.0;
+	}
+
+
+	/**
+	 * Double-precision weights, in an array (the only modifiable weights, used for training).
+	 */
+	static class DoubleWeights extends ModelWeights {
+		private double[] values;
+
+		DoubleWeights(double[] values) {
+			this.values = values;
+		}
+
+		double[] getValues() {
+			return this.values;
+		}
+
+		@Override
+		double get(int feature) {
+			return this.values[feature];
+		}
+
+		@Override
+		int size() {
+			return this.values.length;
+		}
+
+		@Override
+		int getPrecision() {
+			return 64;
+		}
+	}
+
+	/**
+	 * Single-precision weights, read from a (possibly memory-mapped) buffer.
+	 */
+	static class FloatBufferWeights extends ModelWeights {
+		private FloatBuffer values;
+
+		FloatBufferWeights(FloatBuffer values) {
+			this.values = values;
+		}
+
+		@Override
+		double get(int feature) {
+			return this.values.get(feature);
+		}
+
+		@Override
+		int size() {
+			return this.values.limit();
+		}
+
+		@Override
+		int getPrecision() {
+			return 32;
+		}
+	}
+
+	/**
+	 * Half-precision (IEEE 754 binary16) weights with a scale factor per pattern,
+	 * read from a (possibly memory-mapped) buffer.
+	 */
+	static class HalfWeights extends ModelWeights {
+		private ShortBuffer values;
+		private float[] scales;
+
+		HalfWeights(ShortBuffer values, float[] scales) {
+			this.values = values;
+			this.scales = scales;
+		}
+
+		@Override
+		double get(int feature) {
+			return halfToFloat(this.values.get(feature));
+		}
+
+		@Override
+		double getScale(int pattern) {
+			return this.scales[pattern];
+		}
+
+		float[] getScales() {
+			return this.scales;
+		}
+
+		@Override
+		int size() {
+			return this.values.limit();
+		}
+
+		@Override
+		int getPrecision() {
+			return 16;
+		}
+	}
+
+	/**
+	 * 8-bit integer weights with a scale factor per pattern,
+	 * read from a (possibly memory-mapped) buffer.
+	 */
+	static class ByteWeights extends ModelWeights {
+		private ByteBuffer values;
+		private float[] scales;
+
+		ByteWeights(ByteBuffer values, float[] scales) {
+			this.values = values;
+			this.scales = scales;
+		}
+
+		@Override
+		double get(int feature) {
+			return this.values.get(feature);
+		}
+
+		@Override
+		double getScale(int pattern) {
+			return this.scales[pattern];
+		}
+
+		float[] getScales() {
+			return this.scales;
+		}
+
+		@Override
+		int size() {
+			return this.values.limit();
+		}
+
+		@Override
+		int getPrecision() {
+			return 8;
+		}
+	}
+
+
+	/*****************************************
+	 * Half-precision conversions
+	 *****************************************/
+
+	/**
+	 * Convert a binary16 value to a float.
+	 */
+	static float halfToFloat(short half) {
+		int bits = half & 0xffff;
+		int sign = (bits & 0x8000) << 16;
+		int exponent = (bits >>> 10) & 0x1f;
+		int mantissa = bits & 0x3ff;
+		if (exponent == 0x1f) {
+			// infinity or NaN
+			return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+		} else if (exponent == 0) {
+			// zero or subnormal: mantissa * 2^-24
+			float value = mantissa * 5.9604645e-8f;
+			return sign == 0 ? value : -value;
+		}
+		return Float.intBitsToFloat(sign | ((exponent + 112) << 23) | (mantissa << 13));
+	}
+
+	/**
+	 * Convert a float to a binary16 value (round to nearest even).
+	 */
+	static short floatToHalf(float value) {
+		int bits = Float.floatToIntBits(value);
+		int sign = (bits >>> 16) & 0x8000;
+		int exponent = ((bits >>> 23) & 0xff) - 127 + 15;
+		int mantissa = bits & 0x7fffff;
+		if (((bits >>> 23) & 0xff) == 0xff) {
+			// infinity or NaN
+			return (short)(sign | 0x7c00 | (mantissa != 0 ? 0x200 : 0));
+		}
+		if (exponent >= 0x1f) {
+			// overflow
+			return (short)(sign | 0x7c00);
+		}
+		if (exponent <= 0) {
+			if (exponent < -10) {
+				// underflow
+				return (short)sign;
+			}
+			// subnormal
+			mantissa |= 0x800000;
+			int shift = 14 - exponent;
+			int half = mantissa >>> shift;
+			int remainder = mantissa & ((1 << shift) - 1);
+			int middle = 1 << (shift - 1);
+			if (remainder > middle || (remainder == middle && (half & 1) != 0)) {
+				half++;
+			}
+			return (short)(sign | half);
+		}
+		int half = (exponent << 10) | (mantissa >>> 13);
+		int remainder = mantissa & 0x1fff;
+		if (remainder > 0x1000 || (remainder == 0x1000 && (half & 1) != 0)) {
+			// may overflow to infinity, which is correct
+			half++;
+		}
+		return (short)(sign | half);
+	}
+}
@@ -0,0 +1,247 @@
+package fr.limsi.tools.classification.crf;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import fr.limsi.tools.classification.ClassificationException;
+import fr.limsi.tools.classification.Record;
+import fr.limsi.tools.classification.RecordFactory;
+import fr.limsi.tools.classification.RecordList;
+
+/**
+ * Bounded cache of the labels of sequences, in front of a {@link SequenceLabeler}.
+ * Identical sequences (bylines, footers... of the pages of a same site) are labeled once:
+ * sequences are identified by a SHA-256 hash of the values of the columns read by the model
+ * (see {@link RecordFactory#getCRFValues(Record, int[], String[])}), or of their CRF lines
+ * (see {@link RecordFactory#getCRFLine(Record)}) when the columns are not known,
+ * and the least recently used sequences are removed when the cache is full.
+ * A cache must only be used with labelers of the same model.
+ * This class is thread-safe.
+ * @author xtannier
+ *
+ */
+public class SequenceLabelCache {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private int maxSize;
+	// columns of the CRF lines read by the labeler (null if unknown)
+	private int[] columns;
+	// labels and scores of each sequence, by hash of the sequence, in access order
+	private LinkedHashMap<ByteBuffer, SequenceLabels> cache;
+	private long hitNumber;
+	private long missNumber;
+
+	/**
+	 * Cache identifying sequences by their whole CRF lines.
+	 * @param maxSize the maximum number of sequences in the cache
+	 */
+	public SequenceLabelCache(int maxSize) {
+		this(maxSize, null);
+	}
+
+	/**
+	 * @param maxSize the maximum number of sequences in the cache
+	 * @param columns the columns of the CRF lines read by the labeler, sorted 
+	 * (see {@link WapitiModel#getColumns()}), or null to use the whole lines
+	 */
+	public SequenceLabelCache(final int maxSize, int[] columns) {
+		this.maxSize = maxSize;
+		this.columns = columns;
+		this.cache = new LinkedHashMap<ByteBuffer, SequenceLabels>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ByteBuffer, SequenceLabels> eldest) {
+				return this.size() > maxSize;
+			}
+		};
+		this.hitNumber = 0;
+		this.missNumber = 0;
+	}
+
+	/**
+	 * Label a list of records, as {@link SequenceLabeler#label(RecordList)}.
+	 * Only the sequences that are not in the cache are sent to the labeler.
+	 * @param labeler the labeler
+	 * @param records the records to label
+	 * @throws ClassificationException
+	 */
+	public void label(SequenceLabeler labeler, RecordList records) throws ClassificationException {
+		RecordFactory factory = records.getFactory();
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new ClassificationException(e);
+		}
+
+		// Split sequences
+		List<ArrayList<Record>> sequences = new ArrayList<ArrayList<Record>>();
+		ArrayList<Record> sequence = new ArrayList<Record>();
+		for (Record record : records) {
+			if (record instanceof SeparationRecord) {
+				if (!sequence.isEmpty()) {
+					sequences.add(sequence);
+					sequence = new ArrayList<Record>();
+				}
+			} else {
+				sequence.add(record);
+			}
+		}
+		if (!sequence.isEmpty()) {
+			sequences.add(sequence);
+		}
+
+		// Get known sequences, label the others
+		RecordList unknownRecords = new RecordList(factory);
+		List<ArrayList<Record>> unknownSequences = new ArrayList<ArrayList<Record>>();
+		List<ByteBuffer> unknownKeys = new ArrayList<ByteBuffer>();
+		ByteBuffer key;
+		SequenceLabels labels;
+		String[] values = this.columns == null ? null : new String[this.columns.length];
+		for (ArrayList<Record> currentSequence : sequences) {
+			for (Record record : currentSequence) {
+				if (values != null && factory.getCRFValues(record, this.columns, values)) {
+					// values contain no blank
+					for (String value : values) {
+						digest.update(value.getBytes(UTF8));
+						digest.update((byte)'\t');
+					}
+				} else {
+					digest.update((byte)0);
+					digest.update(factory.getCRFLine(record).getBytes(UTF8));
+				}
+				digest.update((byte)'\n');
+			}
+			key = ByteBuffer.wrap(digest.digest());
+			synchronized (this.cache) {
+				labels = this.cache.get(key);
+				if (labels == null) {
+					this.missNumber++;
+				} else {
+					this.hitNumber++;
+				}
+			}
+			if (labels == null) {
+				unknownRecords.addAll(currentSequence);
+				unknownRecords.add(new SeparationRecord());
+				unknownSequences.add(currentSequence);
+				unknownKeys.add(key);
+			} else {
+				labels.set(currentSequence);
+			}
+		}
+		if (unknownSequences.isEmpty()) {
+			return;
+		}
+		labeler.label(unknownRecords);
+		synchronized (this.cache) {
+			for (int i = 0 ; i < unknownSequences.size() ; i++) {
+				this.cache.put(unknownKeys.get(i), new SequenceLabels(unknownSequences.get(i)));
+			}
+		}
+	}
+
+	/**
+	 * Remove all sequences from the cache, and reset the counters.
+	 */
+	public void clear() {
+		synchronized (this.cache) {
+			this.cache.clear();
+			this.hitNumber = 0;
+			this.missNumber = 0;
+		}
+	}
+
+	/**
+	 * @return the number of sequences in the cache
+	 */
+	public int size() {
+		synchronized (this.cache) {
+			return this.cache.size();
+		}
+	}
+
+	/**
+	 * @return the maximum number of sequences in the cache
+	 */
+	public int getMaxSize() {
+		return this.maxSize;
+	}
+
+	/**
+	 * @return the columns of the CRF lines identifying the sequences (null for whole lines)
+	 */
+	public int[] getColumns() {
+		return this.columns;
+	}
+
+	/**
+	 * @return the number of sequences found in the cache
+	 */
+	public long getHitNumber() {
+		synchronized (this.cache) {
+			return this.hitNumber;
+		}
+	}
+
+	/**
+	 * @return the number of sequences sent to the labeler
+	 */
+	public long getMissNumber() {
+		synchronized (this.cache) {
+			return this.missNumber;
+		}
+	}
+
+	/**
+	 * @return the proportion of sequences found in the cache (0 if no sequence was labeled)
+	 */
+	public double getHitRate() {
+		synchronized (this.cache) {
+			long total = this.hitNumber + this.missNumber;
+			return total == 0 ? 0.0 : (double)this.hitNumber / total;
+		}
+	}
+
+	@Override
+	public String toString() {
+		synchronized (this.cache) {
+			return "Label cache: " + this.cache.size() + " / " + this.maxSize + " sequences, "
+					+ this.hitNumber + " hits, " + this.missNumber + " misses (hit rate "
+					+ String.format("%.2f", this.getHitRate() * 100) + "%)";
+		}
+	}
+
+
+	/**
+	 * Labels and scores of a sequence.
+	 */
+	private static class SequenceLabels {
+		private String[] labels;
+		private double[] scores;
+
+		SequenceLabels(List<Record> sequence) {
+			this.labels = new String[sequence.size()];
+			this.scores = new double[sequence.size()];
+			for (int t = 0 ; t < this.labels.length ; t++) {
+				this.labels[t] = sequence.get(t).getPredictedClass();
+				this.scores[t] = sequence.get(t).getPredictedConfidence();
+			}
+		}
+
+		void set(List<Record> sequence) {
+			for (int t = 0 ; t < this.labels.length ; t++) {
+				sequence.get(t).setPredictedClass(this.labels[t]);
+				sequence.get(t).setPredictedConfidence(this.scores[t]);
+			}
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package fr.limsi.tools.classification.crf;
+
+import fr.limsi.tools.classification.ClassificationException;
+import fr.limsi.tools.classification.Record;
+import fr.limsi.tools.classification.RecordList;
+
+/**
+ * A CRF labeling backend (in-process decoder, Wapiti processes...).
+ * Implementations must be thread-safe.
+ * Other backends can be selected by configuration with their class name,
+ * they must then have a public constructor taking the model file path
+ * (<code>String</code>) and the configuration (<code>java.util.Properties</code>).
+ * @author xtannier
+ *
+ */
+public interface SequenceLabeler {
+
+	/**
+	 * Label a list of records. Sequences are separated by {@link SeparationRecord}s.
+	 * The predicted class and its score are set on each record
+	 * (see {@link Record#getPredictedClass()} and {@link Record#getPredictedConfidence()}).
+	 * @param records the records to label
+	 * @throws ClassificationException
+	 */
+	public void label(RecordList records) throws ClassificationException;
+
+	/**
+	 * Release the resources of the labeler (processes, files...).
+	 */
+	public void close();
+}
@@ -0,0 +1,122 @@
+package fr.limsi.tools.classification.crf;
+
+import java.util.ArrayList;
+
+import fr.limsi.tools.classification.ClassificationException;
+import fr.limsi.tools.classification.Record;
+import fr.limsi.tools.classification.RecordList;
+
+/**
+ * Parity check between two {@link SequenceLabeler}s: the same records are labeled
+ * by both labelers, and the predicted classes and scores are compared.
+ * @author xtannier
+ *
+ */
+public class SequenceLabelerComparison {
+
+	private int recordNumber;
+	private int labelDifferences;
+	private int scoreDifferences;
+	private double maxScoreDifference;
+	private ArrayList<String> differences;
+
+	/**
+	 * Label records with two labelers and compare the results.
+	 * The records keep the labels of the second labeler.
+	 * @param records the records to label
+	 * @param first the first labeler
+	 * @param second the second labeler
+	 * @param scoreTolerance the maximum difference between two scores considered as equal
+	 * @param maxReportedDifferences the maximum number of differences kept for the report
+	 * @throws ClassificationException
+	 */
+	public SequenceLabelerComparison(RecordList records, SequenceLabeler first, SequenceLabeler second, 
+			double scoreTolerance, int maxReportedDifferences) throws ClassificationException {
+		first.label(records);
+		ArrayList<String> firstClasses = new ArrayList<String>(records.size());
+		ArrayList<Double> firstScores = new ArrayList<Double>(records.size());
+		for (Record record : records) {
+			firstClasses.add(record.getPredictedClass());
+			firstScores.add(record.getPredictedConfidence());
+			record.setPredictedClass(null);
+			record.setPredictedConfidence(-1);
+		}
+		second.label(records);
+
+		this.differences = new ArrayList<String>();
+		int index = 0;
+		int sequence = 0;
+		int position = 0;
+		for (Record record : records) {
+			if (record instanceof SeparationRecord) {
+				sequence++;
+				position = 0;
+				index++;
+				continue;
+			}
+			this.recordNumber++;
+			String firstClass = firstClasses.get(index);
+			double scoreDifference = Math.abs(firstScores.get(index) - record.getPredictedConfidence());
+			boolean sameClass = firstClass == null ? record.getPredictedClass() == null : firstClass.equals(record.getPredictedClass());
+			if (!sameClass) {
+				this.labelDifferences++;
+			} else if (scoreDifference > scoreTolerance) {
+				this.scoreDifferences++;
+			}
+			this.maxScoreDifference = Math.max(this.maxScoreDifference, scoreDifference);
+			if ((!sameClass || scoreDifference > scoreTolerance) && this.differences.size() < maxReportedDifferences) {
+				this.differences.add("sequence " + sequence + ", position " + position + ": " 
+						+ firstClass + "/" + firstScores.get(index) + " vs " + record.getPredictedClass() + "/" + record.getPredictedConfidence());
+			}
+			position++;
+			index++;
+		}
+	}
+
+	/**
+	 * @return true if both labelers gave the same labels, with the same scores (within tolerance)
+	 */
+	public boolean isIdentical() {
+		return this.labelDifferences == 0 && this.scoreDifferences == 0;
+	}
+
+	/**
+	 * @return the number of compared records
+	 */
+	public int getRecordNumber() {
+		return recordNumber;
+	}
+
+	/**
+	 * @return the number of records with different labels
+	 */
+	public int getLabelDifferences() {
+		return labelDifferences;
+	}
+
+	/**
+	 * @return the number of records with the same label but different scores
+	 */
+	public int getScoreDifferences() {
+		return scoreDifferences;
+	}
+
+	/**
+	 * @return the maximum difference between two scores
+	 */
+	public double getMaxScoreDifference() {
+		return maxScoreDifference;
+	}
+
+	@Override
+	public String toString() {
+		String result = "Compared records: " + this.recordNumber + "\n"
+				+ "Different labels: " + this.labelDifferences + "\n"
+				+ "Different scores: " + this.scoreDifferences + "\n"
+				+ "Max score difference: " + this.maxScoreDifference + "\n";
+		for (String difference : this.differences) {
+			result += "   " + difference + "\n";
+		}
+		return result;
+	}
+}
@@ -0,0 +1,390 @@
+package fr.limsi.tools.classification.crf;
+
+import java.util.Arrays;
+
+import fr.limsi.tools.classification.ClassificationException;
+
+/**
+ * Decoder labeling many independent sequences together
+ * (same results as {@link WapitiDecoder#label(String[][], int[], double[])}).
+ * Sequences are sorted by decreasing length and processed in batches.
+ * Within a batch, all values of a position are stored in structure-of-arrays layout
+ * (one contiguous lane per label or label pair, indexed by sequence), so that
+ * forward-backward and Viterbi are run on all sequences of the batch at once,
+ * with inner loops over sequences that the JIT compiler can vectorize.
+ * Not thread-safe (work arrays are reused between batches and calls).
+ * @author xtannier
+ *
+ */
+class WapitiBatchDecoder {
+
+	/**
+	 * Maximum number of sequences decoded together
+	 */
+	static final int BATCH_SIZE = 256;
+
+	private WapitiModel model;
+	private int labelNumber;
+
+	/*****************************************
+	 * Work arrays of the current batch
+	 *****************************************/
+	// Number of sequences covering each position (sequences are sorted by decreasing length,
+	// so the active sequences at position t are the first active[t] ones)
+	private int[] active;
+	// Index of the first value of each position in alpha (psi index is labelNumber times larger)
+	private int[] positionOffsets;
+	// Log-potentials then potentials, psi[positionOffsets[t] * labelNumber + (yp * labelNumber + y) * active[t] + s]
+	private double[] psi;
+	// Forward then posterior probabilities, alpha[positionOffsets[t] + y * active[t] + s]
+	private double[] alpha;
+	// Viterbi back pointers, same layout as alpha
+	private int[] back;
+	// Scale factor of each position, scale[positionOffsets[t] / labelNumber + s]
+	private double[] scale;
+	private double[] beta;
+	private double[] nextBeta;
+	private double[] laneValues;
+	private double[] unigrams;
+	// Sequences sorted by decreasing length (length and index packed in a long), and current batch
+	private long[] order;
+	private int[] batch;
+	private int[] ends;
+
+	WapitiBatchDecoder(WapitiModel model) {
+		this.model = model;
+		this.labelNumber = model.getLabelNumber();
+		this.unigrams = new double[this.labelNumber];
+		this.batch = new int[BATCH_SIZE];
+	}
+
+	/**
+	 * Label sequences.
+	 * @param sequences the sequences (tokens of each position of each sequence)
+	 * @param labels the arrays receiving the label index of each position of each sequence
+	 * @param scores the arrays receiving the score (posterior probability) of each label
+	 * @throws ClassificationException
+	 */
+	void label(String[][][] sequences, int[][] labels, double[][] scores) throws ClassificationException {
+		FeatureRowBuffer buffer = new FeatureRowBuffer();
+		for (String[][] sequence : sequences) {
+			for (String[] row : sequence) {
+				buffer.addRow(row);
+			}
+			buffer.endSequence();
+		}
+		int[] rowLabels = new int[buffer.getRowNumber()];
+		double[] rowScores = new double[buffer.getRowNumber()];
+		this.label(buffer, rowLabels, rowScores);
+		int row = 0;
+		for (int i = 0 ; i < sequences.length ; i++) {
+			System.arraycopy(rowLabels, row, labels[i], 0, sequences[i].length);
+			System.arraycopy(rowScores, row, scores[i], 0, sequences[i].length);
+			row += sequences[i].length;
+		}
+	}
+
+	/**
+	 * Label the sequences of a row buffer.
+	 * @param buffer the rows of the sequences (rows that are not in an ended sequence are ignored)
+	 * @param labels the array receiving the label index of each row
+	 * @param scores the array receiving the score (posterior probability) of the label of each row
+	 * @throws ClassificationException
+	 */
+	void label(FeatureRowBuffer buffer, int[] labels, double[] scores) throws ClassificationException {
+		// Sort sequences by decreasing length (then by index)
+		int sequenceNumber = buffer.getSequenceNumber();
+		if (this.order == null || this.order.length < sequenceNumber) {
+			this.order = new long[Math.max(sequenceNumber, this.order == null ? 0 : this.order.length * 2)];
+		}
+		for (int i = 0 ; i < sequenceNumber ; i++) {
+			this.order[i] = ((long)(Integer.MAX_VALUE - buffer.getSequenceLength(i)) << 32) | i;
+		}
+		Arrays.sort(this.order, 0, sequenceNumber);
+
+		int start = 0;
+		while (start < sequenceNumber) {
+			int size = 0;
+			while (size < BATCH_SIZE && start + size < sequenceNumber) {
+				this.batch[size] = (int)this.order[start + size];
+				size++;
+			}
+			this.labelBatch(buffer, size, labels, scores);
+			start += size;
+		}
+	}
+
+	/**
+	 * Label a batch of sequences, sorted by decreasing length.
+	 */
+	private void labelBatch(FeatureRowBuffer buffer, int size, int[] labels, double[] scores) throws ClassificationException {
+		int labelNumber = this.labelNumber;
+		int[] batch = this.batch;
+		String[][] rows = buffer.getRows();
+		int length = buffer.getSequenceLength(batch[0]);
+
+		/****************
+		 * Layout
+		 ****************/
+		this.active = ensureCapacity(this.active, length + 1);
+		this.positionOffsets = ensureCapacity(this.positionOffsets, length + 1);
+		int n = size;
+		int total = 0;
+		for (int t = 0 ; t < length ; t++) {
+			while (buffer.getSequenceLength(batch[n - 1]) <= t) {
+				n--;
+			}
+			this.active[t] = n;
+			this.positionOffsets[t] = total;
+			total += n * labelNumber;
+		}
+		this.active[length] = 0;
+		this.positionOffsets[length] = total;
+		this.psi = ensureCapacity(this.psi, total * labelNumber);
+		this.alpha = ensureCapacity(this.alpha, total);
+		this.back = ensureCapacity(this.back, total);
+		this.scale = ensureCapacity(this.scale, total / labelNumber);
+		this.beta = ensureCapacity(this.beta, size * labelNumber);
+		this.nextBeta = ensureCapacity(this.nextBeta, size * labelNumber);
+		this.laneValues = ensureCapacity(this.laneValues, size * labelNumber);
+		Arrays.fill(this.psi, 0, total * labelNumber, 0.0);
+
+		/****************
+		 * Potentials
+		 ****************/
+		for (int t = 0 ; t < length ; t++) {
+			n = this.active[t];
+			int base = this.positionOffsets[t] * labelNumber;
+			for (int s = 0 ; s < n ; s++) {
+				this.model.getPotentials(rows, buffer.getSequenceStart(batch[s]), buffer.getSequenceLength(batch[s]), t, this.psi, base + s, n, this.unigrams);
+			}
+		}
+
+		this.forwardBackward(length);
+		this.viterbi(length, size, buffer, labels, scores);
+	}
+
+	/**
+	 * Forward-backward algorithm on the current batch, with scaling at each position
+	 * (see {@link WapitiDecoder}). Posteriors are computed in place, in alpha.
+	 */
+	private void forwardBackward(int length) {
+		int labelNumber = this.labelNumber;
+		double[] psi = this.psi;
+		double[] alpha = this.alpha;
+		double[] scale = this.scale;
+		double[] max = this.laneValues;
+		int n, base, alphaBase, previousBase, previousN, scaleBase;
+
+		// Exponentiate potentials, shifted by their maximum in each sequence
+		for (int t = 0 ; t < length ; t++) {
+			n = this.active[t];
+			base = this.positionOffsets[t] * labelNumber;
+			// at the first position, only the first row is used
+			int cells = t == 0 ? labelNumber : labelNumber * labelNumber;
+			Arrays.fill(max, 0, n, Double.NEGATIVE_INFINITY);
+			for (int c = 0 ; c < cells ; c++) {
+				int cellBase = base + c * n;
+				for (int s = 0 ; s < n ; s++) {
+					max[s] = Math.max(max[s], psi[cellBase + s]);
+				}
+			}
+			for (int c = 0 ; c < cells ; c++) {
+				int cellBase = base + c * n;
+				for (int s = 0 ; s < n ; s++) {
+					psi[cellBase + s] = Math.exp(psi[cellBase + s] - max[s]);
+				}
+			}
+		}
+
+		// Forward
+		n = this.active[0];
+		for (int s = 0 ; s < n ; s++) {
+			double sum = 0.0;
+			for (int y = 0 ; y < labelNumber ; y++) {
+				alpha[y * n + s] = psi[y * n + s];
+				sum += alpha[y * n + s];
+			}
+			scale[s] = sum;
+		}
+		for (int y = 0 ; y < labelNumber ; y++) {
+			for (int s = 0 ; s < n ; s++) {
+				alpha[y * n + s] /= scale[s];
+			}
+		}
+		for (int t = 1 ; t < length ; t++) {
+			previousN = n;
+			previousBase = this.positionOffsets[t - 1];
+			n = this.active[t];
+			alphaBase = this.positionOffsets[t];
+			base = alphaBase * labelNumber;
+			scaleBase = alphaBase / labelNumber;
+			for (int y = 0 ; y < labelNumber ; y++) {
+				int target = alphaBase + y * n;
+				for (int s = 0 ; s < n ; s++) {
+					alpha[target + s] = 0.0;
+				}
+				for (int yp = 0 ; yp < labelNumber ; yp++) {
+					int source = previousBase + yp * previousN;
+					int cellBase = base + (yp * labelNumber + y) * n;
+					for (int s = 0 ; s < n ; s++) {
+						alpha[target + s] += alpha[source + s] * psi[cellBase + s];
+					}
+				}
+			}
+			for (int s = 0 ; s < n ; s++) {
+				double sum = 0.0;
+				for (int y = 0 ; y < labelNumber ; y++) {
+					sum += alpha[alphaBase + y * n + s];
+				}
+				scale[scaleBase + s] = sum;
+			}
+			for (int y = 0 ; y < labelNumber ; y++) {
+				int target = alphaBase + y * n;
+				for (int s = 0 ; s < n ; s++) {
+					alpha[target + s] /= scale[scaleBase + s];
+				}
+			}
+		}
+
+		// Backward (beta = 1 for the lanes of shorter sequences, until their last position is reached)
+		int size = this.active[0];
+		double[] beta = this.beta;
+		double[] nextBeta = this.nextBeta;
+		double[] swap;
+		double[] sum = this.laneValues;
+		Arrays.fill(beta, 0, size * labelNumber, 1.0);
+		for (int t = length - 1 ; t >= 0 ; t--) {
+			n = this.active[t];
+			alphaBase = this.positionOffsets[t];
+			Arrays.fill(sum, 0, n, 0.0);
+			for (int y = 0 ; y < labelNumber ; y++) {
+				int target = alphaBase + y * n;
+				for (int s = 0 ; s < n ; s++) {
+					alpha[target + s] *= beta[y * size + s];
+					sum[s] += alpha[target + s];
+				}
+			}
+			for (int y = 0 ; y < labelNumber ; y++) {
+				int target = alphaBase + y * n;
+				for (int s = 0 ; s < n ; s++) {
+					alpha[target + s] /= sum[s];
+				}
+			}
+			if (t > 0) {
+				base = alphaBase * labelNumber;
+				scaleBase = alphaBase / labelNumber;
+				for (int yp = 0 ; yp < labelNumber ; yp++) {
+					int target = yp * size;
+					for (int s = 0 ; s < n ; s++) {
+						nextBeta[target + s] = 0.0;
+					}
+					for (int y = 0 ; y < labelNumber ; y++) {
+						int cellBase = base + (yp * labelNumber + y) * n;
+						for (int s = 0 ; s < n ; s++) {
+							nextBeta[target + s] += beta[y * size + s] * psi[cellBase + s];
+						}
+					}
+					for (int s = 0 ; s < n ; s++) {
+						nextBeta[target + s] /= scale[scaleBase + s];
+					}
+					// shorter sequences are not reached yet
+					for (int s = n ; s < size ; s++) {
+						nextBeta[target + s] = 1.0;
+					}
+				}
+				swap = beta; beta = nextBeta; nextBeta = swap;
+			}
+		}
+	}
+
+	/**
+	 * Viterbi algorithm on the posteriors of the current batch (see {@link WapitiDecoder}),
+	 * and backtracking of each sequence.
+	 */
+	private void viterbi(int length, int size, FeatureRowBuffer buffer, int[] labels, double[] scores) {
+		int labelNumber = this.labelNumber;
+		double[] alpha = this.alpha;
+		int[] back = this.back;
+		double[] current = this.beta;
+		double[] previous = this.nextBeta;
+		double[] swap;
+		int[] ends = ensureCapacity(this.ends, size);
+		this.ends = ends;
+		int n = this.active[0];
+		for (int y = 0 ; y < labelNumber ; y++) {
+			for (int s = 0 ; s < n ; s++) {
+				current[y * size + s] = alpha[y * n + s];
+			}
+		}
+		this.endSequences(0, current, size, ends);
+		for (int t = 1 ; t < length ; t++) {
+			n = this.active[t];
+			int alphaBase = this.positionOffsets[t];
+			swap = previous; previous = current; current = swap;
+			for (int y = 0 ; y < labelNumber ; y++) {
+				int target = y * size;
+				int posterior = alphaBase + y * n;
+				int backBase = alphaBase + y * n;
+				for (int s = 0 ; s < n ; s++) {
+					current[target + s] = -1.0;
+					back[backBase + s] = 0;
+				}
+				for (int yp = 0 ; yp < labelNumber ; yp++) {
+					int source = yp * size;
+					for (int s = 0 ; s < n ; s++) {
+						double value = previous[source + s] * alpha[posterior + s];
+						if (value > current[target + s]) {
+							current[target + s] = value;
+							back[backBase + s] = yp;
+						}
+					}
+				}
+			}
+			this.endSequences(t, current, size, ends);
+		}
+
+		// Backtracking
+		for (int s = 0 ; s < size ; s++) {
+			int start = buffer.getSequenceStart(this.batch[s]);
+			int best = ends[s];
+			for (int t = buffer.getSequenceLength(this.batch[s]) - 1 ; t >= 0 ; t--) {
+				n = this.active[t];
+				labels[start + t] = best;
+				scores[start + t] = alpha[this.positionOffsets[t] + best * n + s];
+				if (t > 0) {
+					best = back[this.positionOffsets[t] + best * n + s];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the best final label of the sequences ending at position t.
+	 */
+	private void endSequences(int t, double[] current, int size, int[] ends) {
+		for (int s = this.active[t + 1] ; s < this.active[t] ; s++) {
+			int best = 0;
+			for (int y = 1 ; y < this.labelNumber ; y++) {
+				if (current[y * size + s] > current[best * size + s]) {
+					best = y;
+				}
+			}
+			ends[s] = best;
+		}
+	}
+
+	private static double[] ensureCapacity(double[] array, int size) {
+		if (array == null || array.length < size) {
+			return new double[Math.max(size, array == null ? 0 : array.length * 2)];
+		}
+		return array;
+	}
+
+	private static int[] ensureCapacity(int[] array, int size) {
+		if (array == null || array.length < size) {
+			return new int[Math.max(size, array == null ? 0 : array.length * 2)];
+		}
+		return array;
+	}
+}
@@ -0,0 +1,312 @@
+package fr.limsi.tools.classification.crf;
+
+import fr.limsi.tools.classification.ClassificationException;
+import fr.limsi.tools.classification.Record;
+import fr.limsi.tools.classification.RecordFactory;
+import fr.limsi.tools.classification.RecordList;
+
+/**
+ * In-process decoder for Wapiti CRF models.
+ * Reproduces the behaviour of <code>wapiti label -s -p</code>:
+ * the Viterbi algorithm is run on the posterior probabilities
+ * (computed by forward-backward), and each label comes with its posterior
+ * probability as score.
+ * @author xtannier
+ *
+ */
+public class WapitiDecoder implements SequenceLabeler {
+
+	private WapitiModel model;
+	// columns of the CRF lines used by the model patterns, 
+	// and model reading these columns only (see WapitiModel#project)
+	private int[] columns;
+	private WapitiModel projectedModel;
+	// work data of each thread, reused between calls
+	private ThreadLocal<LabelingState> states;
+
+	public WapitiDecoder(WapitiModel model) throws ClassificationException {
+		this.model = model;
+		this.columns = model.getColumns();
+		this.projectedModel = model.project(this.columns);
+		this.states = new ThreadLocal<LabelingState>() {
+			@Override
+			protected LabelingState initialValue() {
+				return new LabelingState();
+			}
+		};
+	}
+
+	/**
+	 * @return the model
+	 */
+	public WapitiModel getModel() {
+		return model;
+	}
+
+	/**
+	 * @return the columns of the CRF lines read by the model (see {@link WapitiModel#getColumns()})
+	 */
+	public int[] getColumns() {
+		return columns;
+	}
+
+	/**
+	 * Label a list of records. Sequences are separated by {@link SeparationRecord}s,
+	 * and are decoded together (see {@link #label(String[][][], int[][], double[][])}).
+	 * Only the feature values used by the model patterns are converted to tokens
+	 * (see {@link RecordFactory#getCRFValues(Record, int[], String[])}), into rows
+	 * and work arrays that are reused by the next calls of the same thread.
+	 * The predicted class and its score are set on each record
+	 * (see {@link Record#getPredictedClass()} and {@link Record#getPredictedConfidence()}).
+	 * @param records the records to label
+	 * @throws ClassificationException
+	 */
+	@Override
+	public void label(RecordList records) throws ClassificationException {
+		LabelingState state = this.states.get();
+		FeatureRowBuffer buffer = state.buffer;
+		RecordFactory factory = records.getFactory();
+		buffer.clear();
+		int rowNumber = 0;
+		String[] row;
+		for (Record record : records) {
+			if (record instanceof SeparationRecord) {
+				buffer.endSequence();
+			} else {
+				row = buffer.addRow(this.columns.length);
+				if (!factory.getCRFValues(record, this.columns, row)) {
+					buffer.setLastRow(this.getTokens(factory, record));
+				}
+				state.records = ensureCapacity(state.records, rowNumber + 1);
+				state.records[rowNumber++] = record;
+			}
+		}
+		buffer.endSequence();
+		if (rowNumber == 0) {
+			return;
+		}
+
+		if (state.labels == null || state.labels.length < rowNumber) {
+			state.labels = new int[Math.max(rowNumber, state.records.length)];
+			state.scores = new double[state.labels.length];
+		}
+		state.decoder.label(buffer, state.labels, state.scores);
+		for (int i = 0 ; i < rowNumber ; i++) {
+			state.records[i].setPredictedClass(this.model.getLabel(state.labels[i]));
+			state.records[i].setPredictedConfidence(state.scores[i]);
+			state.records[i] = null;
+		}
+	}
+
+	/**
+	 * Tokens of the columns used by the model patterns, in the CRF line of a record,
+	 * when the line does not split into its columns.
+	 */
+	private String[] getTokens(RecordFactory factory, Record record) {
+		// split the line as Wapiti does
+		String[] lineTokens = WapitiModel.tokenize(factory.getCRFLine(record));
+		int length = 0;
+		while (length < this.columns.length && this.columns[length] < lineTokens.length) {
+			length++;
+		}
+		String[] tokens = new String[length];
+		for (int c = 0 ; c < length ; c++) {
+			tokens[c] = lineTokens[this.columns[c]];
+		}
+		return tokens;
+	}
+
+	private static Record[] ensureCapacity(Record[] array, int size) {
+		if (array == null || array.length < size) {
+			Record[] result = new Record[Math.max(size, array == null ? 64 : array.length * 2)];
+			if (array != null) {
+				System.arraycopy(array, 0, result, 0, array.length);
+			}
+			return result;
+		}
+		return array;
+	}
+
+	@Override
+	public void close() {
+		// nothing to release
+	}
+
+	/**
+	 * Work data of a thread: rows of the records being labeled, their labels and scores,
+	 * and the batch decoder of the projected model.
+	 */
+	private class LabelingState {
+		private FeatureRowBuffer buffer = new FeatureRowBuffer();
+		private WapitiBatchDecoder decoder = new WapitiBatchDecoder(WapitiDecoder.this.projectedModel);
+		private Record[] records;
+		private int[] labels;
+		private double[] scores;
+	}
+
+	/**
+	 * Label independent sequences of tokens. Sequences are decoded together,
+	 * by batches in structure-of-arrays layout (same results as labeling each sequence
+	 * with {@link #label(String[][], int[], double[])}).
+	 * @param sequences the sequences (tokens of each position of each sequence)
+	 * @param labels the arrays receiving the label index of each position of each sequence
+	 * (one array per sequence, of the sequence length)
+	 * @param scores the arrays receiving the score (posterior probability) of each label
+	 * @throws ClassificationException
+	 */
+	public void label(String[][][] sequences, int[][] labels, double[][] scores) throws ClassificationException {
+		new WapitiBatchDecoder(this.model).label(sequences, labels, scores);
+	}
+
+	/**
+	 * Label a sequence of tokens.
+	 * @param sequence the tokens of each position of the sequence
+	 * @param labels the array receiving the label index of each position
+	 * @param scores the array receiving the score (posterior probability) of each label
+	 * @throws ClassificationException
+	 */
+	public void label(String[][] sequence, int[] labels, double[] scores) throws ClassificationException {
+		int length = sequence.length;
+		int labelNumber = this.model.getLabelNumber();
+		double[][] posteriors = this.getMarginals(sequence);
+
+		/****************
+		 * Viterbi on posteriors (max-product)
+		 ****************/
+		int[][] back = new int[length][labelNumber];
+		double[] current = new double[labelNumber];
+		double[] previous = new double[labelNumber];
+		double[] swap;
+		for (int y = 0 ; y < labelNumber ; y++) {
+			current[y] = posteriors[0][y];
+		}
+		for (int t = 1 ; t < length ; t++) {
+			swap = previous; previous = current; current = swap;
+			for (int y = 0 ; y < labelNumber ; y++) {
+				double best = -1.0;
+				int bestIndex = 0;
+				for (int yp = 0 ; yp < labelNumber ; yp++) {
+					double value = previous[yp] * posteriors[t][y];
+					if (value > best) {
+						best = value;
+						bestIndex = yp;
+					}
+				}
+				back[t][y] = bestIndex;
+				current[y] = best;
+			}
+		}
+		int best = 0;
+		for (int y = 1 ; y < labelNumber ; y++) {
+			if (current[y] > current[best]) {
+				best = y;
+			}
+		}
+		for (int t = length - 1 ; t >= 0 ; t--) {
+			labels[t] = best;
+			scores[t] = posteriors[t][best];
+			best = back[t][best];
+		}
+	}
+
+	/**
+	 * Compute the posterior probability (marginal) of each label at each 
+	 * position of a sequence, with the forward-backward algorithm.
+	 * @param sequence the tokens of each position of the sequence
+	 * @return the marginals, indexed by position and label index
+	 * @throws ClassificationException
+	 */
+	public double[][] getMarginals(String[][] sequence) throws ClassificationException {
+		return this.getPosteriors(this.model.getPotentials(sequence));
+	}
+
+	/**
+	 * Forward-backward algorithm, with scaling at each position.
+	 * Potentials are shifted by their maximum at each position before
+	 * exponentiation (this does not change the posteriors, and avoids overflows).
+	 * @param psi the log-potentials (overwritten)
+	 * @return the posterior probability of each label at each position
+	 */
+	private double[][] getPosteriors(double[][][] psi) {
+		int length = psi.length;
+		int labelNumber = this.model.getLabelNumber();
+		double[][] alpha = new double[length][labelNumber];
+		double[] beta = new double[labelNumber];
+		double[] nextBeta = new double[labelNumber];
+		double[] swap;
+		double[] scale = new double[length];
+		double sum;
+		double max;
+
+		// Exponentiate potentials
+		for (int t = 0 ; t < length ; t++) {
+			// at the first position, only the first row is used
+			int rows = t == 0 ? 1 : labelNumber;
+			max = Double.NEGATIVE_INFINITY;
+			for (int yp = 0 ; yp < rows ; yp++) {
+				for (int y = 0 ; y < labelNumber ; y++) {
+					if (psi[t][yp][y] > max) {
+						max = psi[t][yp][y];
+					}
+				}
+			}
+			for (int yp = 0 ; yp < rows ; yp++) {
+				for (int y = 0 ; y < labelNumber ; y++) {
+					psi[t][yp][y] = Math.exp(psi[t][yp][y] - max);
+				}
+			}
+		}
+
+		// Forward
+		sum = 0.0;
+		for (int y = 0 ; y < labelNumber ; y++) {
+			alpha[0][y] = psi[0][0][y];
+			sum += alpha[0][y];
+		}
+		scale[0] = sum;
+		for (int y = 0 ; y < labelNumber ; y++) {
+			alpha[0][y] /= sum;
+		}
+		for (int t = 1 ; t < length ; t++) {
+			sum = 0.0;
+			for (int y = 0 ; y < labelNumber ; y++) {
+				double value = 0.0;
+				for (int yp = 0 ; yp < labelNumber ; yp++) {
+					value += alpha[t - 1][yp] * psi[t][yp][y];
+				}
+				alpha[t][y] = value;
+				sum += value;
+			}
+			scale[t] = sum;
+			for (int y = 0 ; y < labelNumber ; y++) {
+				alpha[t][y] /= sum;
+			}
+		}
+
+		// Backward, posteriors are computed in place (in alpha)
+		for (int y = 0 ; y < labelNumber ; y++) {
+			beta[y] = 1.0;
+		}
+		for (int t = length - 1 ; t >= 0 ; t--) {
+			sum = 0.0;
+			for (int y = 0 ; y < labelNumber ; y++) {
+				alpha[t][y] *= beta[y];
+				sum += alpha[t][y];
+			}
+			for (int y = 0 ; y < labelNumber ; y++) {
+				alpha[t][y] /= sum;
+			}
+			if (t > 0) {
+				for (int yp = 0 ; yp < labelNumber ; yp++) {
+					double value = 0.0;
+					for (int y = 0 ; y < labelNumber ; y++) {
+						value += beta[y] * psi[t][yp][y];
+					}
+					nextBeta[yp] = value / scale[t];
+				}
+				swap = beta; beta = nextBeta; nextBeta = swap;
+			}
+		}
+		return alpha;
+	}
+}
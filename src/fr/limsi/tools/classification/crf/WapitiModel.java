@@ -0,0 +1,1222 @@
+package fr.limsi.tools.classification.crf;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import fr.limsi.tools.classification.ClassificationException;
+import fr.limsi.tools.common.LongIntHashMap;
+
+/**
+ * CRF model saved by Wapiti (text format, as written by <code>wapiti train</code>).
+ * The model file contains the following sections:
+ * <ul>
+ *   <li><code>#mdl#type#nact</code>: model type and number of active features</li>
+ *   <li><code>#rdr#npats/ntoks/autouni</code>: reader, followed by the patterns</li>
+ *   <li><code>#qrk#n</code>: the label list, then <code>#qrk#n</code>: the observation list</li>
+ *   <li><code>f=weight</code>: the non-zero weights (hexadecimal floating-point values)</li>
+ * </ul>
+ * Observations are indexed by a 64-bit hash of their string, which is computed
+ * from the pattern literals and the sequence tokens without building the string.
+ * <p>
+ * Models can also be saved in a compact binary format (see {@link #saveBinary(File)}),
+ * which is memory-mapped when loaded from a file: the observation hash index and
+ * the (single-precision) weights are read directly from the mapped file, so that
+ * loading is almost immediate and the model pages are shared between processes.
+ * <p>
+ * Weights can be quantized to half-precision floats or 8-bit integers, with a
+ * scale factor per pattern (see {@link #quantize(int)}).
+ * @author xtannier
+ *
+ */
+public class WapitiModel {
+
+	// Model types, as defined in Wapiti
+	public static final int TYPE_MAXENT = 0;
+	public static final int TYPE_MEMM = 1;
+	public static final int TYPE_CRF = 2;
+
+	// Weight precisions (number of bits)
+	public static final int PRECISION_DOUBLE = 64;
+	public static final int PRECISION_FLOAT = 32;
+	public static final int PRECISION_HALF = 16;
+	public static final int PRECISION_BYTE = 8;
+
+	// Observation kinds (first character of the pattern)
+	protected static final byte KIND_UNIGRAM = 1;
+	protected static final byte KIND_BIGRAM = 2;
+
+	private static final Pattern MODEL_HEADER_PATTERN = Pattern.compile("#mdl#(\\d+)(?:#(\\d+))?");
+	private static final Pattern READER_HEADER_PATTERN = Pattern.compile("#rdr#(\\d+)/(\\d+)(?:/(\\d+))?");
+	private static final Pattern QUARK_HEADER_PATTERN = Pattern.compile("#qrk#(\\d+)");
+	private static final Pattern ITEM_PATTERN = Pattern.compile("%x\\[\\s*(-?\\d+)\\s*,\\s*(\\d+)\\s*\\]");
+
+	// Binary format
+	private static final byte[] BINARY_MAGIC = "WAPITIB1".getBytes(Charset.forName("US-ASCII"));
+	private static final int BINARY_VERSION = 2;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// 64-bit FNV-1a
+	private static final long HASH_OFFSET = 0xcbf29ce484222325L;
+	private static final long HASH_PRIME = 0x100000001b3L;
+
+	private int type;
+	private int tokenNumber;
+	private String[] labels;
+	private ModelPattern[] patterns;
+	private String[] observationNames;
+	private LongIntHashMap observations;
+	// Binary models: observation hash index and names in the model buffer
+	private LongBuffer mappedObservationKeys;
+	private IntBuffer mappedObservationValues;
+	private int mappedObservationMask;
+	private ByteBuffer mappedObservationNames;
+	private byte[] kinds;
+	// Pattern index of each observation
+	private short[] observationPatterns;
+	private int[] unigramOffsets;
+	private int[] bigramOffsets;
+	private int featureNumber;
+	private ModelWeights weights;
+
+	private WapitiModel() {
+	}
+
+	/**
+	 * Create a CRF model with all weights set to zero.
+	 * @param patterns the Wapiti patterns
+	 * @param tokenNumber the number of tokens (columns) of the sequences
+	 * @param labels the labels
+	 * @param observations the observations (starting with the pattern type character)
+	 * @throws ClassificationException
+	 */
+	WapitiModel(List<String> patterns, int tokenNumber, List<String> labels, List<String> observations) throws ClassificationException {
+		this.type = TYPE_CRF;
+		this.tokenNumber = tokenNumber;
+		this.patterns = new ModelPattern[patterns.size()];
+		for (int i = 0 ; i < this.patterns.length ; i++) {
+			this.patterns[i] = new ModelPattern(patterns.get(i));
+		}
+		this.labels = labels.toArray(new String[labels.size()]);
+		this.setObservations(observations.toArray(new String[observations.size()]));
+		this.weights = new ModelWeights.DoubleWeights(new double[this.getFeatureNumber()]);
+	}
+
+	/**
+	 * Index the observations and compute their feature offsets
+	 * (the weights array is not allocated).
+	 */
+	private void setObservations(String[] observationNames) throws ClassificationException {
+		int observationNumber = observationNames.length;
+		this.observationNames = observationNames;
+		this.observations = new LongIntHashMap(observationNumber, -1);
+		this.observationPatterns = new short[observationNumber];
+		HashMap<String, Short> patternIndexes = new HashMap<String, Short>();
+		for (short i = 0 ; i < this.patterns.length ; i++) {
+			patternIndexes.put(getPatternName(this.patterns[i].source), i);
+		}
+		byte[] kinds = new byte[observationNumber];
+		String observation;
+		Short patternIndex;
+		for (int i = 0 ; i < observationNumber ; i++) {
+			observation = observationNames[i];
+			if (this.observations.put(hash(HASH_OFFSET, observation), i) >= 0) {
+				throw new ClassificationException("Hash collision for observation " + observation);
+			}
+			kinds[i] = getKind(observation.charAt(0));
+			patternIndex = patternIndexes.get(getPatternName(observation));
+			if (patternIndex == null) {
+				throw new ClassificationException("No pattern for observation " + observation);
+			}
+			this.observationPatterns[i] = patternIndex;
+		}
+		this.setKinds(kinds);
+	}
+
+	/**
+	 * Name of a pattern or of an observation (part before the first ':').
+	 */
+	private static String getPatternName(String string) {
+		int colonIndex = string.indexOf(':');
+		return colonIndex < 0 ? string : string.substring(0, colonIndex);
+	}
+
+	/**
+	 * Set the observation kinds and compute the feature offsets.
+	 */
+	private void setKinds(byte[] kinds) {
+		int labelNumber = this.labels.length;
+		this.kinds = kinds;
+		this.unigramOffsets = new int[kinds.length];
+		this.bigramOffsets = new int[kinds.length];
+		int featureNumber = 0;
+		for (int i = 0 ; i < kinds.length ; i++) {
+			if ((kinds[i] & KIND_UNIGRAM) != 0) {
+				this.unigramOffsets[i] = featureNumber;
+				featureNumber += labelNumber;
+			}
+			if ((kinds[i] & KIND_BIGRAM) != 0) {
+				this.bigramOffsets[i] = featureNumber;
+				featureNumber += labelNumber * labelNumber;
+			}
+		}
+		this.featureNumber = featureNumber;
+	}
+
+	/**
+	 * Load a Wapiti model from a file, in text or binary format
+	 * (binary models are memory-mapped).
+	 * @param modelFile the model file
+	 * @return the loaded model
+	 * @throws IOException
+	 * @throws ClassificationException if the model format is not recognized
+	 */
+	public static WapitiModel load(File modelFile) throws IOException, ClassificationException {
+		RandomAccessFile file = new RandomAccessFile(modelFile, "r");
+		try {
+			byte[] magic = new byte[BINARY_MAGIC.length];
+			if (file.length() >= magic.length) {
+				file.readFully(magic);
+			}
+			if (Arrays.equals(magic, BINARY_MAGIC)) {
+				FileChannel channel = file.getChannel();
+				// the mapping remains valid after the channel is closed
+				return loadBinary(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+			}
+		} finally {
+			file.close();
+		}
+		InputStream stream = new FileInputStream(modelFile);
+		try {
+			return loadText(stream);
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Load a Wapiti model from an input stream, in text or binary format. 
+	 * The stream is not closed.
+	 * @param stream the model input stream
+	 * @return the loaded model
+	 * @throws IOException
+	 * @throws ClassificationException if the model format is not recognized
+	 */
+	public static WapitiModel load(InputStream stream) throws IOException, ClassificationException {
+		BufferedInputStream bufferedStream = new BufferedInputStream(stream);
+		byte[] magic = new byte[BINARY_MAGIC.length];
+		bufferedStream.mark(magic.length);
+		int length = 0;
+		int read;
+		while (length < magic.length && (read = bufferedStream.read(magic, length, magic.length - length)) > 0) {
+			length += read;
+		}
+		bufferedStream.reset();
+		if (!Arrays.equals(magic, BINARY_MAGIC)) {
+			return loadText(bufferedStream);
+		}
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		while ((read = bufferedStream.read(buffer)) > 0) {
+			content.write(buffer, 0, read);
+		}
+		return loadBinary(ByteBuffer.wrap(content.toByteArray()));
+	}
+
+	/**
+	 * Load a Wapiti model in text format.
+	 */
+	private static WapitiModel loadText(InputStream stream) throws IOException, ClassificationException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(stream, "UTF-8"));
+		WapitiModel model = new WapitiModel();
+		String line;
+		Matcher matcher;
+
+		/****************
+		 * Model header
+		 ****************/
+		line = reader.readLine();
+		if (line == null || !(matcher = MODEL_HEADER_PATTERN.matcher(line)).matches()) {
+			throw new ClassificationException("Bad Wapiti model header: " + line);
+		}
+		model.type = Integer.parseInt(matcher.group(1));
+		if (model.type != TYPE_CRF) {
+			throw new ClassificationException("Only CRF Wapiti models are supported (found type " + model.type + ")");
+		}
+
+		/****************
+		 * Reader and patterns
+		 ****************/
+		line = reader.readLine();
+		if (line == null || !(matcher = READER_HEADER_PATTERN.matcher(line)).matches()) {
+			throw new ClassificationException("Bad Wapiti reader header: " + line);
+		}
+		int patternNumber = Integer.parseInt(matcher.group(1));
+		model.tokenNumber = Integer.parseInt(matcher.group(2));
+		if (matcher.group(3) != null && Integer.parseInt(matcher.group(3)) != 0) {
+			throw new ClassificationException("Wapiti models with automatic unigrams are not supported");
+		}
+		model.patterns = new ModelPattern[patternNumber];
+		for (int i = 0 ; i < patternNumber ; i++) {
+			model.patterns[i] = new ModelPattern(readItem(reader));
+		}
+
+		/****************
+		 * Labels
+		 ****************/
+		int labelNumber = readQuarkHeader(reader);
+		model.labels = new String[labelNumber];
+		for (int i = 0 ; i < labelNumber ; i++) {
+			model.labels[i] = readItem(reader);
+		}
+
+		/****************
+		 * Observations
+		 ****************/
+		int observationNumber = readQuarkHeader(reader);
+		String[] observationNames = new String[observationNumber];
+		for (int i = 0 ; i < observationNumber ; i++) {
+			observationNames[i] = readItem(reader);
+		}
+		model.setObservations(observationNames);
+
+		/****************
+		 * Weights
+		 ****************/
+		double[] weights = new double[model.featureNumber];
+		int separatorIndex;
+		int featureIndex;
+		while ((line = reader.readLine()) != null) {
+			if (line.length() == 0) {
+				continue;
+			}
+			separatorIndex = line.indexOf('=');
+			if (separatorIndex < 0) {
+				throw new ClassificationException("Bad weight line in Wapiti model: " + line);
+			}
+			try {
+				featureIndex = Integer.parseInt(line.substring(0, separatorIndex));
+				weights[featureIndex] = Double.parseDouble(line.substring(separatorIndex + 1));
+			} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+				throw new ClassificationException("Bad weight line in Wapiti model: " + line);
+			}
+		}
+		model.weights = new ModelWeights.DoubleWeights(weights);
+		return model;
+	}
+
+	/**
+	 * Load a Wapiti model in binary format. Labels and patterns are decoded, 
+	 * the other sections are read from the buffer when needed.
+	 */
+	private static WapitiModel loadBinary(ByteBuffer buffer) throws ClassificationException {
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		WapitiModel model = new WapitiModel();
+		try {
+			byte[] magic = new byte[BINARY_MAGIC.length];
+			buffer.get(magic);
+			int version = buffer.getInt();
+			if (!Arrays.equals(magic, BINARY_MAGIC) || version != BINARY_VERSION) {
+				throw new ClassificationException("Unsupported binary Wapiti model version " + version);
+			}
+			model.type = buffer.getInt();
+			model.tokenNumber = buffer.getInt();
+			int labelNumber = buffer.getInt();
+			int patternNumber = buffer.getInt();
+			int observationNumber = buffer.getInt();
+			int featureNumber = buffer.getInt();
+			int tableCapacity = buffer.getInt();
+			int observationNamesSize = buffer.getInt();
+			int precision = buffer.getInt();
+
+			// Labels and patterns
+			model.labels = new String[labelNumber];
+			for (int i = 0 ; i < labelNumber ; i++) {
+				model.labels[i] = readBinaryString(buffer);
+			}
+			model.patterns = new ModelPattern[patternNumber];
+			for (int i = 0 ; i < patternNumber ; i++) {
+				model.patterns[i] = new ModelPattern(readBinaryString(buffer));
+			}
+			// Observation names (decoded only when saving the model)
+			model.mappedObservationNames = slice(buffer, observationNamesSize);
+			// Observation kinds
+			byte[] kinds = new byte[observationNumber];
+			buffer.get(kinds);
+			align(buffer);
+			model.setKinds(kinds);
+			if (model.featureNumber != featureNumber) {
+				throw new ClassificationException("Bad feature number in binary Wapiti model");
+			}
+			// Observation patterns
+			model.observationPatterns = new short[observationNumber];
+			slice(buffer, observationNumber * 2).asShortBuffer().get(model.observationPatterns);
+			align(buffer);
+			// Observation hash index
+			model.mappedObservationKeys = slice(buffer, tableCapacity * 8).asLongBuffer();
+			model.mappedObservationValues = slice(buffer, tableCapacity * 4).asIntBuffer();
+			model.mappedObservationMask = tableCapacity - 1;
+			align(buffer);
+			// Weights
+			float[] scales;
+			switch (precision) {
+			case PRECISION_FLOAT:
+				model.weights = new ModelWeights.FloatBufferWeights(slice(buffer, featureNumber * 4).asFloatBuffer());
+				break;
+			case PRECISION_HALF:
+				scales = new float[patternNumber];
+				slice(buffer, patternNumber * 4).asFloatBuffer().get(scales);
+				model.weights = new ModelWeights.HalfWeights(slice(buffer, featureNumber * 2).asShortBuffer(), scales);
+				break;
+			case PRECISION_BYTE:
+				scales = new float[patternNumber];
+				slice(buffer, patternNumber * 4).asFloatBuffer().get(scales);
+				model.weights = new ModelWeights.ByteWeights(slice(buffer, featureNumber), scales);
+				break;
+			default:
+				throw new ClassificationException("Unsupported weight precision " + precision + " in binary Wapiti model");
+			}
+		} catch (RuntimeException e) {
+			// BufferUnderflowException, IllegalArgumentException
+			throw new ClassificationException("Bad binary Wapiti model: " + e);
+		}
+		return model;
+	}
+
+	/**
+	 * Get a little-endian view of the next bytes of a buffer, and skip them.
+	 */
+	private static ByteBuffer slice(ByteBuffer buffer, int size) {
+		ByteBuffer result = buffer.duplicate();
+		result.limit(buffer.position() + size);
+		result = result.slice().order(ByteOrder.LITTLE_ENDIAN);
+		buffer.position(buffer.position() + size);
+		return result;
+	}
+
+	/**
+	 * Skip bytes up to the next multiple of 8.
+	 */
+	private static void align(ByteBuffer buffer) {
+		buffer.position((buffer.position() + 7) & ~7);
+	}
+
+	private static String readBinaryString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	private static void writeBinaryString(ByteBuffer buffer, byte[] bytes) {
+		buffer.putInt(bytes.length);
+		buffer.put(bytes);
+	}
+
+	/**
+	 * Save the model in binary format. The file contains a header, the labels,
+	 * patterns and observations (string table), the observation kinds and patterns, 
+	 * an open-addressing index from observation hashes to observation indexes,
+	 * and the weights: single-precision floats (double-precision weights are converted),
+	 * or quantized weights preceded by the scale factor of each pattern.
+	 * @param modelFile the model file
+	 * @throws IOException
+	 */
+	public void saveBinary(File modelFile) throws IOException {
+		String[] observationNames = this.getObservationNames();
+		int observationNumber = observationNames.length;
+
+		// String table
+		byte[][] labelBytes = new byte[this.labels.length][];
+		byte[][] patternBytes = new byte[this.patterns.length][];
+		byte[][] observationBytes = new byte[observationNumber][];
+		int stringSize = 0;
+		for (int i = 0 ; i < labelBytes.length ; i++) {
+			labelBytes[i] = this.labels[i].getBytes(UTF8);
+			stringSize += 4 + labelBytes[i].length;
+		}
+		for (int i = 0 ; i < patternBytes.length ; i++) {
+			patternBytes[i] = this.patterns[i].source.getBytes(UTF8);
+			stringSize += 4 + patternBytes[i].length;
+		}
+		int observationNamesSize = 0;
+		for (int i = 0 ; i < observationNumber ; i++) {
+			observationBytes[i] = observationNames[i].getBytes(UTF8);
+			observationNamesSize += 4 + observationBytes[i].length;
+		}
+		stringSize += observationNamesSize;
+
+		// Observation hash index (load factor at most 0.75)
+		int tableCapacity = 16;
+		while (tableCapacity * 3 < observationNumber * 4) {
+			tableCapacity <<= 1;
+		}
+		long[] keys = new long[tableCapacity];
+		int[] values = new int[tableCapacity];
+		for (int i = 0 ; i < observationNumber ; i++) {
+			long key = hash(HASH_OFFSET, observationNames[i]);
+			int slot = LongIntHashMap.hash(key) & (tableCapacity - 1);
+			while (values[slot] != 0) {
+				slot = (slot + 1) & (tableCapacity - 1);
+			}
+			keys[slot] = key;
+			// 0 is the empty slot
+			values[slot] = i + 1;
+		}
+
+		int precision = this.weights.getPrecision();
+		if (precision == PRECISION_DOUBLE) {
+			precision = PRECISION_FLOAT;
+		}
+		int headerSize = BINARY_MAGIC.length + 10 * 4;
+		int size = headerSize + stringSize + observationNumber;
+		size = ((size + 7) & ~7) + observationNumber * 2;
+		size = ((size + 7) & ~7) + tableCapacity * 12;
+		size = ((size + 7) & ~7) + this.patterns.length * 4 + this.featureNumber * precision / 8;
+		ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.put(BINARY_MAGIC);
+		buffer.putInt(BINARY_VERSION);
+		buffer.putInt(this.type);
+		buffer.putInt(this.tokenNumber);
+		buffer.putInt(this.labels.length);
+		buffer.putInt(this.patterns.length);
+		buffer.putInt(observationNumber);
+		buffer.putInt(this.featureNumber);
+		buffer.putInt(tableCapacity);
+		buffer.putInt(observationNamesSize);
+		buffer.putInt(precision);
+		for (byte[] bytes : labelBytes) {
+			writeBinaryString(buffer, bytes);
+		}
+		for (byte[] bytes : patternBytes) {
+			writeBinaryString(buffer, bytes);
+		}
+		for (byte[] bytes : observationBytes) {
+			writeBinaryString(buffer, bytes);
+		}
+		buffer.put(this.kinds);
+		align(buffer);
+		for (short pattern : this.observationPatterns) {
+			buffer.putShort(pattern);
+		}
+		align(buffer);
+		for (long key : keys) {
+			buffer.putLong(key);
+		}
+		for (int value : values) {
+			buffer.putInt(value);
+		}
+		align(buffer);
+		if (precision == PRECISION_FLOAT) {
+			for (int i = 0 ; i < this.featureNumber ; i++) {
+				buffer.putFloat((float)this.weights.get(i));
+			}
+		} else {
+			for (int i = 0 ; i < this.patterns.length ; i++) {
+				buffer.putFloat((float)this.weights.getScale(i));
+			}
+			for (int i = 0 ; i < this.featureNumber ; i++) {
+				if (precision == PRECISION_HALF) {
+					buffer.putShort(ModelWeights.floatToHalf((float)this.weights.get(i)));
+				} else {
+					buffer.put((byte)this.weights.get(i));
+				}
+			}
+		}
+		buffer.flip();
+
+		if (modelFile.getAbsoluteFile().getParentFile() != null && !modelFile.getAbsoluteFile().getParentFile().isDirectory()) {
+			modelFile.getAbsoluteFile().getParentFile().mkdirs();
+		}
+		FileOutputStream stream = new FileOutputStream(modelFile);
+		try {
+			FileChannel channel = stream.getChannel();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * @return the observation strings (decoded from the model buffer for binary models)
+	 */
+	private String[] getObservationNames() {
+		if (this.observationNames == null) {
+			ByteBuffer buffer = this.mappedObservationNames.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+			String[] names = new String[this.kinds.length];
+			for (int i = 0 ; i < names.length ; i++) {
+				names[i] = readBinaryString(buffer);
+			}
+			this.observationNames = names;
+		}
+		return this.observationNames;
+	}
+
+	/**
+	 * @param hash the observation hash
+	 * @return the observation index, -1 if unknown
+	 */
+	private int getObservation(long hash) {
+		if (this.observations != null) {
+			return this.observations.get(hash);
+		}
+		int slot = LongIntHashMap.hash(hash) & this.mappedObservationMask;
+		int value;
+		while ((value = this.mappedObservationValues.get(slot)) != 0) {
+			if (this.mappedObservationKeys.get(slot) == hash) {
+				return value - 1;
+			}
+			slot = (slot + 1) & this.mappedObservationMask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Save the model in Wapiti text format (only non-zero weights are written).
+	 * @param modelFile the model file
+	 * @throws IOException
+	 */
+	public void save(File modelFile) throws IOException {
+		if (modelFile.getAbsoluteFile().getParentFile() != null && !modelFile.getAbsoluteFile().getParentFile().isDirectory()) {
+			modelFile.getAbsoluteFile().getParentFile().mkdirs();
+		}
+		OutputStream stream = new FileOutputStream(modelFile);
+		try {
+			this.save(stream);
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Save the model in Wapiti text format (only non-zero weights are written).
+	 * The stream is not closed.
+	 * @param stream the output stream
+	 * @throws IOException
+	 */
+	public void save(OutputStream stream) throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"));
+		String[] observationNames = this.getObservationNames();
+		int activeNumber = 0;
+		double[] weights = this.getScaledWeights();
+		for (int i = 0 ; i < this.featureNumber ; i++) {
+			if (weights[i] != 0.0) {
+				activeNumber++;
+			}
+		}
+		writer.write("#mdl#" + this.type + "#" + activeNumber + "\n");
+		writer.write("#rdr#" + this.patterns.length + "/" + this.tokenNumber + "/0\n");
+		for (ModelPattern pattern : this.patterns) {
+			writeItem(writer, pattern.source);
+		}
+		writer.write("#qrk#" + this.labels.length + "\n");
+		for (String label : this.labels) {
+			writeItem(writer, label);
+		}
+		writer.write("#qrk#" + observationNames.length + "\n");
+		for (String observation : observationNames) {
+			writeItem(writer, observation);
+		}
+		for (int i = 0 ; i < this.featureNumber ; i++) {
+			if (weights[i] != 0.0) {
+				writer.write(i + "=" + toHexString(weights[i]) + "\n");
+			}
+		}
+		writer.flush();
+	}
+
+	/**
+	 * Hexadecimal representation of a double, as written by C printf("%a")
+	 * (with a sign in the exponent).
+	 */
+	private static String toHexString(double value) {
+		String result = Double.toHexString(value);
+		int exponentIndex = result.indexOf('p');
+		if (exponentIndex >= 0 && result.charAt(exponentIndex + 1) != '-') {
+			result = result.substring(0, exponentIndex + 1) + "+" + result.substring(exponentIndex + 1);
+		}
+		return result;
+	}
+
+	/**
+	 * Write a "length:string," item (length in bytes).
+	 */
+	private static void writeItem(Writer writer, String item) throws IOException {
+		writer.write(item.getBytes("UTF-8").length + ":" + item + ",\n");
+	}
+
+	private static int readQuarkHeader(BufferedReader reader) throws IOException, ClassificationException {
+		String line = reader.readLine();
+		Matcher matcher;
+		if (line == null || !(matcher = QUARK_HEADER_PATTERN.matcher(line)).matches()) {
+			throw new ClassificationException("Bad Wapiti quark header: " + line);
+		}
+		return Integer.parseInt(matcher.group(1));
+	}
+
+	/**
+	 * Read a "length:string," item.
+	 */
+	private static String readItem(BufferedReader reader) throws IOException, ClassificationException {
+		String line = reader.readLine();
+		int colonIndex;
+		if (line == null || (colonIndex = line.indexOf(':')) < 0 || !line.endsWith(",")) {
+			throw new ClassificationException("Bad item in Wapiti model: " + line);
+		}
+		return line.substring(colonIndex + 1, line.length() - 1);
+	}
+
+	private static byte getKind(char c) throws ClassificationException {
+		switch (c) {
+		case 'u':
+			return KIND_UNIGRAM;
+		case 'b':
+			return KIND_BIGRAM;
+		case '*':
+			return KIND_UNIGRAM | KIND_BIGRAM;
+		default:
+			throw new ClassificationException("Unknown observation type '" + c + "'");
+		}
+	}
+
+	/**
+	 * Update a hash with the characters of a string.
+	 */
+	private static long hash(long hash, String string) {
+		for (int i = 0 ; i < string.length() ; i++) {
+			hash = (hash ^ string.charAt(i)) * HASH_PRIME;
+		}
+		return hash;
+	}
+
+	/**
+	 * Update a hash with the decimal representation of a positive integer.
+	 */
+	private static long hash(long hash, int number) {
+		int divisor = 1;
+		while (divisor <= number / 10) {
+			divisor *= 10;
+		}
+		while (divisor > 0) {
+			hash = (hash ^ ('0' + (number / divisor) % 10)) * HASH_PRIME;
+			divisor /= 10;
+		}
+		return hash;
+	}
+
+	/**
+	 * Split a CRF line into tokens, the same way Wapiti does
+	 * (any blank character is a separator).
+	 * @param line the CRF line
+	 * @return the tokens
+	 */
+	public static String[] tokenize(String line) {
+		ArrayList<String> tokens = new ArrayList<String>();
+		int start = -1;
+		char c;
+		for (int i = 0 ; i < line.length() ; i++) {
+			c = line.charAt(i);
+			if (c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == 0x0B) {
+				if (start >= 0) {
+					tokens.add(line.substring(start, i));
+					start = -1;
+				}
+			} else if (start < 0) {
+				start = i;
+			}
+		}
+		if (start >= 0) {
+			tokens.add(line.substring(start));
+		}
+		return tokens.toArray(new String[tokens.size()]);
+	}
+
+	/**
+	 * Compute the log-potentials of a sequence: <code>psi[t][yp][y]</code> is the
+	 * score of label <code>y</code> at position <code>t</code> following label <code>yp</code>
+	 * (unigram + bigram weights). At position 0, only unigram weights are used.
+	 * @param sequence the tokens of each position of the sequence
+	 * @return the log-potentials
+	 * @throws ClassificationException if a pattern refers to a missing column
+	 */
+	public double[][][] getPotentials(String[][] sequence) throws ClassificationException {
+		int length = sequence.length;
+		int labelNumber = this.labels.length;
+		double[][][] psi = new double[length][labelNumber][labelNumber];
+		double[] position = new double[labelNumber * labelNumber];
+		double[] unigrams = new double[labelNumber];
+		for (int t = 0 ; t < length ; t++) {
+			Arrays.fill(position, 0.0);
+			this.getPotentials(sequence, t, position, 0, 1, unigrams);
+			for (int yp = 0 ; yp < labelNumber ; yp++) {
+				System.arraycopy(position, yp * labelNumber, psi[t][yp], 0, labelNumber);
+			}
+		}
+		return psi;
+	}
+
+	/**
+	 * Add the log-potentials of a position of a sequence to an array:
+	 * the potential of label <code>y</code> following label <code>yp</code> is added to
+	 * <code>psi[offset + (yp * labelNumber + y) * stride]</code>.
+	 * @param sequence the tokens of each position of the sequence
+	 * @param t the position
+	 * @param psi the array receiving the log-potentials
+	 * @param offset the index of the first potential
+	 * @param stride the distance between two consecutive potentials
+	 * @param unigrams a work array of size labelNumber
+	 * @throws ClassificationException if a pattern refers to a missing column
+	 */
+	void getPotentials(String[][] sequence, int t, double[] psi, int offset, int stride, double[] unigrams) throws ClassificationException {
+		this.getPotentials(sequence, 0, sequence.length, t, psi, offset, stride, unigrams);
+	}
+
+	/**
+	 * Add the log-potentials of a position of a sequence to an array,
+	 * as {@link #getPotentials(String[][], int, double[], int, int, double[])},
+	 * the sequence being given by consecutive rows of an array.
+	 * @param rows the tokens of each row
+	 * @param start the index of the first row of the sequence
+	 * @param length the length of the sequence
+	 * @param t the position in the sequence
+	 */
+	void getPotentials(String[][] rows, int start, int length, int t, double[] psi, int offset, int stride, double[] unigrams) throws ClassificationException {
+		int labelNumber = this.labels.length;
+		int observation;
+		int featureOffset;
+		byte kind;
+		double scale;
+		for (int y = 0 ; y < labelNumber ; y++) {
+			unigrams[y] = 0.0;
+		}
+		for (int pattern = 0 ; pattern < this.patterns.length ; pattern++) {
+			observation = this.getObservation(this.patterns[pattern].hash(rows, start, length, t));
+			if (observation < 0) {
+				continue;
+			}
+			kind = this.kinds[observation];
+			scale = this.weights.getScale(pattern);
+			if ((kind & KIND_UNIGRAM) != 0) {
+				featureOffset = this.unigramOffsets[observation];
+				for (int y = 0 ; y < labelNumber ; y++) {
+					unigrams[y] += scale * this.weights.get(featureOffset + y);
+				}
+			}
+			if (t > 0 && (kind & KIND_BIGRAM) != 0) {
+				featureOffset = this.bigramOffsets[observation];
+				for (int i = 0 ; i < labelNumber * labelNumber ; i++) {
+					psi[offset + i * stride] += scale * this.weights.get(featureOffset + i);
+				}
+			}
+		}
+		for (int yp = 0 ; yp < labelNumber ; yp++) {
+			for (int y = 0 ; y < labelNumber ; y++) {
+				psi[offset + (yp * labelNumber + y) * stride] += unigrams[y];
+			}
+		}
+	}
+
+	/**
+	 * Get a copy of the model with weights of a different precision.
+	 * Half-precision and 8-bit weights are divided by a scale factor per pattern,
+	 * so that the largest absolute weight of each pattern is 1 (half precision)
+	 * or 127 (8 bits).
+	 * @param precision the precision ({@link #PRECISION_DOUBLE}, {@link #PRECISION_FLOAT}, 
+	 * {@link #PRECISION_HALF} or {@link #PRECISION_BYTE})
+	 * @return the new model
+	 * @throws ClassificationException if the precision is not supported
+	 */
+	public WapitiModel quantize(int precision) throws ClassificationException {
+		double[] weights = this.getScaledWeights();
+		WapitiModel model = this.copy();
+
+		if (precision == PRECISION_DOUBLE) {
+			model.weights = new ModelWeights.DoubleWeights(weights);
+			return model;
+		} else if (precision == PRECISION_FLOAT) {
+			float[] values = new float[this.featureNumber];
+			for (int i = 0 ; i < values.length ; i++) {
+				values[i] = (float)weights[i];
+			}
+			model.weights = new ModelWeights.FloatBufferWeights(FloatBuffer.wrap(values));
+			return model;
+		} else if (precision != PRECISION_HALF && precision != PRECISION_BYTE) {
+			throw new ClassificationException("Unsupported weight precision " + precision);
+		}
+
+		// Scale factor of each pattern
+		float[] scales = new float[this.patterns.length];
+		int[] patternOfFeatures = this.getFeaturePatterns();
+		for (int i = 0 ; i < this.featureNumber ; i++) {
+			scales[patternOfFeatures[i]] = Math.max(scales[patternOfFeatures[i]], (float)Math.abs(weights[i]));
+		}
+		double maximum = precision == PRECISION_HALF ? 1.0 : 127.0;
+		for (int i = 0 ; i < scales.length ; i++) {
+			scales[i] = scales[i] == 0 ? 1.0f : (float)(scales[i] / maximum);
+		}
+		if (precision == PRECISION_HALF) {
+			short[] values = new short[this.featureNumber];
+			for (int i = 0 ; i < values.length ; i++) {
+				values[i] = ModelWeights.floatToHalf((float)(weights[i] / scales[patternOfFeatures[i]]));
+			}
+			model.weights = new ModelWeights.HalfWeights(ShortBuffer.wrap(values), scales);
+		} else {
+			byte[] values = new byte[this.featureNumber];
+			for (int i = 0 ; i < values.length ; i++) {
+				long value = Math.round(weights[i] / scales[patternOfFeatures[i]]);
+				values[i] = (byte)Math.max(-127, Math.min(127, value));
+			}
+			model.weights = new ModelWeights.ByteWeights(ByteBuffer.wrap(values), scales);
+		}
+		return model;
+	}
+
+	/**
+	 * @return a copy of the model, sharing all its data
+	 */
+	private WapitiModel copy() {
+		WapitiModel model = new WapitiModel();
+		model.type = this.type;
+		model.tokenNumber = this.tokenNumber;
+		model.labels = this.labels;
+		model.patterns = this.patterns;
+		model.observationNames = this.observationNames;
+		model.observations = this.observations;
+		model.mappedObservationKeys = this.mappedObservationKeys;
+		model.mappedObservationValues = this.mappedObservationValues;
+		model.mappedObservationMask = this.mappedObservationMask;
+		model.mappedObservationNames = this.mappedObservationNames;
+		model.kinds = this.kinds;
+		model.observationPatterns = this.observationPatterns;
+		model.unigramOffsets = this.unigramOffsets;
+		model.bigramOffsets = this.bigramOffsets;
+		model.featureNumber = this.featureNumber;
+		model.weights = this.weights;
+		return model;
+	}
+
+
+	/*****************************************
+	 * Column projection
+	 *****************************************/
+
+	/**
+	 * @return the indices of the columns used by the patterns of the model, sorted
+	 */
+	public int[] getColumns() {
+		TreeSet<Integer> columns = new TreeSet<Integer>();
+		for (ModelPattern pattern : this.patterns) {
+			for (int column : pattern.columns) {
+				columns.add(column);
+			}
+		}
+		int[] result = new int[columns.size()];
+		int i = 0;
+		for (Integer column : columns) {
+			result[i++] = column;
+		}
+		return result;
+	}
+
+	/**
+	 * Get a copy of the model reading only some columns of the sequences:
+	 * column <code>columns[i]</code> of the sequences of this model is column <code>i</code>
+	 * of the sequences of the new model. Observations and weights are shared
+	 * (observations do not depend on column indices), and both models give the same results.
+	 * @param columns the columns to keep, sorted (at least the columns given by {@link #getColumns()})
+	 * @return the new model
+	 * @throws ClassificationException if a column used by a pattern is not kept
+	 */
+	public WapitiModel project(int[] columns) throws ClassificationException {
+		WapitiModel model = this.copy();
+		model.tokenNumber = columns.length;
+		model.patterns = new ModelPattern[this.patterns.length];
+		for (int i = 0 ; i < this.patterns.length ; i++) {
+			model.patterns[i] = this.patterns[i].project(columns);
+		}
+		return model;
+	}
+
+	/**
+	 * @return the pattern index of each feature
+	 */
+	private int[] getFeaturePatterns() {
+		int labelNumber = this.labels.length;
+		int[] result = new int[this.featureNumber];
+		for (int observation = 0 ; observation < this.kinds.length ; observation++) {
+			if ((this.kinds[observation] & KIND_UNIGRAM) != 0) {
+				Arrays.fill(result, this.unigramOffsets[observation], this.unigramOffsets[observation] + labelNumber, this.observationPatterns[observation]);
+			}
+			if ((this.kinds[observation] & KIND_BIGRAM) != 0) {
+				Arrays.fill(result, this.bigramOffsets[observation], this.bigramOffsets[observation] + labelNumber * labelNumber, this.observationPatterns[observation]);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the weights, multiplied by their scale factor
+	 */
+	private double[] getScaledWeights() {
+		double[] result = new double[this.featureNumber];
+		int[] patternOfFeatures = this.getFeaturePatterns();
+		for (int i = 0 ; i < result.length ; i++) {
+			result[i] = this.weights.get(i) * this.weights.getScale(patternOfFeatures[i]);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the precision of the weights (number of bits)
+	 */
+	public int getWeightPrecision() {
+		return this.weights.getPrecision();
+	}
+
+	/**
+	 * @return the memory size of the weights, in bytes (including scale factors)
+	 */
+	public long getWeightSize() {
+		long size = (long)this.featureNumber * this.weights.getPrecision() / 8;
+		if (this.weights.getPrecision() < PRECISION_FLOAT) {
+			size += 4 * this.patterns.length;
+		}
+		return size;
+	}
+
+	/**
+	 * @return the number of labels
+	 */
+	public int getLabelNumber() {
+		return this.labels.length;
+	}
+
+	/**
+	 * @param index the label index
+	 * @return the label
+	 */
+	public String getLabel(int index) {
+		return this.labels[index];
+	}
+
+	/**
+	 * @return the number of patterns
+	 */
+	public int getPatternNumber() {
+		return this.patterns.length;
+	}
+
+	/**
+	 * @return the number of observations
+	 */
+	public int getObservationNumber() {
+		return this.kinds.length;
+	}
+
+	/**
+	 * @return the number of features (including zero-weighted ones)
+	 */
+	public int getFeatureNumber() {
+		return this.featureNumber;
+	}
+
+	/**
+	 * @return the number of tokens (columns) of the sequences
+	 */
+	public int getTokenNumber() {
+		return this.tokenNumber;
+	}
+
+	/**
+	 * @return the weights, indexed by feature (the array is not copied)
+	 * @throws IllegalStateException if the weights are read-only (binary model)
+	 */
+	double[] getWeights() {
+		if (!(this.weights instanceof ModelWeights.DoubleWeights)) {
+			throw new IllegalStateException("Weights of binary models cannot be modified");
+		}
+		return ((ModelWeights.DoubleWeights)this.weights).getValues();
+	}
+
+	/**
+	 * @param index the pattern index
+	 * @return the pattern
+	 */
+	ModelPattern getPattern(int index) {
+		return this.patterns[index];
+	}
+
+	/**
+	 * @param sequence the tokens of each position of the sequence
+	 * @param t the position
+	 * @param pattern the pattern index
+	 * @return the index of the observation generated by the pattern at position t, or -1 if unknown
+	 * @throws ClassificationException
+	 */
+	int getObservation(String[][] sequence, int t, int pattern) throws ClassificationException {
+		return this.getObservation(this.patterns[pattern].hash(sequence, t));
+	}
+
+	/**
+	 * @param observation the observation index
+	 * @return the observation kind (see {@link #KIND_UNIGRAM} and {@link #KIND_BIGRAM})
+	 */
+	byte getKind(int observation) {
+		return this.kinds[observation];
+	}
+
+	/**
+	 * @param observation the observation index
+	 * @return the index of the first unigram feature of the observation
+	 */
+	int getUnigramOffset(int observation) {
+		return this.unigramOffsets[observation];
+	}
+
+	/**
+	 * @param observation the observation index
+	 * @return the index of the first bigram feature of the observation
+	 */
+	int getBigramOffset(int observation) {
+		return this.bigramOffsets[observation];
+	}
+
+
+	/**
+	 * A Wapiti pattern, e.g. <code>u1:%x[-1,17]/%x[0,17]</code>.
+	 * Only the <code>%x[offset,column]</code> commands are supported.
+	 */
+	static class ModelPattern {
+		private String source;
+		// Literal parts (one more than items)
+		private String[] literals;
+		private int[] offsets;
+		private int[] columns;
+
+		ModelPattern(String source) throws ClassificationException {
+			this.source = source;
+			ArrayList<String> literalList = new ArrayList<String>();
+			ArrayList<int[]> itemList = new ArrayList<int[]>();
+			Matcher matcher = ITEM_PATTERN.matcher(source);
+			int start = 0;
+			while (matcher.find()) {
+				literalList.add(source.substring(start, matcher.start()));
+				itemList.add(new int[]{Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2))});
+				start = matcher.end();
+			}
+			literalList.add(source.substring(start));
+			for (String literal : literalList) {
+				if (literal.indexOf('%') >= 0) {
+					throw new ClassificationException("Unsupported Wapiti pattern command in " + source);
+				}
+			}
+			this.literals = literalList.toArray(new String[literalList.size()]);
+			this.offsets = new int[itemList.size()];
+			this.columns = new int[itemList.size()];
+			for (int i = 0 ; i < itemList.size() ; i++) {
+				this.offsets[i] = itemList.get(i)[0];
+				this.columns[i] = itemList.get(i)[1];
+			}
+		}
+
+		/**
+		 * Same pattern, reading column <code>columns[i]</code> as column <code>i</code>.
+		 */
+		ModelPattern project(int[] columns) throws ClassificationException {
+			StringBuffer source = new StringBuffer();
+			Matcher matcher = ITEM_PATTERN.matcher(this.source);
+			int column;
+			while (matcher.find()) {
+				column = Arrays.binarySearch(columns, Integer.parseInt(matcher.group(2)));
+				if (column < 0) {
+					throw new ClassificationException("Column " + matcher.group(2) + " of pattern " + this.source + " is not projected");
+				}
+				matcher.appendReplacement(source, "%x[" + matcher.group(1) + "," + column + "]");
+			}
+			matcher.appendTail(source);
+			return new ModelPattern(source.toString());
+		}
+
+		/**
+		 * Observation string obtained by applying the pattern at position t.
+		 */
+		String apply(String[][] sequence, int t) throws ClassificationException {
+			StringBuilder result = new StringBuilder(this.literals[0]);
+			int position;
+			for (int i = 0 ; i < this.offsets.length ; i++) {
+				position = t + this.offsets[i];
+				if (position < 0) {
+					result.append("_x").append(position);
+				} else if (position >= sequence.length) {
+					result.append("_x+").append(position - sequence.length + 1);
+				} else if (this.columns[i] >= sequence[position].length) {
+					throw new ClassificationException("Missing column " + this.columns[i] + " at position " + position + " of the sequence");
+				} else {
+					result.append(sequence[position][this.columns[i]]);
+				}
+				result.append(this.literals[i + 1]);
+			}
+			return result.toString();
+		}
+
+		/**
+		 * Hash of the observation string obtained by applying the pattern
+		 * at position t (as {@link WapitiModel#hash(long, String)} of the string).
+		 */
+		long hash(String[][] sequence, int t) throws ClassificationException {
+			return this.hash(sequence, 0, sequence.length, t);
+		}
+
+		/**
+		 * Same as {@link #hash(String[][], int)}, the sequence being given by
+		 * <code>length</code> consecutive rows of an array, starting at row <code>start</code>.
+		 */
+		long hash(String[][] rows, int start, int length, int t) throws ClassificationException {
+			long result = WapitiModel.hash(HASH_OFFSET, this.literals[0]);
+			int position;
+			for (int i = 0 ; i < this.offsets.length ; i++) {
+				position = t + this.offsets[i];
+				if (position < 0) {
+					result = WapitiModel.hash(result, "_x-");
+					result = WapitiModel.hash(result, -position);
+				} else if (position >= length) {
+					result = WapitiModel.hash(result, "_x+");
+					result = WapitiModel.hash(result, position - length + 1);
+				} else if (this.columns[i] >= rows[start + position].length) {
+					throw new ClassificationException("Missing column " + this.columns[i] + " at position " + position + " of the sequence");
+				} else {
+					result = WapitiModel.hash(result, rows[start + position][this.columns[i]]);
+				}
+				result = WapitiModel.hash(result, this.literals[i + 1]);
+			}
+			return result;
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package fr.limsi.tools.classification.crf;
+
+import java.io.File;
+import java.io.IOException;
+
+import fr.limsi.tools.classification.ClassificationException;
+
+/**
+ * Convert a Wapiti model between the text format (as written by
+ * <code>wapiti train</code>) and the binary format of {@link WapitiModel}.
+ * Usage: <code>WapitiModelConverter input-model output-model [-text|-float|-half|-byte]</code>
+ * (the input format is detected, the output is binary unless <code>-text</code> is given;
+ * binary weights are single-precision unless <code>-half</code> or <code>-byte</code> is given).
+ * @author xtannier
+ *
+ */
+public class WapitiModelConverter {
+
+	public static void main(String[] args) throws IOException, ClassificationException {
+		String format = args.length == 3 ? args[2] : "-float";
+		if (args.length < 2 || args.length > 3 || !(format.equals("-text") || format.equals("-float") || format.equals("-half") || format.equals("-byte"))) {
+			System.err.println("Usage: " + WapitiModelConverter.class.getName() + " input-model output-model [-text|-float|-half|-byte]");
+			System.exit(1);
+		}
+		File inputFile = new File(args[0]);
+		File outputFile = new File(args[1]);
+		long start = System.nanoTime();
+		WapitiModel model = WapitiModel.load(inputFile);
+		long loaded = System.nanoTime();
+		if (format.equals("-text")) {
+			model.save(outputFile);
+		} else if (format.equals("-half")) {
+			model.quantize(WapitiModel.PRECISION_HALF).saveBinary(outputFile);
+		} else if (format.equals("-byte")) {
+			model.quantize(WapitiModel.PRECISION_BYTE).saveBinary(outputFile);
+		} else {
+			model.saveBinary(outputFile);
+		}
+		System.out.println(inputFile.getPath() + " (" + inputFile.length() + " bytes, loaded in " + (loaded - start) / 1000000.0 + " ms) -> "
+				+ outputFile.getPath() + " (" + outputFile.length() + " bytes)");
+	}
+}
@@ -0,0 +1,190 @@
+package fr.limsi.tools.classification.crf;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import fr.limsi.tools.classification.ClassificationException;
+import fr.limsi.tools.classification.Record;
+import fr.limsi.tools.classification.RecordList;
+
+/**
+ * Labeling with one <code>wapiti label -s -p</code> process per call.
+ * Records are sent to the standard input of the process and the labels are
+ * read from its standard output (no temporary file).
+ * @author xtannier
+ *
+ */
+public class WapitiProcessLabeler implements SequenceLabeler {
+
+	private File wapitiBinaryFile;
+	private String wapitiModelFilePath;
+	private boolean verbose;
+
+	/**
+	 * @param wapitiBinaryFile the Wapiti binary file
+	 * @param wapitiModelFilePath the path of the Wapiti model file
+	 * @param verbose print Wapiti output
+	 */
+	public WapitiProcessLabeler(File wapitiBinaryFile, String wapitiModelFilePath, boolean verbose) {
+		this.wapitiBinaryFile = wapitiBinaryFile;
+		this.wapitiModelFilePath = wapitiModelFilePath;
+		this.verbose = verbose;
+	}
+
+	@Override
+	public void label(final RecordList records) throws ClassificationException {
+		ProcessBuilder builder = new ProcessBuilder(this.wapitiBinaryFile.getAbsolutePath(), "label", "-s", "-p", "-m", this.wapitiModelFilePath);
+		if (this.verbose) {
+			System.out.println("Labeling command: " + builder.command());
+		}
+		final Process proc;
+		try {
+			proc = builder.start();
+		} catch (IOException e) {
+			throw new ClassificationException(e);
+		}
+
+		// Get wapiti error output
+		// in java output must be consumed even if it's not used
+		Thread errThread = this.consume(proc.getErrorStream());
+		errThread.start();
+
+		// Records are written by another thread, while labels are read
+		// (the process would block if its output was not consumed)
+		final Exception[] writeException = new Exception[1];
+		Thread writerThread = new Thread() {
+			public void run() {
+				try {
+					Writer writer = new BufferedWriter(new OutputStreamWriter(proc.getOutputStream()));
+					try {
+						records.getFactory().writeCRF(records, writer);
+					} finally {
+						writer.close();
+					}
+				} catch (IOException | RuntimeException e) {
+					writeException[0] = e;
+					proc.destroy();
+				}
+			}
+		};
+		writerThread.start();
+
+		try {
+			try {
+				readWapitiResult(new BufferedReader(new InputStreamReader(proc.getInputStream())), records);
+			} catch (IOException | ClassificationException e) {
+				// unblock the writer thread
+				proc.destroy();
+				throw e;
+			} finally {
+				writerThread.join();
+			}
+			if (writeException[0] != null) {
+				throw new ClassificationException(writeException[0]);
+			}
+			errThread.join();
+			if (proc.waitFor() != 0) {
+				throw new ClassificationException("Wapiti labeling has failed");
+			}
+		} catch (IOException e) {
+			throw new ClassificationException(e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ClassificationException(e);
+		} finally {
+			proc.destroy();
+		}
+	}
+
+	@Override
+	public void close() {
+		// nothing to release
+	}
+
+	private Thread consume(final InputStream stream) {
+		Thread thread = new Thread() {
+			public void run() {
+				try {
+					BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
+					String line = "";
+					try {
+						while ((line = reader.readLine()) != null) {
+							if (verbose) {
+								System.out.println(line);
+							}
+						}
+					} finally {
+						reader.close();
+					}
+				} catch (IOException ioe) {
+					// process has been destroyed
+				}
+			}
+		};
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	/**
+	 * Read a Wapiti result (obtained with options -s -p) and set the
+	 * predicted class and score on the corresponding records.
+	 * @param reader the Wapiti output (closed at the end)
+	 * @param records the labeled records (in the same order as in the output)
+	 * @throws IOException
+	 * @throws ClassificationException
+	 */
+	private static void readWapitiResult(BufferedReader reader, RecordList records) throws IOException, ClassificationException {
+		String recordLine;
+		String[] classFields;
+		// true when the rows of a sequence are being read
+		boolean inSequence = false;
+		try {
+			for (Record record : records) {
+				if (record instanceof SeparationRecord) {
+					// end of sequence: Wapiti writes an empty line
+					if (inSequence) {
+						recordLine = reader.readLine();
+						if (recordLine != null && recordLine.length() > 0) {
+							throw new ClassificationException("Bad format in CRF output, more lines than records");
+						}
+						inSequence = false;
+					}
+					continue;
+				}
+				recordLine = reader.readLine();
+				// only the first line of a sequence can be its "# n score" line,
+				// then there is exactly one row per record
+				if (!inSequence && recordLine != null && WapitiProcessPool.isScoreLine(recordLine)) {
+					recordLine = reader.readLine();
+				}
+				inSequence = true;
+				if (recordLine == null || recordLine.length() == 0) {
+					throw new ClassificationException("Bad format in CRF output, less lines than records");
+				}
+				if (recordLine.indexOf('\t') < 0) {
+					throw new ClassificationException("Bad format in CRF output, no label in line " + recordLine);
+				}
+				classFields = recordLine.substring(recordLine.lastIndexOf('\t') + 1).split("/");
+				record.setPredictedClass(classFields[0]);
+				if (classFields.length > 1) {
+					record.setPredictedConfidence(Double.parseDouble(classFields[1]));
+				} else {
+					record.setPredictedConfidence(1.0);
+				}
+			}
+			while ((recordLine = reader.readLine()) != null) {
+				if (recordLine.length() > 0) {
+					throw new ClassificationException("Bad format in CRF output, more lines than records");
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+}
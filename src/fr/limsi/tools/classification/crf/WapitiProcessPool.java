@@ -0,0 +1,311 @@
+package fr.limsi.tools.classification.crf;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import fr.limsi.tools.classification.ClassificationException;
+import fr.limsi.tools.classification.Record;
+import fr.limsi.tools.classification.RecordFactory;
+import fr.limsi.tools.classification.RecordList;
+
+/**
+ * Pool of long-lived <code>wapiti label -s -p</code> processes.
+ * Sequences are sent to the standard input of a process and the labels are
+ * read back from its standard output, so that the model is loaded only once
+ * per process instead of once per labeled document.
+ * Dead processes are restarted when they are taken from the pool.
+ * @author xtannier
+ *
+ */
+public class WapitiProcessPool implements SequenceLabeler {
+
+	private File wapitiBinaryFile;
+	private String wapitiModelFilePath;
+	private boolean verbose;
+	private BlockingQueue<WapitiProcess> processes;
+	private List<WapitiProcess> allProcesses;
+	private boolean closed;
+	// Stops the processes if the pool is not closed before exiting
+	private Thread shutdownHook;
+
+	/**
+	 * Start a pool with one process per available core.
+	 * @param wapitiBinaryFile the Wapiti binary file
+	 * @param wapitiModelFilePath the path of the Wapiti model file
+	 * @param verbose print Wapiti error output
+	 * @throws IOException
+	 */
+	public WapitiProcessPool(File wapitiBinaryFile, String wapitiModelFilePath, boolean verbose) throws IOException {
+		this(wapitiBinaryFile, wapitiModelFilePath, Runtime.getRuntime().availableProcessors(), verbose);
+	}
+
+	/**
+	 * Start a pool.
+	 * @param wapitiBinaryFile the Wapiti binary file
+	 * @param wapitiModelFilePath the path of the Wapiti model file
+	 * @param size the number of processes
+	 * @param verbose print Wapiti error output
+	 * @throws IOException
+	 */
+	public WapitiProcessPool(File wapitiBinaryFile, String wapitiModelFilePath, int size, boolean verbose) throws IOException {
+		this.wapitiBinaryFile = wapitiBinaryFile;
+		this.wapitiModelFilePath = wapitiModelFilePath;
+		this.verbose = verbose;
+		if (size < 1) {
+			size = 1;
+		}
+		this.processes = new ArrayBlockingQueue<WapitiProcess>(size);
+		this.allProcesses = new ArrayList<WapitiProcess>(size);
+		this.closed = false;
+		try {
+			for (int i = 0 ; i < size ; i++) {
+				WapitiProcess process = new WapitiProcess();
+				this.allProcesses.add(process);
+				this.processes.add(process);
+			}
+		} catch (IOException e) {
+			this.close();
+			throw e;
+		}
+		this.shutdownHook = new Thread() {
+			public void run() {
+				WapitiProcessPool.this.close();
+			}
+		};
+		Runtime.getRuntime().addShutdownHook(this.shutdownHook);
+	}
+
+	/**
+	 * @return the path of the Wapiti model file
+	 */
+	public String getModelFilePath() {
+		return wapitiModelFilePath;
+	}
+
+	/**
+	 * @return the number of processes
+	 */
+	public int size() {
+		return this.allProcesses.size();
+	}
+
+	/**
+	 * Label a list of records. Sequences are separated by {@link SeparationRecord}s.
+	 * The predicted class and its score are set on each record.
+	 * @param records the records to label
+	 * @throws ClassificationException
+	 */
+	@Override
+	public void label(RecordList records) throws ClassificationException {
+		WapitiProcess process;
+		try {
+			process = this.processes.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ClassificationException(e);
+		}
+		try {
+			if (this.closed) {
+				throw new ClassificationException("Wapiti process pool is closed");
+			}
+			if (!process.isAlive()) {
+				if (this.verbose) {
+					System.out.println("Restarting Wapiti process");
+				}
+				process.restart();
+			}
+			ArrayList<Record> sequence = new ArrayList<Record>();
+			for (Record record : records) {
+				if (record instanceof SeparationRecord) {
+					process.labelSequence(sequence, records.getFactory());
+					sequence.clear();
+				} else {
+					sequence.add(record);
+				}
+			}
+			process.labelSequence(sequence, records.getFactory());
+		} catch (IOException e) {
+			// The process is in an unknown state, kill it
+			// (it will be restarted next time)
+			process.destroy();
+			throw new ClassificationException(e);
+		} catch (ClassificationException e) {
+			process.destroy();
+			throw e;
+		} finally {
+			// never blocks, the queue has room for all processes
+			this.processes.add(process);
+		}
+	}
+
+	/**
+	 * Stop all processes.
+	 */
+	@Override
+	public synchronized void close() {
+		this.closed = true;
+		for (WapitiProcess process : this.allProcesses) {
+			process.destroy();
+		}
+		if (this.shutdownHook != null && Thread.currentThread() != this.shutdownHook) {
+			try {
+				Runtime.getRuntime().removeShutdownHook(this.shutdownHook);
+			} catch (IllegalStateException e) {
+				// already shutting down
+			}
+		}
+		this.shutdownHook = null;
+	}
+
+
+	/**
+	 * A single <code>wapiti label</code> process.
+	 */
+	private class WapitiProcess {
+
+		private Process process;
+		private BufferedWriter writer;
+		private BufferedReader reader;
+		private boolean destroyed;
+
+		private WapitiProcess() throws IOException {
+			this.start();
+		}
+
+		private void start() throws IOException {
+			ProcessBuilder builder = new ProcessBuilder(wapitiBinaryFile.getAbsolutePath(), "label", "-s", "-p", "-m", wapitiModelFilePath);
+			if (verbose) {
+				System.out.println("Labeling command: " + builder.command());
+			}
+			this.process = builder.start();
+			this.destroyed = false;
+			this.writer = new BufferedWriter(new OutputStreamWriter(this.process.getOutputStream()));
+			this.reader = new BufferedReader(new InputStreamReader(this.process.getInputStream()));
+
+			// Get wapiti error output
+			// in java output must be consumed even if it's not used
+			final Process proc = this.process;
+			Thread errThread = new Thread() {
+				public void run() {
+					try {
+						BufferedReader errReader = new BufferedReader(
+								new InputStreamReader(proc.getErrorStream()));
+						String line = "";
+						try {
+							while ((line = errReader.readLine()) != null) {
+								if (verbose) {
+									System.out.println(line);
+								}
+							}
+						} finally {
+							errReader.close();
+						}
+					} catch (IOException ioe) {
+						// process has been destroyed
+					}
+				}
+			};
+			errThread.setDaemon(true);
+			errThread.start();
+		}
+
+		private boolean isAlive() {
+			if (this.destroyed) {
+				return false;
+			}
+			try {
+				this.process.exitValue();
+				return false;
+			} catch (IllegalThreadStateException e) {
+				return true;
+			}
+		}
+
+		private void restart() throws IOException {
+			this.destroy();
+			this.start();
+		}
+
+		private void destroy() {
+			this.destroyed = true;
+			try {
+				this.writer.close();
+			} catch (IOException e) {
+				// process already stopped
+			}
+			this.process.destroy();
+		}
+
+		/**
+		 * Send a sequence to the process and read back its labels.
+		 * Wapiti outputs, for each sequence, a "# n score" comment line,
+		 * then each input line followed by "\tlabel/score", then an empty line.
+		 * Only the line preceding the first row can be the comment: rows are then read
+		 * one per record, whatever their content (the text of a record may start with '#').
+		 */
+		private void labelSequence(List<Record> sequence, RecordFactory factory) throws IOException, ClassificationException {
+			if (sequence.isEmpty()) {
+				return;
+			}
+			// Build lines first, so that nothing is sent if a value is missing
+			String[] lines = new String[sequence.size()];
+			for (int i = 0 ; i < lines.length ; i++) {
+				lines[i] = factory.getCRFLine(sequence.get(i));
+			}
+			for (String crfLine : lines) {
+				this.writer.write(crfLine);
+				this.writer.newLine();
+			}
+			this.writer.newLine();
+			this.writer.flush();
+
+			String line = this.reader.readLine();
+			if (line != null && isScoreLine(line)) {
+				line = this.reader.readLine();
+			}
+			String[] classFields;
+			for (int index = 0 ; index < sequence.size() ; index++) {
+				if (index > 0) {
+					line = this.reader.readLine();
+				}
+				if (line == null) {
+					throw new IOException("Wapiti process has stopped");
+				}
+				if (line.indexOf('\t') < 0) {
+					throw new ClassificationException("Bad format in Wapiti output, no label in line " + line);
+				}
+				classFields = line.substring(line.lastIndexOf('\t') + 1).split("/");
+				Record record = sequence.get(index);
+				record.setPredictedClass(classFields[0]);
+				if (classFields.length > 1) {
+					record.setPredictedConfidence(Double.parseDouble(classFields[1]));
+				} else {
+					record.setPredictedConfidence(1.0);
+				}
+			}
+			// Sequence end (empty line)
+			line = this.reader.readLine();
+			if (line == null) {
+				throw new IOException("Wapiti process has stopped");
+			} else if (line.length() > 0) {
+				throw new ClassificationException("Bad format in Wapiti output, unexpected line " + line);
+			}
+		}
+	}
+
+	/**
+	 * @return true if a line of Wapiti output is the "# n score" line preceding a sequence
+	 * (rows contain at least a tab, before their label)
+	 */
+	static boolean isScoreLine(String line) {
+		return line.startsWith("#") && line.indexOf('\t') < 0;
+	}
+}
@@ -0,0 +1,729 @@
+package fr.limsi.tools.classification.crf;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import fr.limsi.tools.classification.ClassificationException;
+import fr.limsi.tools.classification.Record;
+import fr.limsi.tools.classification.RecordFactory;
+import fr.limsi.tools.classification.RecordList;
+
+/**
+ * CRF trainer producing Wapiti models, as <code>wapiti train</code> with the
+ * default options: elastic-net penalty (rho1 = 0.5, rho2 = 0.0001) optimized
+ * with OWL-QN, and stop when the error rate on the development set (or on the
+ * training set if there is none) varies less than 0.02% on a window of 5 iterations.
+ * The gradient is computed in parallel over the sequences, with a fork-join pool
+ * (one chunk of sequences and one gradient buffer per worker).
+ * @author xtannier
+ *
+ */
+public class WapitiTrainer {
+
+	// Sequences computed by a single task
+	private static final int SEQUENCES_BY_TASK = 32;
+	// Armijo condition constant for the line search
+	private static final double LINE_SEARCH_CONSTANT = 1e-4;
+	private static final int MAX_LINE_SEARCH_STEPS = 40;
+
+	private double rho1 = 0.5;
+	private double rho2 = 0.0001;
+	private int historySize = 5;
+	private int maxIterations = 0;
+	private int stopWindow = 5;
+	private double stopEpsilon = 0.02;
+	private int threadNumber;
+	private boolean verbose;
+
+	public WapitiTrainer(boolean verbose) {
+		this.threadNumber = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+		this.verbose = verbose;
+	}
+
+	/**
+	 * @param rho1 the L1 penalty
+	 */
+	public void setRho1(double rho1) {
+		this.rho1 = rho1;
+	}
+
+	/**
+	 * @param rho2 the L2 penalty
+	 */
+	public void setRho2(double rho2) {
+		this.rho2 = rho2;
+	}
+
+	/**
+	 * @param historySize the number of L-BFGS corrections kept
+	 */
+	public void setHistorySize(int historySize) {
+		this.historySize = historySize;
+	}
+
+	/**
+	 * @param maxIterations the maximum number of iterations (0 for no limit)
+	 */
+	public void setMaxIterations(int maxIterations) {
+		this.maxIterations = maxIterations;
+	}
+
+	/**
+	 * @param stopWindow the number of iterations of the stop window (0 to disable)
+	 * @param stopEpsilon the maximum error rate variation (in percent) on the window
+	 */
+	public void setStopCriterion(int stopWindow, double stopEpsilon) {
+		this.stopWindow = stopWindow;
+		this.stopEpsilon = stopEpsilon;
+	}
+
+	/**
+	 * @param threadNumber the number of threads used to compute the gradient
+	 */
+	public void setThreadNumber(int threadNumber) {
+		this.threadNumber = Math.max(1, threadNumber);
+	}
+
+	/**
+	 * Train a CRF model. The class of each record is used as label, and
+	 * sequences are separated by {@link SeparationRecord}s.
+	 * @param trainRecords the training records
+	 * @param devRecords the development records (can be null)
+	 * @param patterns the Wapiti patterns (see {@link CRFRecordFactory#getTemplateStringValues()})
+	 * @return the trained model
+	 * @throws ClassificationException
+	 */
+	public WapitiModel train(RecordList trainRecords, RecordList devRecords, List<String> patterns) throws ClassificationException {
+		/****************
+		 * Read sequences and build labels and observations
+		 ****************/
+		List<String[][]> trainSequences = getSequences(trainRecords);
+		List<String[][]> devSequences = devRecords == null ? new ArrayList<String[][]>() : getSequences(devRecords);
+		if (trainSequences.isEmpty()) {
+			throw new ClassificationException("No training sequence");
+		}
+		ArrayList<WapitiModel.ModelPattern> modelPatterns = new ArrayList<WapitiModel.ModelPattern>();
+		for (String pattern : patterns) {
+			modelPatterns.add(new WapitiModel.ModelPattern(pattern));
+		}
+		ArrayList<String> labels = new ArrayList<String>();
+		HashMap<String, Integer> labelIndexes = new HashMap<String, Integer>();
+		ArrayList<String> observations = new ArrayList<String>();
+		HashMap<String, Integer> observationIndexes = new HashMap<String, Integer>();
+		int tokenNumber = trainSequences.get(0)[0].length - 1;
+		for (String[][] sequence : trainSequences) {
+			String[][] tokens = getObservationTokens(sequence);
+			for (int t = 0 ; t < sequence.length ; t++) {
+				String label = sequence[t][sequence[t].length - 1];
+				if (!labelIndexes.containsKey(label)) {
+					labelIndexes.put(label, labels.size());
+					labels.add(label);
+				}
+				for (WapitiModel.ModelPattern pattern : modelPatterns) {
+					String observation = pattern.apply(tokens, t);
+					if (!observationIndexes.containsKey(observation)) {
+						observationIndexes.put(observation, observations.size());
+						observations.add(observation);
+					}
+				}
+			}
+		}
+		WapitiModel model = new WapitiModel(patterns, tokenNumber, labels, observations);
+		if (this.verbose) {
+			System.out.println("  " + trainSequences.size() + " training sequences, " + devSequences.size() + " development sequences");
+			System.out.println("  " + labels.size() + " labels, " + observations.size() + " observations, " + model.getFeatureNumber() + " features");
+		}
+
+		/****************
+		 * Compile sequences
+		 ****************/
+		CompiledSequence[] train = this.compile(model, trainSequences, labelIndexes);
+		CompiledSequence[] dev = this.compile(model, devSequences, labelIndexes);
+		CompiledSequence[] errorSequences = dev.length > 0 ? dev : train;
+
+		/****************
+		 * Optimization
+		 ****************/
+		ForkJoinPool pool = new ForkJoinPool(this.threadNumber);
+		try {
+			this.optimize(model, train, errorSequences, pool);
+		} finally {
+			pool.shutdown();
+		}
+		return model;
+	}
+
+	/**
+	 * Split records into sequences of tokens (the last token of each position is the label).
+	 */
+	private static List<String[][]> getSequences(RecordList records) throws ClassificationException {
+		RecordFactory factory = records.getFactory();
+		ArrayList<String[][]> sequences = new ArrayList<String[][]>();
+		ArrayList<String[]> sequence = new ArrayList<String[]>();
+		for (Record record : records) {
+			if (record instanceof SeparationRecord) {
+				if (!sequence.isEmpty()) {
+					sequences.add(sequence.toArray(new String[sequence.size()][]));
+					sequence.clear();
+				}
+			} else {
+				String[] tokens = WapitiModel.tokenize(factory.getCRFLine(record));
+				if (tokens.length < 2) {
+					throw new ClassificationException("Missing tokens in record " + record);
+				}
+				sequence.add(tokens);
+			}
+		}
+		if (!sequence.isEmpty()) {
+			sequences.add(sequence.toArray(new String[sequence.size()][]));
+		}
+		return sequences;
+	}
+
+	/**
+	 * Remove the label (last token) of each position.
+	 */
+	private static String[][] getObservationTokens(String[][] sequence) {
+		String[][] tokens = new String[sequence.length][];
+		for (int t = 0 ; t < sequence.length ; t++) {
+			tokens[t] = new String[sequence[t].length - 1];
+			System.arraycopy(sequence[t], 0, tokens[t], 0, tokens[t].length);
+		}
+		return tokens;
+	}
+
+	private CompiledSequence[] compile(WapitiModel model, List<String[][]> sequences, HashMap<String, Integer> labelIndexes) throws ClassificationException {
+		CompiledSequence[] result = new CompiledSequence[sequences.size()];
+		int[] buffer = new int[model.getPatternNumber()];
+		for (int i = 0 ; i < result.length ; i++) {
+			String[][] sequence = sequences.get(i);
+			String[][] tokens = getObservationTokens(sequence);
+			CompiledSequence compiled = new CompiledSequence();
+			compiled.labels = new int[sequence.length];
+			compiled.observations = new int[sequence.length][];
+			for (int t = 0 ; t < sequence.length ; t++) {
+				Integer label = labelIndexes.get(sequence[t][sequence[t].length - 1]);
+				// unknown labels (development set only) are always errors
+				compiled.labels[t] = label == null ? -1 : label;
+				int observationNumber = 0;
+				for (int pattern = 0 ; pattern < buffer.length ; pattern++) {
+					int observation = model.getObservation(tokens, t, pattern);
+					if (observation >= 0) {
+						buffer[observationNumber++] = observation;
+					}
+				}
+				compiled.observations[t] = new int[observationNumber];
+				System.arraycopy(buffer, 0, compiled.observations[t], 0, observationNumber);
+			}
+			result[i] = compiled;
+		}
+		return result;
+	}
+
+
+	/*****************************************
+	 * OWL-QN
+	 *****************************************/
+
+	private void optimize(WapitiModel model, CompiledSequence[] train, CompiledSequence[] errorSequences, ForkJoinPool pool) {
+		double[] x = model.getWeights();
+		int n = x.length;
+		double[] g = new double[n];
+		double[] pg = new double[n];
+		double[] direction = new double[n];
+		double[] newX = new double[n];
+		double[] newG = new double[n];
+		double[] swap;
+		int m = this.historySize;
+		double[][] s = new double[m][n];
+		double[][] y = new double[m][n];
+		double[] rhos = new double[m];
+		double[] alphas = new double[m];
+		int historyStart = 0;
+		int historyLength = 0;
+		double[] errorWindow = new double[Math.max(1, this.stopWindow)];
+		// One gradient buffer per worker, reused by every evaluation
+		double[][] gradientBuffers = new double[Math.max(1, Math.min(pool.getParallelism(), train.length))][n];
+
+		double fx = this.evaluate(model, train, x, g, gradientBuffers, pool);
+		for (int iteration = 1 ; this.maxIterations == 0 || iteration <= this.maxIterations ; iteration++) {
+			// Pseudo-gradient
+			this.getPseudoGradient(x, g, pg);
+
+			// Two-loop recursion: direction = -H.pg
+			for (int i = 0 ; i < n ; i++) {
+				direction[i] = -pg[i];
+			}
+			for (int k = historyLength - 1 ; k >= 0 ; k--) {
+				int j = (historyStart + k) % m;
+				alphas[j] = rhos[j] * dot(s[j], direction);
+				for (int i = 0 ; i < n ; i++) {
+					direction[i] -= alphas[j] * y[j][i];
+				}
+			}
+			if (historyLength > 0) {
+				int last = (historyStart + historyLength - 1) % m;
+				double gamma = dot(s[last], y[last]) / dot(y[last], y[last]);
+				for (int i = 0 ; i < n ; i++) {
+					direction[i] *= gamma;
+				}
+			}
+			for (int k = 0 ; k < historyLength ; k++) {
+				int j = (historyStart + k) % m;
+				double beta = rhos[j] * dot(y[j], direction);
+				for (int i = 0 ; i < n ; i++) {
+					direction[i] += s[j][i] * (alphas[j] - beta);
+				}
+			}
+			// Keep the direction in the orthant of the pseudo-gradient
+			for (int i = 0 ; i < n ; i++) {
+				if (direction[i] * pg[i] >= 0) {
+					direction[i] = 0;
+				}
+			}
+
+			double pgNorm = Math.sqrt(dot(pg, pg));
+			if (pgNorm == 0) {
+				// optimum reached
+				break;
+			}
+
+			// Backtracking line search, projected on the orthant
+			double step = historyLength == 0 ? 1.0 / pgNorm : 1.0;
+			double newFx = 0.0;
+			boolean found = false;
+			for (int k = 0 ; k < MAX_LINE_SEARCH_STEPS ; k++) {
+				for (int i = 0 ; i < n ; i++) {
+					double orthant = x[i] != 0 ? Math.signum(x[i]) : -Math.signum(pg[i]);
+					newX[i] = x[i] + step * direction[i];
+					if (newX[i] * orthant <= 0) {
+						newX[i] = 0;
+					}
+				}
+				newFx = this.evaluate(model, train, newX, newG, gradientBuffers, pool);
+				double decrease = 0.0;
+				for (int i = 0 ; i < n ; i++) {
+					decrease += pg[i] * (newX[i] - x[i]);
+				}
+				if (newFx <= fx + LINE_SEARCH_CONSTANT * decrease) {
+					found = true;
+					break;
+				}
+				step /= 2;
+			}
+			if (!found) {
+				if (this.verbose) {
+					System.out.println("  Line search failed, stop at iteration " + iteration);
+				}
+				break;
+			}
+
+			// Update history
+			int j = (historyStart + historyLength) % m;
+			if (historyLength == m) {
+				historyStart = (historyStart + 1) % m;
+			} else {
+				historyLength++;
+			}
+			for (int i = 0 ; i < n ; i++) {
+				s[j][i] = newX[i] - x[i];
+				y[j][i] = newG[i] - g[i];
+			}
+			double sy = dot(s[j], y[j]);
+			if (sy > 0) {
+				rhos[j] = 1.0 / sy;
+			} else {
+				// drop the correction (curvature condition not satisfied)
+				historyLength--;
+			}
+
+			// Move
+			System.arraycopy(newX, 0, x, 0, n);
+			swap = g; g = newG; newG = swap;
+			double previousFx = fx;
+			fx = newFx;
+
+			// Progress and stop criterion
+			double error = this.getErrorRate(model, errorSequences, pool);
+			int active = 0;
+			for (int i = 0 ; i < n ; i++) {
+				if (x[i] != 0) {
+					active++;
+				}
+			}
+			if (this.verbose) {
+				System.out.println(String.format("  [%4d] obj=%-10.2f act=%-8d err=%5.2f%%", iteration, fx, active, error));
+			}
+			errorWindow[(iteration - 1) % errorWindow.length] = error;
+			if (this.stopWindow > 0 && iteration >= this.stopWindow) {
+				double min = Double.MAX_VALUE;
+				double max = -Double.MAX_VALUE;
+				for (double value : errorWindow) {
+					min = Math.min(min, value);
+					max = Math.max(max, value);
+				}
+				if (max - min < this.stopEpsilon) {
+					break;
+				}
+			}
+			if (Math.abs(previousFx - fx) <= 1e-9 * Math.max(1.0, Math.abs(fx))) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Pseudo-gradient of the objective including the L1 penalty.
+	 */
+	private void getPseudoGradient(double[] x, double[] g, double[] pg) {
+		for (int i = 0 ; i < x.length ; i++) {
+			if (x[i] < 0) {
+				pg[i] = g[i] - this.rho1;
+			} else if (x[i] > 0) {
+				pg[i] = g[i] + this.rho1;
+			} else if (g[i] + this.rho1 < 0) {
+				pg[i] = g[i] + this.rho1;
+			} else if (g[i] - this.rho1 > 0) {
+				pg[i] = g[i] - this.rho1;
+			} else {
+				pg[i] = 0;
+			}
+		}
+	}
+
+	private static double dot(double[] a, double[] b) {
+		double result = 0.0;
+		for (int i = 0 ; i < a.length ; i++) {
+			result += a[i] * b[i];
+		}
+		return result;
+	}
+
+	/**
+	 * Compute the objective value (negative log-likelihood and penalties) and
+	 * the gradient of its smooth part (without the L1 penalty).
+	 * Sequences are split into one fixed chunk per gradient buffer, and the
+	 * buffers are summed once all chunks are computed.
+	 */
+	private double evaluate(WapitiModel model, CompiledSequence[] sequences, double[] x, double[] gradient,
+			double[][] gradientBuffers, ForkJoinPool pool) {
+		final GradientTask[] tasks = new GradientTask[gradientBuffers.length];
+		for (int chunk = 0 ; chunk < tasks.length ; chunk++) {
+			tasks[chunk] = new GradientTask(model, sequences, x,
+					(int) ((long) sequences.length * chunk / tasks.length),
+					(int) ((long) sequences.length * (chunk + 1) / tasks.length),
+					gradientBuffers[chunk]);
+		}
+		pool.invoke(new RecursiveTask<Void>() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected Void compute() {
+				invokeAll(tasks);
+				return null;
+			}
+		});
+		double value = 0.0;
+		for (GradientTask task : tasks) {
+			value += task.value;
+		}
+		double l1 = 0.0;
+		double l2 = 0.0;
+		double sum;
+		for (int i = 0 ; i < x.length ; i++) {
+			sum = 0.0;
+			for (double[] buffer : gradientBuffers) {
+				sum += buffer[i];
+			}
+			gradient[i] = sum + this.rho2 * x[i];
+			l1 += Math.abs(x[i]);
+			l2 += x[i] * x[i];
+		}
+		return value + this.rho1 * l1 + this.rho2 * l2 / 2.0;
+	}
+
+	/**
+	 * Token error rate (in percent), with Viterbi decoding.
+	 */
+	private double getErrorRate(WapitiModel model, CompiledSequence[] sequences, ForkJoinPool pool) {
+		ErrorTask task = new ErrorTask(model, sequences, 0, sequences.length);
+		int[] counts = pool.invoke(task);
+		return counts[1] == 0 ? 0.0 : 100.0 * counts[0] / counts[1];
+	}
+
+	/**
+	 * Log-potentials of a compiled sequence.
+	 */
+	private static double[][][] getPotentials(WapitiModel model, CompiledSequence sequence, double[] x) {
+		int length = sequence.labels.length;
+		int labelNumber = model.getLabelNumber();
+		double[][][] psi = new double[length][labelNumber][labelNumber];
+		double[] unigrams = new double[labelNumber];
+		int offset;
+		for (int t = 0 ; t < length ; t++) {
+			for (int y = 0 ; y < labelNumber ; y++) {
+				unigrams[y] = 0.0;
+			}
+			for (int observation : sequence.observations[t]) {
+				byte kind = model.getKind(observation);
+				if ((kind & WapitiModel.KIND_UNIGRAM) != 0) {
+					offset = model.getUnigramOffset(observation);
+					for (int y = 0 ; y < labelNumber ; y++) {
+						unigrams[y] += x[offset + y];
+					}
+				}
+				if (t > 0 && (kind & WapitiModel.KIND_BIGRAM) != 0) {
+					offset = model.getBigramOffset(observation);
+					for (int yp = 0 ; yp < labelNumber ; yp++) {
+						for (int y = 0 ; y < labelNumber ; y++) {
+							psi[t][yp][y] += x[offset + yp * labelNumber + y];
+						}
+					}
+				}
+			}
+			for (int yp = 0 ; yp < labelNumber ; yp++) {
+				for (int y = 0 ; y < labelNumber ; y++) {
+					psi[t][yp][y] += unigrams[y];
+				}
+			}
+		}
+		return psi;
+	}
+
+	/**
+	 * Add the gradient of the negative log-likelihood of a sequence.
+	 * @return the negative log-likelihood of the sequence
+	 */
+	private static double addGradient(WapitiModel model, CompiledSequence sequence, double[] x, double[] gradient) {
+		int length = sequence.labels.length;
+		int labelNumber = model.getLabelNumber();
+		int[] labels = sequence.labels;
+		double[][][] psi = getPotentials(model, sequence, x);
+
+		// Score of the reference labels
+		double score = psi[0][0][labels[0]];
+		for (int t = 1 ; t < length ; t++) {
+			score += psi[t][labels[t - 1]][labels[t]];
+		}
+
+		// Exponentiate potentials (shifted by their maximum at each position)
+		double logZ = 0.0;
+		for (int t = 0 ; t < length ; t++) {
+			int rows = t == 0 ? 1 : labelNumber;
+			double max = Double.NEGATIVE_INFINITY;
+			for (int yp = 0 ; yp < rows ; yp++) {
+				for (int y = 0 ; y < labelNumber ; y++) {
+					max = Math.max(max, psi[t][yp][y]);
+				}
+			}
+			for (int yp = 0 ; yp < rows ; yp++) {
+				for (int y = 0 ; y < labelNumber ; y++) {
+					psi[t][yp][y] = Math.exp(psi[t][yp][y] - max);
+				}
+			}
+			logZ += max;
+		}
+
+		// Forward
+		double[][] alpha = new double[length][labelNumber];
+		double[][] beta = new double[length][labelNumber];
+		double[] scale = new double[length];
+		double sum = 0.0;
+		for (int y = 0 ; y < labelNumber ; y++) {
+			alpha[0][y] = psi[0][0][y];
+			sum += alpha[0][y];
+		}
+		scale[0] = sum;
+		for (int y = 0 ; y < labelNumber ; y++) {
+			alpha[0][y] /= sum;
+		}
+		for (int t = 1 ; t < length ; t++) {
+			sum = 0.0;
+			for (int y = 0 ; y < labelNumber ; y++) {
+				double value = 0.0;
+				for (int yp = 0 ; yp < labelNumber ; yp++) {
+					value += alpha[t - 1][yp] * psi[t][yp][y];
+				}
+				alpha[t][y] = value;
+				sum += value;
+			}
+			scale[t] = sum;
+			for (int y = 0 ; y < labelNumber ; y++) {
+				alpha[t][y] /= sum;
+			}
+		}
+		for (int t = 0 ; t < length ; t++) {
+			logZ += Math.log(scale[t]);
+		}
+
+		// Backward
+		for (int y = 0 ; y < labelNumber ; y++) {
+			beta[length - 1][y] = 1.0;
+		}
+		for (int t = length - 1 ; t > 0 ; t--) {
+			for (int yp = 0 ; yp < labelNumber ; yp++) {
+				double value = 0.0;
+				for (int y = 0 ; y < labelNumber ; y++) {
+					value += beta[t][y] * psi[t][yp][y];
+				}
+				beta[t - 1][yp] = value / scale[t];
+			}
+		}
+
+		// Expectations minus reference counts
+		int offset;
+		for (int t = 0 ; t < length ; t++) {
+			for (int observation : sequence.observations[t]) {
+				byte kind = model.getKind(observation);
+				if ((kind & WapitiModel.KIND_UNIGRAM) != 0) {
+					offset = model.getUnigramOffset(observation);
+					for (int y = 0 ; y < labelNumber ; y++) {
+						gradient[offset + y] += alpha[t][y] * beta[t][y];
+					}
+					gradient[offset + labels[t]] -= 1.0;
+				}
+				if (t > 0 && (kind & WapitiModel.KIND_BIGRAM) != 0) {
+					offset = model.getBigramOffset(observation);
+					for (int yp = 0 ; yp < labelNumber ; yp++) {
+						for (int y = 0 ; y < labelNumber ; y++) {
+							gradient[offset + yp * labelNumber + y] += alpha[t - 1][yp] * psi[t][yp][y] * beta[t][y] / scale[t];
+						}
+					}
+					gradient[offset + labels[t - 1] * labelNumber + labels[t]] -= 1.0;
+				}
+			}
+		}
+		return logZ - score;
+	}
+
+	/**
+	 * Number of errors of the Viterbi labeling of a sequence.
+	 */
+	private static int getErrorNumber(WapitiModel model, CompiledSequence sequence) {
+		int length = sequence.labels.length;
+		int labelNumber = model.getLabelNumber();
+		double[][][] psi = getPotentials(model, sequence, model.getWeights());
+		int[][] back = new int[length][labelNumber];
+		double[] current = new double[labelNumber];
+		double[] previous = new double[labelNumber];
+		double[] swap;
+		for (int y = 0 ; y < labelNumber ; y++) {
+			current[y] = psi[0][0][y];
+		}
+		for (int t = 1 ; t < length ; t++) {
+			swap = previous; previous = current; current = swap;
+			for (int y = 0 ; y < labelNumber ; y++) {
+				double best = Double.NEGATIVE_INFINITY;
+				for (int yp = 0 ; yp < labelNumber ; yp++) {
+					double value = previous[yp] + psi[t][yp][y];
+					if (value > best) {
+						best = value;
+						back[t][y] = yp;
+					}
+				}
+				current[y] = best;
+			}
+		}
+		int best = 0;
+		for (int y = 1 ; y < labelNumber ; y++) {
+			if (current[y] > current[best]) {
+				best = y;
+			}
+		}
+		int errors = 0;
+		for (int t = length - 1 ; t >= 0 ; t--) {
+			if (best != sequence.labels[t]) {
+				errors++;
+			}
+			best = back[t][best];
+		}
+		return errors;
+	}
+
+
+	/**
+	 * Sequence with observation and label indexes.
+	 */
+	private static class CompiledSequence {
+		private int[] labels;
+		private int[][] observations;
+	}
+
+	/**
+	 * Negative log-likelihood and gradient on a fixed range of sequences,
+	 * accumulated into a gradient buffer owned by this range.
+	 */
+	private static class GradientTask extends RecursiveTask<Void> {
+		private static final long serialVersionUID = 1L;
+		private WapitiModel model;
+		private CompiledSequence[] sequences;
+		private double[] x;
+		private int start;
+		private int end;
+		private double value;
+		private double[] gradient;
+
+		GradientTask(WapitiModel model, CompiledSequence[] sequences, double[] x, int start, int end, double[] gradient) {
+			this.model = model;
+			this.sequences = sequences;
+			this.x = x;
+			this.start = start;
+			this.end = end;
+			this.gradient = gradient;
+		}
+
+		@Override
+		protected Void compute() {
+			Arrays.fill(this.gradient, 0.0);
+			this.value = 0.0;
+			for (int i = this.start ; i < this.end ; i++) {
+				this.value += addGradient(this.model, this.sequences[i], this.x, this.gradient);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Error and token numbers on a range of sequences.
+	 */
+	private static class ErrorTask extends RecursiveTask<int[]> {
+		private static final long serialVersionUID = 1L;
+		private WapitiModel model;
+		private CompiledSequence[] sequences;
+		private int start;
+		private int end;
+
+		ErrorTask(WapitiModel model, CompiledSequence[] sequences, int start, int end) {
+			this.model = model;
+			this.sequences = sequences;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected int[] compute() {
+			if (this.end - this.start <= SEQUENCES_BY_TASK) {
+				int[] counts = new int[2];
+				for (int i = this.start ; i < this.end ; i++) {
+					counts[0] += getErrorNumber(this.model, this.sequences[i]);
+					counts[1] += this.sequences[i].labels.length;
+				}
+				return counts;
+			} else {
+				int middle = (this.start + this.end) / 2;
+				ErrorTask left = new ErrorTask(this.model, this.sequences, this.start, middle);
+				ErrorTask right = new ErrorTask(this.model, this.sequences, middle, this.end);
+				right.fork();
+				int[] counts = left.compute();
+				int[] rightCounts = right.join();
+				counts[0] += rightCounts[0];
+				counts[1] += rightCounts[1];
+				return counts;
+			}
+		}
+	}
+}
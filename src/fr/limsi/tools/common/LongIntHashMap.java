@@ -0,0 +1,137 @@
+package fr.limsi.tools.common;
+
+/**
+ * Map from long keys to int values, with open addressing (linear probing)
+ * and no boxing. Entries cannot be removed.
+ * @author xtannier
+ *
+ */
+public class LongIntHashMap {
+
+	private static final float LOAD_FACTOR = 0.5f;
+
+	private long[] keys;
+	private int[] values;
+	private boolean[] used;
+	private int size;
+	private int mask;
+	private int missingValue;
+
+	/**
+	 * @param expectedSize the expected number of entries
+	 * @param missingValue the value returned by {@link #get(long)} for absent keys
+	 */
+	public LongIntHashMap(int expectedSize, int missingValue) {
+		int capacity = 16;
+		while (capacity * LOAD_FACTOR < expectedSize) {
+			capacity <<= 1;
+		}
+		this.allocate(capacity);
+		this.size = 0;
+		this.missingValue = missingValue;
+	}
+
+	private void allocate(int capacity) {
+		this.keys = new long[capacity];
+		this.values = new int[capacity];
+		this.used = new boolean[capacity];
+		this.mask = capacity - 1;
+	}
+
+	/**
+	 * Hash code of a key (the slot of a key is <code>hash(key) &amp; (capacity - 1)</code>).
+	 * @param key the key
+	 * @return the hash code
+	 */
+	public static int hash(long key) {
+		// murmur3 finalizer
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int)key;
+	}
+
+	/**
+	 * @param key the key
+	 * @return the value associated to the key, or the missing value
+	 */
+	public int get(long key) {
+		int index = hash(key) & this.mask;
+		while (this.used[index]) {
+			if (this.keys[index] == key) {
+				return this.values[index];
+			}
+			index = (index + 1) & this.mask;
+		}
+		return this.missingValue;
+	}
+
+	/**
+	 * @param key the key
+	 * @return true if the map contains the key
+	 */
+	public boolean containsKey(long key) {
+		int index = hash(key) & this.mask;
+		while (this.used[index]) {
+			if (this.keys[index] == key) {
+				return true;
+			}
+			index = (index + 1) & this.mask;
+		}
+		return false;
+	}
+
+	/**
+	 * Associate a value to a key
+	 * @param key the key
+	 * @param value the value
+	 * @return the previous value associated to the key, or the missing value
+	 */
+	public int put(long key, int value) {
+		int index = hash(key) & this.mask;
+		while (this.used[index]) {
+			if (this.keys[index] == key) {
+				int previous = this.values[index];
+				this.values[index] = value;
+				return previous;
+			}
+			index = (index + 1) & this.mask;
+		}
+		this.used[index] = true;
+		this.keys[index] = key;
+		this.values[index] = value;
+		this.size++;
+		if (this.size > this.keys.length * LOAD_FACTOR) {
+			this.rehash();
+		}
+		return this.missingValue;
+	}
+
+	private void rehash() {
+		long[] oldKeys = this.keys;
+		int[] oldValues = this.values;
+		boolean[] oldUsed = this.used;
+		this.allocate(oldKeys.length * 2);
+		int index;
+		for (int i = 0 ; i < oldKeys.length ; i++) {
+			if (oldUsed[i]) {
+				index = hash(oldKeys[i]) & this.mask;
+				while (this.used[index]) {
+					index = (index + 1) & this.mask;
+				}
+				this.used[index] = true;
+				this.keys[index] = oldKeys[i];
+				this.values[index] = oldValues[i];
+			}
+		}
+	}
+
+	/**
+	 * @return the number of entries
+	 */
+	public int size() {
+		return this.size;
+	}
+}